@@ -1,30 +1,57 @@
 package app;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import javax.json.Json;
-import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonReader;
-import javax.json.JsonWriter;
 import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
 
+import model.Area;
+import model.BestRoutes;
+import model.BoxArea;
+import model.CircleArea;
+import model.DestinationRegistry;
+import model.DistanceOrder;
 import model.Route;
+import model.RouteCounter;
+import model.RouteEstimate;
+import model.RouteIndex;
+import model.RouteQuery;
+import model.TopRouteCounter;
 import model.Stage;
-import model.Trip;
 import model.TripCollection;
 import util.Converter;
+import util.CountMinSketch;
+import util.ParallelTripParser;
+import util.PartialCounts;
+import util.PhaseEvent;
+import util.RouteMetrics;
+import util.TripLogFollower;
+import util.TripPipeline;
+import util.TripSnapshot;
+import util.VirtualThreads;
 
 /**
  * Application that finds most popular routes in trip collection.
@@ -34,16 +61,87 @@ import util.Converter;
 public class App {
 
 	/**
-	 * Application start point (main program). This method reads data from input file,
+	 * Application start point (main program). This method reads data from input file (JSON or binary snapshot),
 	 * finds most popular routes according to input parameters, and writes result into output file.
-	 * @param args Main program arguments. It is array of 2 to 4 strings. 
+	 * @param args Main program arguments. It is array of 2 or more strings. 
 	 * First string represents input file location and second is output file location.
-	 * Third and fourth strings are optional. Third is minimum route length (minimum number of stages in route)
-	 * and fourth is required destination in found routes.
+	 * Other strings are optional. Third is minimum route length (minimum number of stages in route)
+	 * and fourth is required destination in found routes. 
+	 * Each following string is one more destination that found routes have to include.
+	 * Options starting with <code>--</code> can be placed anywhere between arguments:
+	 * <ul>
+	 * 	<li><code>--parallel[=threads]</code> counts routes on multiple threads (all available processors by default)</li>
+	 * 	<li><code>--parallel-parse[=threads]</code> parses batches of trips from memory-mapped JSON input file on multiple threads
+	 * 		(all available processors by default)</li>
+	 * 	<li><code>--pipeline[=convert,enumerate,count]</code> reads and counts trips in overlapping stages connected by bounded queues,
+	 * 		with given number of threads in convert, enumerate and count stages (all available processors by default).
+	 * 		Size of queues is set with <code>--queue-capacity</code> (16 batches by default). Trips are not kept in memory.</li>
+	 * 	<li><code>--suffix-automaton</code> finds best routes in a suffix automaton instead of counting all routes
+	 * 		(not applicable when required destination is given)</li>
+	 * 	<li><code>--level-wise</code> finds best routes level by level, extending only the routes that can still be 
+	 * 		the most popular (not applicable when required destination is given)</li>
+	 * 	<li><code>--max-length=stages</code> limits the maximum number of stages in found routes</li>
+	 * 	<li><code>--near=latitude,longitude,km</code> finds only routes passing within given distance of a point</li>
+	 * 	<li><code>--bbox=minLatitude,minLongitude,maxLatitude,maxLongitude</code> finds only routes passing through a bounding box</li>
+	 * 	<li><code>--max-distance=km</code> finds only routes whose total travel distance is not longer than given distance</li>
+	 * 	<li><code>--distance-order=shortest|longest</code> orders equally popular routes by their travel distance</li>
+	 * 	<li><code>--distance</code> includes travel distance of every route in output file</li>
+	 * 	<li><code>--memory-budget=megabytes</code> counts routes with bounded memory on one thread, writing counted routes
+	 * 		into sorted runs in temporary directory (or directory given with <code>--spill-dir</code>) whenever they exceed the budget</li>
+	 * 	<li><code>--shard=index/count</code> counts routes only in trips whose index in input file modulo <code>count</code>
+	 * 		is <code>index</code>, and writes their popularity into partial count file given instead of output file</li>
+	 * 	<li><code>--merge</code> merges partial count files of all shards, given instead of input file, 
+	 * 		and writes most popular routes into output file given after them. Query is read from partial files.</li>
+	 * 	<li><code>--follow[=seconds]</code> follows trip logs in newline-delimited JSON format, given instead of input file
+	 * 		and separated by commas, and rewrites output file whenever new trips are appended (logs are polled every 10 seconds by default).
+	 * 		Offsets of logs and read trips are saved into state file given with <code>--state</code>, and following is resumed from them.</li>
+	 * 	<li><code>--incremental</code> counts routes of every trip as soon as it is read and maintains best routes</li>
+	 * 	<li><code>--window=duration</code> finds most popular routes only in trips whose timestamp is in a time window
+	 * 		(for example <code>30d</code>, <code>12h</code>, <code>15m</code> or <code>45s</code>) ending at the time given with
+	 * 		<code>--window-end</code> in ISO-8601 format (now by default). Routes are counted incrementally in a ring of time buckets,
+	 * 		whose number is set with <code>--time-buckets</code> (30 by default), and the window is rounded to whole buckets.
+	 * 		Trips without timestamp get the time when they are read. In follow mode, the window ends at the time of every poll.</li>
+	 * 	<li><code>--approximate=count</code> estimates given number of most popular routes with fixed memory,
+	 * 		whose size is set with <code>--sketch-width</code> and <code>--sketch-depth</code> options.
+	 * 		Option <code>--compare-exact</code> also counts routes exactly and prints the accuracy of estimation.</li>
+	 * 	<li><code>--write-snapshot=file</code> writes trips and counted routes into binary snapshot file.
+	 * 		Snapshot can be used instead of JSON input file, and its routes are used if they are counted for the same query.</li>
+	 * 	<li><code>--metrics</code> collects duration of every phase and counters of processed data, 
+	 * 		exposes them as management bean <code>tourism:type=RouteMetrics</code> and prints their summary at the end.
+	 * 		Phases are recorded as flight recorder events regardless of this option.</li>
+	 * 	<li><code>--queries=file</code> answers all queries from JSON query file in a single pass over trips,
+	 * 		instead of the query given by arguments, and writes most popular routes of each query into output file.</li>
+	 * 	<li><code>--serve[=port]</code> reads trips once and answers route queries over HTTP (on port 8080 by default),
+	 * 		see {@link RouteServer}. Only input file is needed. Query results are cached, and the size of cache
+	 * 		is set with <code>--cache-entries</code> (1024 by default) and <code>--cache-megabytes</code> (64 by default).</li>
+	 * </ul>
 	 */
 	public static void main(String[] args) {
 		
+		Map<String, String> options = new HashMap<>();
+		args = parseOptions(args, options);
+		
+		if(options.containsKey("metrics")) {
+			RouteMetrics.enable();
+		}
+		if(options.containsKey("serve") && args.length > 0) {
+			// server needs only input file, and answers queries until it is stopped
+			serve(new File(args[0]), intOption(options, "serve", 8080), 
+					intOption(options, "cache-entries", 1024), intOption(options, "cache-megabytes", 64) * (1L << 20));
+			return;
+		}
+		
 		// If there is less then two arguments, the program exits with code 1
+		if(options.containsKey("merge") && args.length >= 2) {
+			// partial files are all arguments except the last one, which is output file
+			List<File> partialFiles = new ArrayList<>();
+			for(int i = 0; i < args.length - 1; i++) {
+				partialFiles.add(new File(args[i]));
+			}
+			mergePartialCounts(partialFiles, new File(args[args.length - 1]), options.containsKey("distance"));
+			printMetrics();
+			return;
+		}
 		if(args.length < 2) {
 			System.out.println("Specify input and output file!");
 			System.exit(1);
@@ -51,71 +149,695 @@ public class App {
 		
 		String inputFilePath = args[0];
 		String outputFilePath = args[1];
+		
+		// query is created according to number of input parameters
+		RouteQuery routeQuery;
+		switch(args.length) {
+		case 2: 
+			routeQuery = new RouteQuery();
+			break;
+		case 3: 
+			routeQuery = new RouteQuery(Integer.parseInt(args[2]));
+			break;
+		default: 
+			routeQuery = new RouteQuery(Integer.parseInt(args[2]), Arrays.asList(args).subList(3, args.length));
+			break;
+		}
+	
+		if(options.containsKey("max-length")) {
+			routeQuery.setMaxLength(Integer.parseInt(options.get("max-length")));
+		}
+		if(options.containsKey("near")) {
+			routeQuery.getAreas().add(parseNear(options.get("near")));
+		}
+		if(options.containsKey("bbox")) {
+			routeQuery.getAreas().add(parseBox(options.get("bbox")));
+		}
+		if(options.containsKey("max-distance")) {
+			routeQuery.setMaxDistance(Double.parseDouble(options.get("max-distance")));
+		}
+		if(options.containsKey("distance-order")) {
+			routeQuery.setDistanceOrder(DistanceOrder.valueOf(options.get("distance-order").toUpperCase()));
+		}
 	
 		File inputFile = new File(inputFilePath); 
 		File outputFile = new File(outputFilePath); 
 		
-		TripCollection tripCollection = new TripCollection();
+		// destinations are dictionary-encoded while converting, and the same dictionary is used for counting routes
+		DestinationRegistry destinationRegistry = new DestinationRegistry();
+		TripCollection tripCollection = new TripCollection(destinationRegistry);
 		
-		JsonArray tripsJsonArray = null;
+		Converter conv = new Converter(destinationRegistry);
+		conv.setIncludeDistance(options.containsKey("distance"));
 		
-		// InputStream and JsonReader is being created in try-with-resources
-		try (InputStream is = new FileInputStream(inputFile); 
-				JsonReader jsonReader = Json.createReader(is)) {
-			
-			// Receiving trips from input file
-			JsonObject obj = jsonReader.readObject();
-			tripsJsonArray = obj.getJsonArray("trips");
+		if(options.containsKey("parallel")) {
+			String threads = options.get("parallel");
+			tripCollection.setParallelism(threads.isEmpty() ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(threads));
 		}
-		catch (FileNotFoundException e) {
-			System.out.println("Input file " + inputFilePath + " not found!");
-			System.exit(2);
-		} catch (IOException e1) {
-			e1.printStackTrace();
+		if(options.containsKey("memory-budget")) {
+			tripCollection.setMemoryBudget(Long.parseLong(options.get("memory-budget")) << 20);
+		}
+		if(options.containsKey("spill-dir")) {
+			tripCollection.setSpillDirectory(new File(options.get("spill-dir")));
+		}
+		if(options.containsKey("incremental")) {
+			// routes are counted while trips are added, and best routes are maintained all the time
+			tripCollection.setIncrementalQuery(routeQuery);
+		}
+		long window = options.containsKey("window") ? parseWindow(options.get("window")) : 0;
+		if(window > 0) {
+			// routes are also counted in time buckets, with one more bucket for the partial bucket at the start of the window
+			int bucketCount = intOption(options, "time-buckets", 30);
+			tripCollection.setTimeBuckets(Math.max(1, window / bucketCount), bucketCount + 1);
+			tripCollection.setIncrementalQuery(routeQuery);
 		}
 		
-		Converter conv = new Converter();
+		if(options.containsKey("follow")) {
+			// input files are trip logs, which are followed until the program is stopped
+			List<File> logs = new ArrayList<>();
+			for(String log : inputFilePath.split(",")) {
+				logs.add(new File(log));
+			}
+			File stateFile = options.containsKey("state") ? new File(options.get("state")) : null;
+			follow(logs, outputFile, stateFile, tripCollection, conv, routeQuery, intOption(options, "follow", 10), window);
+			return;
+		}
 		
-		// adding trips into tripCollection
-		for (JsonObject tripJsonObject : tripsJsonArray.getValuesAs(JsonObject.class)) {
-			Trip trip = conv.jsonObjectToTrip(tripJsonObject);
-			tripCollection.addTrip(trip);
+		if(options.containsKey("shard")) {
+			// counting routes of one shard of trips and writing them into partial file instead of output file
+			int[] shard = parseShard(options.get("shard"));
+			readTrips(inputFile, tripCollection, conv, shard[0], shard[1], 1);
+			tripCollection.setMemoryBudget(0);
+			tripCollection.findAllRoutes(routeQuery);
+			try {
+				PartialCounts.write(outputFile, tripCollection, routeQuery, shard[0], shard[1]);
+			}
+			catch (IOException e) {
+				System.out.println("Partial count file " + outputFile.getPath() + " cannot be written!");
+				System.exit(4);
+			}
+			printMetrics();
+			return;
 		}
 		
-		// finding most popular routes according to number of input parameters
-		switch(args.length) {
-		case 2: 
-			tripCollection.findAllRoutes();
-			break;
-		case 3: 
-			tripCollection.findAllRoutes(Integer.parseInt(args[2]));
-			break;
-		case 4: 
-			tripCollection.findAllRoutes(Integer.parseInt(args[2]), args[3]);
-			break;
+		if(options.containsKey("pipeline") && window == 0 && countInPipeline(inputFile, tripCollection, routeQuery, options)) {
+			// trips are not kept, so only the best routes are found and written
+			List<Route> bestRoutes = routeQuery.getDistanceOrder().sort(tripCollection.findBestRoute());
+			int maxRoutePopularity = tripCollection.getMaxRoutePopularity();
+			writeOutput(outputFile, jsonGenerator -> conv.writeRoutes(jsonGenerator, bestRoutes, maxRoutePopularity));
+			printMetrics();
+			return;
+		}
+		
+		// routes counted for the same query in an earlier run, read from snapshot input
+		RouteCounter snapshotRoutes = null;
+		TripSnapshot snapshot = readTrips(inputFile, tripCollection, conv, parseThreads(options));
+		if(snapshot != null && routeQuery.equals(snapshot.getRouteQuery())) {
+			snapshotRoutes = snapshot.loadRoutes(tripCollection);
 		}
 		
-		// finding best routes
-		List<Route> bestRoutes = tripCollection.findBestRoute();
+		if(options.containsKey("queries")) {
+			// answering all queries from query file in a single pass over trips
+			List<RouteQuery> routeQueries = readQueries(new File(options.get("queries")), conv);
+			List<BestRoutes> results = tripCollection.findBestRoutes(routeQueries);
+			writeBatchOutput(outputFile, routeQueries, results, conv);
+			printMetrics();
+			return;
+		}
+		
+		if(options.containsKey("approximate")) {
+			// estimating most popular routes with fixed memory
+			TopRouteCounter topRouteCounter = new TopRouteCounter(Integer.parseInt(options.get("approximate")), 
+					intOption(options, "sketch-width", 1 << 20), intOption(options, "sketch-depth", 4));
+			List<RouteEstimate> routeEstimates = tripCollection.estimateTopRoutes(routeQuery, topRouteCounter);
+			CountMinSketch sketch = topRouteCounter.getSketch();
+			System.out.println("Estimated " + routeEstimates.size() + " routes with sketch of " + sketch.getWidth() + "x" 
+					+ sketch.getDepth() + " counters (" + sketch.getSizeInBytes() + " bytes), error bound " 
+					+ sketch.getErrorBound() + " with probability " + (1 - Math.exp(-sketch.getDepth())));
+			if(options.containsKey("compare-exact")) {
+				reportAccuracy(tripCollection, routeQuery, routeEstimates);
+			}
+			writeOutput(outputFile, jsonGenerator -> conv.writeRouteEstimates(jsonGenerator, routeEstimates));
+			printMetrics();
+			return;
+		}
+		
+		List<Route> bestRoutes;
+		// query for which routes of tripCollection are counted
+		RouteQuery countedQuery = null;
+		// best routes in time window and their popularity, if routes are found in a time window
+		BestRoutes windowRoutes = null;
+		if(window > 0) {
+			// only time buckets in the window are merged, routes are already counted while trips are read
+			Instant windowEnd = options.containsKey("window-end") ? Instant.parse(options.get("window-end")) : Instant.now();
+			windowRoutes = tripCollection.findBestRoute(windowEnd.minusMillis(window), windowEnd);
+			bestRoutes = windowRoutes.getRoutes();
+			countedQuery = routeQuery;
+		}
+		else if(options.containsKey("suffix-automaton") && !routeQuery.hasRequiredDestinations() && !routeQuery.hasMaxDistance()) {
+			// finding best routes in suffix automaton, without counting all routes
+			bestRoutes = tripCollection.findBestRoute(routeQuery.getMinLength(), routeQuery.getMaxLength());
+		}
+		else if(options.containsKey("level-wise") && !routeQuery.hasRequiredDestinations() && !routeQuery.hasMaxDistance()) {
+			// finding best routes level by level, counting only the routes that can still be the most popular
+			bestRoutes = tripCollection.findBestRouteLevelWise(routeQuery.getMinLength(), routeQuery.getMaxLength());
+		}
+		else {
+			// finding most popular routes according to input parameters, 
+			// unless they are already counted incrementally or read from snapshot
+			if(tripCollection.getIncrementalQuery() != null) {
+				countedQuery = routeQuery;
+			}
+			else if(snapshotRoutes != null) {
+				tripCollection.setRouteCounter(snapshotRoutes);
+				countedQuery = routeQuery;
+			}
+			else {
+				try {
+					tripCollection.findAllRoutes(routeQuery);
+				}
+				catch (UncheckedIOException e) {
+					System.out.println("Counted routes cannot be written into " + tripCollection.getSpillDirectory().getPath() + "!");
+					System.exit(4);
+				}
+				countedQuery = routeQuery;
+			}
+			
+			// finding best routes
+			bestRoutes = tripCollection.findBestRoute();
+		}
+		// equally popular routes are ordered by their distance, if required
+		routeQuery.getDistanceOrder().sort(bestRoutes);
 
+		int maxRoutePopularity = windowRoutes != null ? windowRoutes.getPopularity() : tripCollection.getMaxRoutePopularity();
+		writeOutput(outputFile, jsonGenerator -> conv.writeRoutes(jsonGenerator, bestRoutes, maxRoutePopularity));
+		
+		if(options.containsKey("write-snapshot")) {
+			// writing trips and counted routes into binary snapshot, for faster start of next runs
+			try {
+				TripSnapshot.write(new File(options.get("write-snapshot")), tripCollection, countedQuery);
+			}
+			catch (IOException e) {
+				System.out.println("Snapshot file " + options.get("write-snapshot") + " cannot be written!");
+			}
+		}
+		printMetrics();
+	}
+	
+	/**
+	 * Reads trips from input file into trip collection. Input file is either a binary snapshot or a JSON file.
+	 * If input file is not found, the program exits with code 2.
+	 * @param inputFile Input file
+	 * @param tripCollection Trip collection where read trips are added
+	 * @param conv Converter which reads trips from JSON
+	 * @param parseThreads Number of threads which parse JSON input file, 1 for streaming it on the calling thread
+	 * @return Snapshot from which trips are read, or <code>null</code> if trips are read from JSON
+	 */
+	private static TripSnapshot readTrips(File inputFile, TripCollection tripCollection, Converter conv, int parseThreads) {
+		return readTrips(inputFile, tripCollection, conv, 0, 1, parseThreads);
+	}
+	
+	/**
+	 * Reads one shard of trips from input file into trip collection. 
+	 * Trip with index <code>i</code> in input file belongs to shard <code>i % shardCount</code>.
+	 * If input file is not found, the program exits with code 2.
+	 * @param inputFile Input file
+	 * @param tripCollection Trip collection where read trips are added
+	 * @param conv Converter which reads trips from JSON
+	 * @param shardIndex Index of the shard, from 0 to <code>shardCount - 1</code>
+	 * @param shardCount Number of shards
+	 * @param parseThreads Number of threads which parse JSON input file, 1 for streaming it on the calling thread.
+	 * 		Input file is parsed on multiple threads only if all trips are read.
+	 * @return Snapshot from which trips are read, or <code>null</code> if trips are read from JSON
+	 */
+	private static TripSnapshot readTrips(File inputFile, TripCollection tripCollection, Converter conv, int shardIndex, int shardCount, 
+			int parseThreads) {
+		TripSnapshot snapshot = null;
+		PhaseEvent parseEvent = RouteMetrics.begin(RouteMetrics.Phase.PARSE);
+		try {
+			if(TripSnapshot.isSnapshot(inputFile)) {
+				// reading trips from memory-mapped binary snapshot
+				snapshot = new TripSnapshot(inputFile);
+				snapshot.load(tripCollection, shardIndex, shardCount);
+			}
+			else if(parseThreads > 1 && shardCount == 1) {
+				// parsing batches of trips from memory-mapped input file on multiple threads
+				new ParallelTripParser(parseThreads).parse(inputFile, tripCollection);
+			}
+			else {
+				// InputStream and JsonParser is being created in try-with-resources
+				try (InputStream is = new BufferedInputStream(new FileInputStream(inputFile)); 
+						JsonParser jsonParser = Json.createParser(is)) {
+					
+					// streaming trips from input file into tripCollection, one trip at a time
+					conv.jsonParserToTrips(jsonParser, tripCollection, shardIndex, shardCount);
+				}
+			}
+		}
+		catch (FileNotFoundException e) {
+			System.out.println("Input file " + inputFile.getPath() + " not found!");
+			System.exit(2);
+		} catch (IOException e1) {
+			e1.printStackTrace();
+		}
+		RouteMetrics.addTrips(tripCollection.getTrips().size());
+		RouteMetrics.addBytesRead(inputFile.length());
+		RouteMetrics.end(parseEvent, tripCollection.getTrips().size(), inputFile.length());
+		return snapshot;
+	}
+	
+	/**
+	 * Follows trip logs in newline-delimited JSON format, counting routes of every appended trip as soon as it is read.
+	 * After every poll which reads new trips, most popular routes are written into a temporary file which atomically 
+	 * replaces output file, and offsets of logs are saved into state file. With a time window, output file is rewritten
+	 * after every poll, with most popular routes in the window ending at the time of the poll, and expired time buckets are dropped.
+	 * Following runs until the program is stopped.
+	 * If state cannot be read, the program exits with code 2, and if it cannot be saved, the program exits with code 4.
+	 * @param logs Followed logs
+	 * @param outputFile Output file
+	 * @param stateFile State file with offsets of logs and snapshot of read trips, or <code>null</code> if state is not saved
+	 * @param tripCollection Trip collection where read trips are added
+	 * @param conv Converter which reads trips and writes routes
+	 * @param routeQuery Query of counted routes
+	 * @param interval Number of seconds between polls
+	 * @param window Time window in milliseconds, or 0 if all trips are counted
+	 */
+	private static void follow(List<File> logs, File outputFile, File stateFile, TripCollection tripCollection, Converter conv, 
+			RouteQuery routeQuery, int interval, long window) {
+		TripLogFollower follower = new TripLogFollower(logs, tripCollection, conv, stateFile);
+		try {
+			if(follower.resume()) {
+				System.out.println("Resumed with " + tripCollection.getTrips().size() + " trips from " + stateFile.getPath());
+			}
+		}
+		catch (IOException e) {
+			System.out.println("State file " + stateFile.getPath() + " cannot be read: " + e.getMessage());
+			System.exit(2);
+		}
+		// trips from state are counted first, and every added trip updates best routes
+		tripCollection.setIncrementalQuery(routeQuery);
+		File temporaryFile = new File(outputFile.getAbsoluteFile().getParentFile(), outputFile.getName() + ".tmp");
+		boolean written = false;
+		while(true) {
+			try {
+				int added = follower.poll();
+				boolean changed = added > 0 || !written;
+				if(window > 0) {
+					// window moves with time, so its routes change even without new trips
+					Instant now = Instant.now();
+					tripCollection.expireTimeBuckets(now);
+					BestRoutes windowRoutes = tripCollection.findBestRoute(now.minusMillis(window), now);
+					writeOutput(temporaryFile, jsonGenerator -> conv.writeRoutes(jsonGenerator, windowRoutes.getRoutes(), windowRoutes.getPopularity()));
+					TripLogFollower.replace(temporaryFile, outputFile);
+				}
+				else if(changed) {
+					List<Route> bestRoutes = routeQuery.getDistanceOrder().sort(tripCollection.findBestRoute());
+					int maxRoutePopularity = tripCollection.getMaxRoutePopularity();
+					writeOutput(temporaryFile, jsonGenerator -> conv.writeRoutes(jsonGenerator, bestRoutes, maxRoutePopularity));
+					TripLogFollower.replace(temporaryFile, outputFile);
+				}
+				if(changed) {
+					follower.checkpoint();
+					written = true;
+					printMetrics();
+				}
+				Thread.sleep(interval * 1000L);
+			}
+			catch (IOException e) {
+				System.out.println("Trip logs cannot be followed: " + e.getMessage());
+				System.exit(4);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Counts routes of JSON input file in a pipeline of overlapping stages, and places them into trip collection.
+	 * Number of threads of each stage is given by <code>--pipeline=convert,enumerate,count</code> option
+	 * (all available processors for every stage by default), and size of queues between stages 
+	 * by <code>--queue-capacity</code> option. If input file is not found, the program exits with code 2.
+	 * @param inputFile Input file
+	 * @param tripCollection Trip collection where counted routes are placed
+	 * @param routeQuery Query of counted routes
+	 * @param options Found options
+	 * @return <code>false</code> if input file is a snapshot, which is not read in a pipeline
+	 */
+	private static boolean countInPipeline(File inputFile, TripCollection tripCollection, RouteQuery routeQuery, Map<String, String> options) {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int[] threads = {processors, processors, processors};
+		String value = options.get("pipeline");
+		if(!value.isEmpty()) {
+			String[] parts = value.split(",");
+			for(int i = 0; i < parts.length && i < threads.length; i++) {
+				threads[i] = Integer.parseInt(parts[i].trim());
+			}
+		}
+		TripPipeline tripPipeline = new TripPipeline(threads[0], threads[1], threads[2], intOption(options, "queue-capacity", 16));
+		try {
+			if(TripSnapshot.isSnapshot(inputFile)) {
+				return false;
+			}
+			try (InputStream is = new FileInputStream(inputFile)) {
+				tripPipeline.countRoutes(is, tripCollection, routeQuery);
+			}
+		}
+		catch (FileNotFoundException e) {
+			System.out.println("Input file " + inputFile.getPath() + " not found!");
+			System.exit(2);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		return true;
+	}
+	
+	/**
+	 * Merges partial counts of all shards and writes most popular routes into output file.
+	 * Result is the same as when all trips are counted in one process for the query of partial files.
+	 * If partial files cannot be merged, the program exits with code 2.
+	 * @param partialFiles Partial count files, one for each shard
+	 * @param outputFile Output file
+	 * @param includeDistance If travel distance of every route is written into output file
+	 */
+	private static void mergePartialCounts(List<File> partialFiles, File outputFile, boolean includeDistance) {
+		DestinationRegistry destinationRegistry = new DestinationRegistry();
+		TripCollection tripCollection = new TripCollection(destinationRegistry);
+		RouteQuery routeQuery = null;
+		try {
+			routeQuery = PartialCounts.merge(partialFiles, tripCollection);
+		}
+		catch (IOException e) {
+			System.out.println("Partial count files cannot be merged: " + e.getMessage());
+			System.exit(2);
+		}
+		List<Route> bestRoutes = routeQuery.getDistanceOrder().sort(tripCollection.findBestRoute());
+		int maxRoutePopularity = tripCollection.getMaxRoutePopularity();
+		Converter conv = new Converter(destinationRegistry);
+		conv.setIncludeDistance(includeDistance);
+		writeOutput(outputFile, jsonGenerator -> conv.writeRoutes(jsonGenerator, bestRoutes, maxRoutePopularity));
+	}
+	
+	/**
+	 * Reads trips from input file, builds index of their routes and starts HTTP server which answers route queries. 
+	 * Server runs until the program is stopped.
+	 * @param inputFile Input file
+	 * @param port Port where server listens
+	 * @param cacheEntries Maximum number of cached query results
+	 * @param cacheBytes Maximum estimated size of cached query results in bytes
+	 */
+	private static void serve(File inputFile, int port, int cacheEntries, long cacheBytes) {
+		DestinationRegistry destinationRegistry = new DestinationRegistry();
+		TripCollection tripCollection = new TripCollection(destinationRegistry);
+		readTrips(inputFile, tripCollection, new Converter(destinationRegistry), 1);
+		RouteIndex routeIndex = new RouteIndex(tripCollection);
+		RouteServer routeServer = new RouteServer(routeIndex, cacheEntries, cacheBytes);
+		try {
+			routeServer.start(port);
+			System.out.println("Serving routes of " + routeIndex.getTripCount() + " trips on http://localhost:" 
+					+ routeServer.getPort() + "/routes" + (VirtualThreads.isSupported() ? " (virtual threads)" : ""));
+		}
+		catch (IOException e) {
+			System.out.println("Server cannot listen on port " + port + ": " + e.getMessage());
+			System.exit(3);
+		}
+	}
+	
+	/**
+	 * Prints summary of route metrics, if they are enabled.
+	 */
+	private static void printMetrics() {
+		if(RouteMetrics.isEnabled()) {
+			System.out.println(RouteMetrics.getInstance().summary());
+		}
+	}
+	
+	/**
+	 * Writes found routes into output file. Routes are streamed through JSON generator into buffered output stream,
+	 * so JSON objects of routes are never built in memory.
+	 * @param outputFile Output file
+	 * @param routesWriter Writer of found routes, which writes them as elements of <code>most_popular_routes</code> array
+	 */
+	private static void writeOutput(File outputFile, Consumer<JsonGenerator> routesWriter) {
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.WRITE);
 		// config Map is created for pretty printing.
 		Map<String, Boolean> config = new HashMap<>();
 		// Pretty printing feature is added.
 		config.put(JsonGenerator.PRETTY_PRINTING, true);
-		// PrintWriter and JsonWriter is being created in try-with-resources
-		try (PrintWriter pw = new PrintWriter(outputFile);
-				JsonWriter jsonWriter = Json.createWriterFactory(config).createWriter(pw)) {
-			// creating output JSON object
-			JsonObject jsonObject = Json.createObjectBuilder()
-					.add("most_popular_routes", conv.routesToJsonArray(bestRoutes, tripCollection.getMaxRoutePopularity()))
-					.build();
-			// writing result into output file
-			jsonWriter.writeObject(jsonObject);
-
+		// OutputStream and JsonGenerator is being created in try-with-resources
+		try (OutputStream os = new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16);
+				JsonGenerator jsonGenerator = Json.createGeneratorFactory(config).createGenerator(os)) {
+			// writing output JSON object, route by route
+			jsonGenerator.writeStartObject();
+			jsonGenerator.writeStartArray("most_popular_routes");
+			routesWriter.accept(jsonGenerator);
+			jsonGenerator.writeEnd();
+			jsonGenerator.writeEnd();
+		}
+		catch (FileNotFoundException e) {
+			System.out.println("Output file " + outputFile.getPath() + " not found!");
+		} catch (IOException e1) {
+			e1.printStackTrace();
+		}
+		RouteMetrics.addBytesWritten(outputFile.length());
+		RouteMetrics.end(event, 1, outputFile.length());
+	}
+	
+	/**
+	 * Reads route queries from query file. Query file is a JSON object with <code>queries</code> array,
+	 * whose elements are converted with {@link Converter#jsonObjectToRouteQuery(JsonObject)}.
+	 * If query file is not found, the program exits with code 2.
+	 * @param queryFile Query file
+	 * @param conv Converter which reads queries from JSON
+	 * @return List of queries
+	 */
+	private static List<RouteQuery> readQueries(File queryFile, Converter conv) {
+		List<RouteQuery> routeQueries = new ArrayList<>();
+		try (InputStream is = new BufferedInputStream(new FileInputStream(queryFile)); 
+				JsonReader jsonReader = Json.createReader(is)) {
+			for(JsonObject queryJsonObject : jsonReader.readObject().getJsonArray("queries").getValuesAs(JsonObject.class)) {
+				routeQueries.add(conv.jsonObjectToRouteQuery(queryJsonObject));
+			}
+		}
+		catch (FileNotFoundException e) {
+			System.out.println("Query file " + queryFile.getPath() + " not found!");
+			System.exit(2);
+		} catch (IOException e1) {
+			e1.printStackTrace();
+		}
+		return routeQueries;
+	}
+	
+	/**
+	 * Writes found routes of all queries into output file, as <code>results</code> array 
+	 * with the query and its most popular routes for each query.
+	 * @param outputFile Output file
+	 * @param routeQueries Answered queries
+	 * @param results Most popular routes of each query
+	 * @param conv Converter which writes queries and routes into JSON
+	 */
+	private static void writeBatchOutput(File outputFile, List<RouteQuery> routeQueries, List<BestRoutes> results, Converter conv) {
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.WRITE);
+		Map<String, Boolean> config = new HashMap<>();
+		config.put(JsonGenerator.PRETTY_PRINTING, true);
+		try (OutputStream os = new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16);
+				JsonGenerator jsonGenerator = Json.createGeneratorFactory(config).createGenerator(os)) {
+			jsonGenerator.writeStartObject();
+			jsonGenerator.writeStartArray("results");
+			for(int i = 0; i < routeQueries.size(); i++) {
+				jsonGenerator.writeStartObject();
+				conv.writeRouteQuery(jsonGenerator, routeQueries.get(i));
+				jsonGenerator.writeStartArray("most_popular_routes");
+				conv.writeRoutes(jsonGenerator, results.get(i).getRoutes(), results.get(i).getPopularity());
+				jsonGenerator.writeEnd();
+				jsonGenerator.writeEnd();
+			}
+			jsonGenerator.writeEnd();
+			jsonGenerator.writeEnd();
 		}
 		catch (FileNotFoundException e) {
-			System.out.println("Output file " + outputFilePath + " not found!");
+			System.out.println("Output file " + outputFile.getPath() + " not found!");
+		} catch (IOException e1) {
+			e1.printStackTrace();
+		}
+		RouteMetrics.addBytesWritten(outputFile.length());
+		RouteMetrics.end(event, routeQueries.size(), outputFile.length());
+	}
+	
+	/**
+	 * Compares estimated routes with exact popularity of routes and prints the accuracy of estimation.
+	 * @param tripCollection Trip collection whose routes are estimated
+	 * @param routeQuery Query which describes counted routes
+	 * @param routeEstimates Estimated routes
+	 */
+	private static void reportAccuracy(TripCollection tripCollection, RouteQuery routeQuery, List<RouteEstimate> routeEstimates) {
+		tripCollection.findAllRoutes(routeQuery);
+		Set<Route> exactTopRoutes = new HashSet<>();
+		for(RouteEstimate routeEstimate : tripCollection.findTopRoutes(routeEstimates.size())) {
+			exactTopRoutes.add(routeEstimate.getRoute());
+		}
+		int found = 0;
+		int withinError = 0;
+		long totalError = 0;
+		int maxError = 0;
+		for(RouteEstimate routeEstimate : routeEstimates) {
+			int error = routeEstimate.getPopularity() - tripCollection.getPopularity(routeEstimate.getRoute());
+			if(exactTopRoutes.contains(routeEstimate.getRoute())) {
+				found++;
+			}
+			if(error >= 0 && error <= routeEstimate.getMaxError()) {
+				withinError++;
+			}
+			totalError += error;
+			maxError = Math.max(maxError, error);
+		}
+		int estimated = Math.max(routeEstimates.size(), 1);
+		System.out.println("Compared with exact counting of " + tripCollection.getRouteCounter().size() + " routes: " 
+				+ found + " of " + routeEstimates.size() + " estimated routes are in exact top routes, "
+				+ "average overestimate " + ((double) totalError / estimated) + ", maximum overestimate " + maxError + ", " 
+				+ withinError + " estimates within reported error");
+	}
+	
+	/**
+	 * Returns integer value of an option.
+	 * @param options Map of options and their values
+	 * @param name Option name
+	 * @param defaultValue Value used when option is not given
+	 * @return Option value
+	 */
+	private static int intOption(Map<String, String> options, String name, int defaultValue) {
+		String value = options.get(name);
+		return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+	}
+	
+	/**
+	 * Returns number of threads which parse JSON input file, given by <code>--parallel-parse[=threads]</code> option.
+	 * @param options Found options
+	 * @return Number of threads, all available processors if option has no value, or 1 if option is not given
+	 */
+	private static int parseThreads(Map<String, String> options) {
+		if(!options.containsKey("parallel-parse")) {
+			return 1;
+		}
+		return intOption(options, "parallel-parse", Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Parses index of a shard and number of shards.
+	 * @param value Index of the shard and number of shards, separated by a slash
+	 * @return Array with index of the shard and number of shards
+	 * @throws NumberFormatException If value does not have two numbers or index is not less than number of shards
+	 */
+	static int[] parseShard(String value) {
+		String[] parts = value.split("/");
+		if(parts.length != 2) {
+			throw new NumberFormatException("Expected shard index and number of shards separated by a slash: " + value);
+		}
+		int[] shard = {Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim())};
+		if(shard[0] < 0 || shard[0] >= shard[1]) {
+			throw new NumberFormatException("Shard index has to be between 0 and number of shards minus 1: " + value);
+		}
+		return shard;
+	}
+	
+	/**
+	 * Parses duration of a time window.
+	 * @param value Number followed by unit: <code>d</code> for days, <code>h</code> for hours, 
+	 * 		<code>m</code> for minutes or <code>s</code> for seconds
+	 * @return Duration in milliseconds
+	 * @throws NumberFormatException If value is not a positive number with a unit
+	 */
+	static long parseWindow(String value) {
+		value = value.trim();
+		long unit;
+		switch(value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+		case 'd':
+			unit = 24 * 3600 * 1000L;
+			break;
+		case 'h':
+			unit = 3600 * 1000L;
+			break;
+		case 'm':
+			unit = 60 * 1000L;
+			break;
+		case 's':
+			unit = 1000L;
+			break;
+		default:
+			throw new NumberFormatException("Expected number of days, hours, minutes or seconds (for example 30d): " + value);
+		}
+		long window = Long.parseLong(value.substring(0, value.length() - 1).trim()) * unit;
+		if(window <= 0) {
+			throw new NumberFormatException("Time window has to be positive: " + value);
+		}
+		return window;
+	}
+	
+	/**
+	 * Creates area within a distance from a point.
+	 * @param value Latitude and longitude of the point in degrees and distance in kilometers, separated by commas
+	 * @return Created area
+	 * @throws NumberFormatException If value does not have three numbers
+	 */
+	static Area parseNear(String value) {
+		double[] numbers = parseNumbers(value, 3);
+		return new CircleArea(numbers[0], numbers[1], numbers[2]);
+	}
+	
+	/**
+	 * Creates bounding box area.
+	 * @param value Minimum latitude, minimum longitude, maximum latitude and maximum longitude in degrees, separated by commas
+	 * @return Created area
+	 * @throws NumberFormatException If value does not have four numbers
+	 */
+	static Area parseBox(String value) {
+		double[] numbers = parseNumbers(value, 4);
+		return new BoxArea(numbers[0], numbers[1], numbers[2], numbers[3]);
+	}
+	
+	/**
+	 * Parses comma-separated numbers.
+	 * @param value Comma-separated numbers
+	 * @param count Expected number of numbers
+	 * @return Parsed numbers
+	 * @throws NumberFormatException If value does not have expected number of numbers
+	 */
+	private static double[] parseNumbers(String value, int count) {
+		String[] parts = value.split(",");
+		if(parts.length != count) {
+			throw new NumberFormatException("Expected " + count + " comma-separated numbers: " + value);
+		}
+		double[] numbers = new double[count];
+		for(int i = 0; i < count; i++) {
+			numbers[i] = Double.parseDouble(parts[i].trim());
+		}
+		return numbers;
+	}
+	
+	/**
+	 * Separates options (arguments in form <code>--name</code> or <code>--name=value</code>) from other arguments.
+	 * @param args Main program arguments
+	 * @param options Map where found options and their values are placed (empty string for options without value)
+	 * @return Arguments that are not options, in the original order
+	 */
+	static String[] parseOptions(String[] args, Map<String, String> options) {
+		List<String> arguments = new ArrayList<>();
+		for(String arg : args) {
+			if(arg.startsWith("--")) {
+				int separator = arg.indexOf('=');
+				if(separator < 0) {
+					options.put(arg.substring(2), "");
+				}
+				else {
+					options.put(arg.substring(2, separator), arg.substring(separator + 1));
+				}
+			}
+			else {
+				arguments.add(arg);
+			}
 		}
+		return arguments.toArray(new String[arguments.size()]);
 	}
 
 }
@@ -0,0 +1,257 @@
+package app;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import model.Area;
+import model.BestRoutes;
+import model.DistanceOrder;
+import model.RouteIndex;
+import model.RouteQuery;
+import model.RouteQueryCache;
+import util.Converter;
+import util.VirtualThreads;
+
+/**
+ * HTTP server which answers route queries from an index of routes, built once when the server starts. <br>
+ * Query <code>GET /routes?minLength=3&amp;destination=Sekspirova</code> takes the same parameters as the application:
+ * optional minimum route length (<code>minLength</code>, 2 stages if not given), optional maximum route length (<code>maxLength</code>,
+ * unlimited if not given) and any number of required destinations
+ * (<code>destination</code>, repeated for each destination). Query without <code>minLength</code>, <code>maxLength</code>
+ * and destinations finds routes of exactly 2 stages, the same as the application with only input and output file.
+ * Query with only <code>maxLength</code> finds routes of 2 to <code>maxLength</code> stages. Routes can be limited to routes passing near a point
+ * (<code>near=latitude,longitude,km</code>) or through a bounding box (<code>bbox=minLatitude,minLongitude,maxLatitude,maxLongitude</code>), and to routes not longer than <code>maxDistance</code> kilometers.
+ * Equally popular routes are ordered by travel distance with <code>distanceOrder=shortest</code> or <code>longest</code>,
+ * and the distance of every route is included in response with <code>distance=true</code>. Response is the same JSON that the application writes into output file.
+ * Results of repeated queries are answered from a cache, whose statistics are returned by <code>GET /stats</code>.
+ * Every request is handled on its own virtual thread, if the JVM supports them.
+ *
+ * @author Milan Sovic
+ */
+
+public class RouteServer {
+
+	/** Cache of query results in front of the index of routes */
+	private final RouteQueryCache routeQueryCache;
+	/** Converter of found routes to JSON */
+	private final Converter converter = new Converter();
+	/** Converter of found routes to JSON, with travel distance of every route */
+	private final Converter distanceConverter = new Converter();
+	/** Factory of pretty printing JSON generators */
+	private final JsonGeneratorFactory jsonGeneratorFactory;
+	/** Running HTTP server */
+	private HttpServer httpServer;
+	/** Executor of requests */
+	private ExecutorService executor;
+
+	/**
+	 * Creates server over an index of routes.
+	 * @param routeIndex Index of routes
+	 * @param cacheEntries Maximum number of cached query results
+	 * @param cacheBytes Maximum estimated size of cached query results in bytes
+	 */
+	public RouteServer(RouteIndex routeIndex, int cacheEntries, long cacheBytes) {
+		// index does not change, so the version of its trips is always the same
+		this.routeQueryCache = new RouteQueryCache(routeIndex::findBestRoute, () -> 0, cacheEntries, cacheBytes);
+		Map<String, Boolean> config = new HashMap<>();
+		config.put(JsonGenerator.PRETTY_PRINTING, true);
+		this.jsonGeneratorFactory = Json.createGeneratorFactory(config);
+		distanceConverter.setIncludeDistance(true);
+	}
+
+	/**
+	 * Starts server on a port.
+	 * @param port Port where server listens, 0 for any free port
+	 * @throws IOException If server cannot listen on a port
+	 */
+	public void start(int port) throws IOException {
+		httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+		httpServer.createContext("/routes", this::handleRoutes);
+		httpServer.createContext("/stats", this::handleStatistics);
+		executor = VirtualThreads.newThreadPerTaskExecutor();
+		httpServer.setExecutor(executor);
+		httpServer.start();
+	}
+
+	/**
+	 * Stops server, waiting at most a second for requests in progress.
+	 */
+	public void stop() {
+		httpServer.stop(1);
+		executor.shutdown();
+	}
+
+	/**
+	 * Port where server listens.
+	 * @return Port number
+	 */
+	public int getPort() {
+		return httpServer.getAddress().getPort();
+	}
+
+	/**
+	 * Answers route query.
+	 * @param exchange Request and its response
+	 */
+	private void handleRoutes(HttpExchange exchange) throws IOException {
+		try {
+			if(!exchange.getRequestMethod().equals("GET")) {
+				sendError(exchange, 405, "Only GET method is supported");
+				return;
+			}
+			RouteQuery routeQuery;
+			try {
+				routeQuery = parseQuery(exchange.getRequestURI().getRawQuery());
+			}
+			catch (NumberFormatException e) {
+				sendError(exchange, 400, "Invalid number: " + e.getMessage());
+				return;
+			}
+			catch (IllegalArgumentException e) {
+				sendError(exchange, 400, "Invalid parameter: " + e.getMessage());
+				return;
+			}
+			boolean includeDistance = parseParameters(exchange.getRequestURI().getRawQuery()).contains(new SimpleEntry<>("distance", "true"));
+			Converter routeConverter = includeDistance ? distanceConverter : converter;
+			BestRoutes bestRoutes = routeQueryCache.findBestRoute(routeQuery);
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+			exchange.sendResponseHeaders(200, 0);
+			// routes are streamed into response body, the same way as into output file
+			try (OutputStream os = new BufferedOutputStream(exchange.getResponseBody(), 1 << 16);
+					JsonGenerator jsonGenerator = jsonGeneratorFactory.createGenerator(os)) {
+				jsonGenerator.writeStartObject();
+				jsonGenerator.writeStartArray("most_popular_routes");
+				routeConverter.writeRoutes(jsonGenerator, bestRoutes.getRoutes(), bestRoutes.getPopularity());
+				jsonGenerator.writeEnd();
+				jsonGenerator.writeEnd();
+			}
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Answers with statistics of query result cache, which can be used for choosing cache size.
+	 * @param exchange Request and its response
+	 */
+	private void handleStatistics(HttpExchange exchange) throws IOException {
+		try {
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+			exchange.sendResponseHeaders(200, 0);
+			try (OutputStream os = exchange.getResponseBody();
+					JsonGenerator jsonGenerator = jsonGeneratorFactory.createGenerator(os)) {
+				jsonGenerator.writeStartObject();
+				jsonGenerator.writeStartObject("cache");
+				for(Map.Entry<String, Long> statistic : routeQueryCache.getStatistics().entrySet()) {
+					jsonGenerator.write(statistic.getKey(), statistic.getValue());
+				}
+				jsonGenerator.writeEnd();
+				jsonGenerator.writeEnd();
+			}
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Creates route query from query string of request.
+	 * @param rawQuery Query string, URL-encoded, or <code>null</code>
+	 * @return Route query
+	 */
+	static RouteQuery parseQuery(String rawQuery) {
+		String minLength = null;
+		String maxLength = null;
+		List<String> destinationNames = new ArrayList<>();
+		List<Area> areas = new ArrayList<>();
+		double maxDistance = Double.POSITIVE_INFINITY;
+		DistanceOrder distanceOrder = DistanceOrder.NONE;
+		for(Map.Entry<String, String> parameter : parseParameters(rawQuery)) {
+			String name = parameter.getKey();
+			String value = parameter.getValue();
+			if(name.equals("minLength")) {
+				minLength = value;
+			}
+			else if(name.equals("maxLength")) {
+				maxLength = value;
+			}
+			else if(name.equals("destination")) {
+				destinationNames.add(value);
+			}
+			else if(name.equals("near")) {
+				areas.add(App.parseNear(value));
+			}
+			else if(name.equals("bbox")) {
+				areas.add(App.parseBox(value));
+			}
+			else if(name.equals("maxDistance")) {
+				maxDistance = Double.parseDouble(value);
+			}
+			else if(name.equals("distanceOrder")) {
+				distanceOrder = DistanceOrder.valueOf(value.toUpperCase());
+			}
+		}
+		// query is created the same way as from application arguments
+		RouteQuery routeQuery = minLength == null && destinationNames.isEmpty() ? new RouteQuery()
+				: new RouteQuery(minLength == null ? 2 : Integer.parseInt(minLength), destinationNames);
+		if(maxLength != null) {
+			routeQuery.setMaxLength(Integer.parseInt(maxLength));
+		}
+		routeQuery.getAreas().addAll(areas);
+		routeQuery.setMaxDistance(maxDistance);
+		routeQuery.setDistanceOrder(distanceOrder);
+		return routeQuery;
+	}
+
+	/**
+	 * Decodes parameters from query string of request.
+	 * @param rawQuery Query string, URL-encoded, or <code>null</code>
+	 * @return List of parameter names and values, in the order of query string (empty value for parameters without value)
+	 */
+	static List<Map.Entry<String, String>> parseParameters(String rawQuery) {
+		List<Map.Entry<String, String>> parameters = new ArrayList<>();
+		if(rawQuery != null) {
+			for(String parameter : rawQuery.split("&")) {
+				int separator = parameter.indexOf('=');
+				String name = URLDecoder.decode(separator < 0 ? parameter : parameter.substring(0, separator), StandardCharsets.UTF_8);
+				String value = separator < 0 ? "" : URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8);
+				parameters.add(new SimpleEntry<>(name, value));
+			}
+		}
+		return parameters;
+	}
+
+	/**
+	 * Sends error response with plain text message.
+	 * @param exchange Request and its response
+	 * @param status HTTP status code
+	 * @param message Error message
+	 */
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] body = message.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(body);
+		}
+	}
+
+}
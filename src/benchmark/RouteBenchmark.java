@@ -0,0 +1,300 @@
+package benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+
+import model.DestinationRegistry;
+import model.Route;
+import model.RouteQuery;
+import model.Trip;
+import model.TripCollection;
+import util.Converter;
+import util.ParallelTripParser;
+
+/**
+ * Micro benchmarks of the hot paths of finding most popular routes: ingest of trips, enumeration and counting of routes,
+ * selection of best routes and writing of output.
+ * Every benchmark is repeated for a fixed time in warmup and measurement iterations,
+ * and its throughput and allocation rate (measured by thread allocation counter) are printed.
+ * Trips are read from a trip file, or generated with {@link TripGenerator} if no file is given.
+ *
+ * @author Milan Sovic
+ */
+
+public class RouteBenchmark {
+
+	/** Operation measured by benchmark */
+	private interface Operation {
+		/**
+		 * Runs operation once.
+		 * @return Result of operation, which is consumed so the operation cannot be optimized away
+		 */
+		Object run() throws Exception;
+	}
+
+	/** Number of warmup iterations */
+	private int warmupIterations = 3;
+	/** Number of measurement iterations */
+	private int measurementIterations = 5;
+	/** Duration of one iteration in milliseconds */
+	private long iterationMillis = 1000;
+	/** Sum of hash codes of operation results */
+	private int sink;
+
+	/**
+	 * Benchmark start point (main program). Prints one line of results for every benchmark.
+	 * @param args Optional trip file location, followed by optional parameters in form <code>--name=value</code>:
+	 * <code>warmup</code> and <code>iterations</code> (number of iterations), <code>time</code> (duration of
+	 * iteration in milliseconds), <code>filter</code> (runs only benchmarks whose name contains it)
+	 * and <code>min-length</code> (minimum number of stages in counted routes).
+	 * Parameters of {@link TripGenerator} can be given when no trip file is given.
+	 */
+	public static void main(String[] args) throws Exception {
+
+		RouteBenchmark routeBenchmark = new RouteBenchmark();
+		TripGenerator tripGenerator = new TripGenerator();
+		String inputFilePath = null;
+		String filter = "";
+		int minLength = 3;
+		for(String arg : args) {
+			if(!arg.startsWith("--")) {
+				inputFilePath = arg;
+				continue;
+			}
+			int separator = arg.indexOf('=');
+			String name = arg.substring(2, separator);
+			String value = arg.substring(separator + 1);
+			switch(name) {
+			case "warmup":
+				routeBenchmark.warmupIterations = Integer.parseInt(value);
+				break;
+			case "iterations":
+				routeBenchmark.measurementIterations = Integer.parseInt(value);
+				break;
+			case "time":
+				routeBenchmark.iterationMillis = Long.parseLong(value);
+				break;
+			case "filter":
+				filter = value;
+				break;
+			case "min-length":
+				minLength = Integer.parseInt(value);
+				break;
+			case "trips":
+				tripGenerator.setTripCount(Integer.parseInt(value));
+				break;
+			case "max-destinations":
+				tripGenerator.setMaxDestinations(Integer.parseInt(value));
+				break;
+			case "destinations":
+				tripGenerator.setDestinationCount(Integer.parseInt(value));
+				break;
+			case "zipf":
+				tripGenerator.setZipfExponent(Double.parseDouble(value));
+				break;
+			case "seed":
+				tripGenerator.setSeed(Long.parseLong(value));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown parameter " + name);
+			}
+		}
+
+		byte[] input;
+		if(inputFilePath != null) {
+			input = Files.readAllBytes(Paths.get(inputFilePath));
+		}
+		else {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			tripGenerator.generate(os);
+			input = os.toByteArray();
+		}
+
+		Map<String, Operation> benchmarks = routeBenchmark.createBenchmarks(input, minLength);
+		System.out.println(String.format("%-36s %14s %14s %16s %14s",
+				"Benchmark", "ops/s", "ms/op", "bytes/op", "MB/s alloc"));
+		for(Map.Entry<String, Operation> benchmark : benchmarks.entrySet()) {
+			if(benchmark.getKey().contains(filter)) {
+				routeBenchmark.measure(benchmark.getKey(), benchmark.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Creates all benchmarks over the same trips.
+	 * @param input Trips in JSON format
+	 * @param minLength Minimum number of stages in counted routes
+	 * @return Map of benchmark names and measured operations, in the order of running
+	 */
+	private Map<String, Operation> createBenchmarks(byte[] input, int minLength) {
+
+		TripCollection tripCollection = readTrips(input);
+		List<Trip> trips = tripCollection.getTrips();
+		DestinationRegistry destinationRegistry = tripCollection.getDestinationRegistry();
+		// the first destination of the first trip is used as the required destination
+		String destinationName = destinationRegistry.getDestination(trips.get(0).getItinerary()[0]).getName();
+		RouteQuery routeQuery = new RouteQuery(minLength);
+		RouteQuery destinationQuery = new RouteQuery(minLength, destinationName);
+		tripCollection.findAllRoutes(routeQuery);
+		List<Route> bestRoutes = tripCollection.findBestRoute();
+		Converter converter = new Converter();
+
+		Map<String, Operation> benchmarks = new LinkedHashMap<>();
+		benchmarks.put("ingest.jsonParserToTrips", () -> readTrips(input));
+		benchmarks.put("ingest.parallelParse", () -> {
+			TripCollection readCollection = new TripCollection();
+			new ParallelTripParser(Runtime.getRuntime().availableProcessors()).parse(ByteBuffer.wrap(input), readCollection);
+			return readCollection;
+		});
+		benchmarks.put("ingest.jsonObjectToTrip", () -> {
+			List<Trip> readTrips = new ArrayList<>();
+			try (JsonReader jsonReader = Json.createReader(new ByteArrayInputStream(input))) {
+				for(JsonObject tripJsonObject : jsonReader.readObject().getJsonArray("trips").getValuesAs(JsonObject.class)) {
+					readTrips.add(converter.jsonObjectToTrip(tripJsonObject));
+				}
+			}
+			return readTrips;
+		});
+		benchmarks.put("enumerate.findRoutes", () -> {
+			int count = 0;
+			for(Trip trip : trips) {
+				count += trip.findRoutes().size();
+			}
+			return count;
+		});
+		benchmarks.put("enumerate.findRoutes(minLength)", () -> {
+			int count = 0;
+			for(Trip trip : trips) {
+				count += trip.findRoutes(minLength).size();
+			}
+			return count;
+		});
+		benchmarks.put("enumerate.findRoutes(destination)", () -> {
+			int count = 0;
+			for(Trip trip : trips) {
+				count += trip.findRoutes(minLength, destinationName).size();
+			}
+			return count;
+		});
+		benchmarks.put("enumerate.visitRoutes", () -> {
+			long[] hashes = new long[1];
+			for(Trip trip : trips) {
+				trip.visitRoutes(minLength, Integer.MAX_VALUE, (start, length, hash) -> hashes[0] += hash);
+			}
+			return hashes[0];
+		});
+		benchmarks.put("count.findAllRoutes", () -> {
+			tripCollection.findAllRoutes(routeQuery);
+			return tripCollection.getRouteCounter();
+		});
+		benchmarks.put("count.findAllRoutes(destination)", () -> {
+			tripCollection.findAllRoutes(destinationQuery);
+			return tripCollection.getRouteCounter();
+		});
+		benchmarks.put("best.findBestRoute", () -> {
+			tripCollection.findAllRoutes(routeQuery);
+			return tripCollection.findBestRoute();
+		});
+		benchmarks.put("best.suffixAutomaton", () -> {
+			TripCollection automatonCollection = new TripCollection(destinationRegistry);
+			automatonCollection.setTrips(trips);
+			return automatonCollection.findBestRoute(minLength, Integer.MAX_VALUE);
+		});
+		benchmarks.put("output.writeRoutes", () -> {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			Map<String, Boolean> config = new LinkedHashMap<>();
+			config.put(JsonGenerator.PRETTY_PRINTING, true);
+			try (JsonGenerator jsonGenerator = Json.createGeneratorFactory(config).createGenerator(os)) {
+				jsonGenerator.writeStartObject();
+				jsonGenerator.writeStartArray("most_popular_routes");
+				converter.writeRoutes(jsonGenerator, bestRoutes, tripCollection.getMaxRoutePopularity());
+				jsonGenerator.writeEnd();
+				jsonGenerator.writeEnd();
+			}
+			return os.size();
+		});
+		benchmarks.put("output.routesToJsonArray", () ->
+				converter.routesToJsonArray(bestRoutes, tripCollection.getMaxRoutePopularity()));
+		return benchmarks;
+	}
+
+	/**
+	 * Reads trips in JSON format into new trip collection.
+	 * @param input Trips in JSON format
+	 * @return Trip collection with read trips
+	 */
+	private static TripCollection readTrips(byte[] input) {
+		DestinationRegistry destinationRegistry = new DestinationRegistry();
+		TripCollection tripCollection = new TripCollection(destinationRegistry);
+		try (JsonParser jsonParser = Json.createParser(new ByteArrayInputStream(input))) {
+			new Converter(destinationRegistry).jsonParserToTrips(jsonParser, tripCollection);
+		}
+		return tripCollection;
+	}
+
+	/**
+	 * Runs warmup and measurement iterations of a benchmark, and prints its average throughput and allocation.
+	 * @param name Benchmark name
+	 * @param operation Measured operation
+	 */
+	private void measure(String name, Operation operation) throws Exception {
+		for(int iteration = 0; iteration < warmupIterations; iteration++) {
+			runIteration(operation);
+		}
+		long operations = 0;
+		long nanos = 0;
+		long allocatedBytes = 0;
+		for(int iteration = 0; iteration < measurementIterations; iteration++) {
+			long allocatedBefore = allocatedBytes();
+			long start = System.nanoTime();
+			operations += runIteration(operation);
+			nanos += System.nanoTime() - start;
+			allocatedBytes += allocatedBytes() - allocatedBefore;
+		}
+		double seconds = nanos / 1e9;
+		System.out.println(String.format("%-36s %14.2f %14.4f %16d %14.1f", name, operations / seconds,
+				seconds * 1e3 / operations, allocatedBytes / operations, allocatedBytes / seconds / (1 << 20)));
+	}
+
+	/**
+	 * Runs operation repeatedly for the duration of one iteration.
+	 * @param operation Measured operation
+	 * @return Number of operation runs
+	 */
+	private long runIteration(Operation operation) throws Exception {
+		long end = System.nanoTime() + iterationMillis * 1_000_000;
+		long operations = 0;
+		do {
+			sink += operation.run().hashCode();
+			operations++;
+		} while(System.nanoTime() < end);
+		return operations;
+	}
+
+	/**
+	 * Returns number of bytes allocated by the current thread, or 0 if the JVM does not measure allocation.
+	 * @return Allocated bytes
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+		if(threadMXBean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+}
@@ -0,0 +1,214 @@
+package benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.Random;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+/**
+ * Generator of synthetic trip files in the input format of the application.
+ * Destination popularity follows Zipf distribution, so few destinations appear in most of the trips,
+ * the same way as in real trip data. Generator is deterministic: equal parameters and seed give equal file.
+ *
+ * @author Milan Sovic
+ */
+
+public class TripGenerator {
+
+	/** Latitude of the center around which destinations are placed */
+	private static final double CENTER_LATITUDE = 45.2551;
+	/** Longitude of the center around which destinations are placed */
+	private static final double CENTER_LONGITUDE = 19.8451;
+	/** Country codes of tourists */
+	private static final String[] COUNTRIES = {"RS", "GB", "DE", "FR", "IT", "US", "HU", "AT"};
+
+	/** Number of generated trips */
+	private int tripCount = 10000;
+	/** Minimum number of destinations in a trip */
+	private int minDestinations = 2;
+	/** Maximum number of destinations in a trip */
+	private int maxDestinations = 12;
+	/** Number of distinct destinations */
+	private int destinationCount = 1000;
+	/** Exponent of Zipf distribution of destination popularity, 0 gives uniform distribution */
+	private double zipfExponent = 1.0;
+	/** Seed of random number generator */
+	private long seed = 42;
+
+	/** Cumulative probability of every destination, ordered from the most popular one */
+	private double[] cumulativeProbabilities;
+	/** Latitude of every destination */
+	private double[] latitudes;
+	/** Longitude of every destination */
+	private double[] longitudes;
+
+	/**
+	 * Generator start point (main program). Writes generated trips into output file.
+	 * @param args Output file location, followed by optional parameters in form <code>--name=value</code>:
+	 * <code>trips</code>, <code>min-destinations</code>, <code>max-destinations</code>, <code>destinations</code>,
+	 * <code>zipf</code> and <code>seed</code>.
+	 */
+	public static void main(String[] args) throws IOException {
+
+		TripGenerator tripGenerator = new TripGenerator();
+		String outputFilePath = null;
+		for(String arg : args) {
+			if(!arg.startsWith("--")) {
+				outputFilePath = arg;
+				continue;
+			}
+			int separator = arg.indexOf('=');
+			String name = arg.substring(2, separator);
+			String value = arg.substring(separator + 1);
+			switch(name) {
+			case "trips":
+				tripGenerator.setTripCount(Integer.parseInt(value));
+				break;
+			case "min-destinations":
+				tripGenerator.setMinDestinations(Integer.parseInt(value));
+				break;
+			case "max-destinations":
+				tripGenerator.setMaxDestinations(Integer.parseInt(value));
+				break;
+			case "destinations":
+				tripGenerator.setDestinationCount(Integer.parseInt(value));
+				break;
+			case "zipf":
+				tripGenerator.setZipfExponent(Double.parseDouble(value));
+				break;
+			case "seed":
+				tripGenerator.setSeed(Long.parseLong(value));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown parameter " + name);
+			}
+		}
+		if(outputFilePath == null) {
+			System.out.println("Specify output file!");
+			System.exit(1);
+		}
+
+		try (OutputStream os = new BufferedOutputStream(new FileOutputStream(outputFilePath), 1 << 16)) {
+			tripGenerator.generate(os);
+		}
+	}
+
+	/**
+	 * Writes generated trips as JSON into output stream.
+	 * @param outputStream Output stream, which is not closed
+	 */
+	public void generate(OutputStream outputStream) {
+		Random random = new Random(seed);
+		prepareDestinations(random);
+
+		JsonGenerator jsonGenerator = Json.createGenerator(outputStream);
+		jsonGenerator.writeStartObject();
+		jsonGenerator.writeStartArray("trips");
+		for(int trip = 0; trip < tripCount; trip++) {
+			jsonGenerator.writeStartObject();
+			jsonGenerator.writeStartObject("tourist")
+					.write("name", "Tourist " + trip)
+					.write("country_of_origin", COUNTRIES[random.nextInt(COUNTRIES.length)])
+					.writeEnd();
+			jsonGenerator.writeStartArray("destinations");
+			int length = minDestinations + random.nextInt(maxDestinations - minDestinations + 1);
+			for(int i = 0; i < length; i++) {
+				int destination = nextDestination(random);
+				jsonGenerator.writeStartObject()
+						.write("name", "Place " + destination + ", Novi Sad, Serbia")
+						.write("latitude", BigDecimal.valueOf(latitudes[destination]))
+						.write("longitude", BigDecimal.valueOf(longitudes[destination]))
+						.writeEnd();
+			}
+			jsonGenerator.writeEnd();
+			jsonGenerator.writeEnd();
+		}
+		jsonGenerator.writeEnd();
+		jsonGenerator.writeEnd();
+		jsonGenerator.flush();
+	}
+
+	/**
+	 * Calculates cumulative probabilities of Zipf distribution, and places destinations around the center.
+	 * @param random Random number generator
+	 */
+	private void prepareDestinations(Random random) {
+		cumulativeProbabilities = new double[destinationCount];
+		latitudes = new double[destinationCount];
+		longitudes = new double[destinationCount];
+		double sum = 0;
+		for(int rank = 0; rank < destinationCount; rank++) {
+			sum += 1 / Math.pow(rank + 1, zipfExponent);
+			cumulativeProbabilities[rank] = sum;
+			latitudes[rank] = CENTER_LATITUDE + (random.nextDouble() - 0.5) / 10;
+			longitudes[rank] = CENTER_LONGITUDE + (random.nextDouble() - 0.5) / 10;
+		}
+		for(int rank = 0; rank < destinationCount; rank++) {
+			cumulativeProbabilities[rank] /= sum;
+		}
+	}
+
+	/**
+	 * Chooses random destination according to Zipf distribution, by binary search of cumulative probabilities.
+	 * @param random Random number generator
+	 * @return Rank of chosen destination
+	 */
+	private int nextDestination(Random random) {
+		double probability = random.nextDouble();
+		int low = 0;
+		int high = destinationCount - 1;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(cumulativeProbabilities[middle] < probability) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	public int getTripCount() {
+		return tripCount;
+	}
+	public void setTripCount(int tripCount) {
+		this.tripCount = tripCount;
+	}
+	public int getMinDestinations() {
+		return minDestinations;
+	}
+	public void setMinDestinations(int minDestinations) {
+		this.minDestinations = minDestinations;
+	}
+	public int getMaxDestinations() {
+		return maxDestinations;
+	}
+	public void setMaxDestinations(int maxDestinations) {
+		this.maxDestinations = maxDestinations;
+	}
+	public int getDestinationCount() {
+		return destinationCount;
+	}
+	public void setDestinationCount(int destinationCount) {
+		this.destinationCount = destinationCount;
+	}
+	public double getZipfExponent() {
+		return zipfExponent;
+	}
+	public void setZipfExponent(double zipfExponent) {
+		this.zipfExponent = zipfExponent;
+	}
+	public long getSeed() {
+		return seed;
+	}
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+}
@@ -0,0 +1,54 @@
+package model;
+
+/**
+ * Models a geographic area which a route has to pass through.
+ * Every area is enclosed in its bounding box, which is used for finding candidate destinations in {@link DestinationGrid},
+ * and only the candidates are checked exactly.
+ * 
+ * @author Milan Sovic
+ */
+
+public abstract class Area {
+	
+	/** Mean radius of the Earth in kilometers */
+	public static final double EARTH_RADIUS = 6371.0088;
+	
+	/**
+	 * Tells if the area contains a point.
+	 * @param latitude Latitude of the point in degrees
+	 * @param longitude Longitude of the point in degrees
+	 * @return If the point is inside of the area
+	 */
+	public abstract boolean contains(double latitude, double longitude);
+	
+	public abstract double getMinLatitude();
+	public abstract double getMaxLatitude();
+	public abstract double getMinLongitude();
+	public abstract double getMaxLongitude();
+	
+	/**
+	 * Tells if the area contains a destination.
+	 * @param destination Destination to check
+	 * @return If the destination is inside of the area
+	 */
+	public boolean contains(Destination destination) {
+		return contains(destination.getLatitude(), destination.getLongitude());
+	}
+	
+	/**
+	 * Calculates great-circle distance between two points with haversine formula.
+	 * @param latitude1 Latitude of the first point in degrees
+	 * @param longitude1 Longitude of the first point in degrees
+	 * @param latitude2 Latitude of the second point in degrees
+	 * @param longitude2 Longitude of the second point in degrees
+	 * @return Distance in kilometers
+	 */
+	public static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+		double sinLatitude = Math.sin(Math.toRadians(latitude2 - latitude1) / 2);
+		double sinLongitude = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+		double a = sinLatitude * sinLatitude 
+				+ Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * sinLongitude * sinLongitude;
+		return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+}
@@ -0,0 +1,42 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Models result of a route query: the most popular routes and their popularity.
+ * 
+ * @author Milan Sovic
+ */
+
+public class BestRoutes {
+
+	/** Most popular routes with maximum number of stages */
+	private List<Route> routes;
+	/** Popularity of found routes */
+	private int popularity;
+	
+	public BestRoutes() {
+		routes = new ArrayList<>();
+	}
+	
+	public BestRoutes(List<Route> routes, int popularity) {
+		super();
+		this.routes = routes;
+		this.popularity = popularity;
+	}
+
+	public List<Route> getRoutes() {
+		return routes;
+	}
+	public void setRoutes(List<Route> routes) {
+		this.routes = routes;
+	}
+	public int getPopularity() {
+		return popularity;
+	}
+	public void setPopularity(int popularity) {
+		this.popularity = popularity;
+	}
+	
+}
@@ -0,0 +1,80 @@
+package model;
+
+/**
+ * Models the area between two latitudes and two longitudes (bounding box).
+ * 
+ * @author Milan Sovic
+ */
+
+public class BoxArea extends Area {
+	
+	/** Southern border in degrees */
+	private final double minLatitude;
+	/** Western border in degrees */
+	private final double minLongitude;
+	/** Northern border in degrees */
+	private final double maxLatitude;
+	/** Eastern border in degrees */
+	private final double maxLongitude;
+	
+	/**
+	 * Creates bounding box.
+	 * @param minLatitude Southern border in degrees
+	 * @param minLongitude Western border in degrees
+	 * @param maxLatitude Northern border in degrees
+	 * @param maxLongitude Eastern border in degrees
+	 */
+	public BoxArea(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+		this.minLatitude = minLatitude;
+		this.minLongitude = minLongitude;
+		this.maxLatitude = maxLatitude;
+		this.maxLongitude = maxLongitude;
+	}
+
+	@Override
+	public boolean contains(double latitude, double longitude) {
+		return latitude >= minLatitude && latitude <= maxLatitude && longitude >= minLongitude && longitude <= maxLongitude;
+	}
+	
+	@Override
+	public double getMinLatitude() {
+		return minLatitude;
+	}
+	@Override
+	public double getMaxLatitude() {
+		return maxLatitude;
+	}
+	@Override
+	public double getMinLongitude() {
+		return minLongitude;
+	}
+	@Override
+	public double getMaxLongitude() {
+		return maxLongitude;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + Double.hashCode(minLatitude);
+		result = prime * result + Double.hashCode(minLongitude);
+		result = prime * result + Double.hashCode(maxLatitude);
+		result = prime * result + Double.hashCode(maxLongitude);
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		BoxArea other = (BoxArea) obj;
+		return Double.compare(minLatitude, other.minLatitude) == 0 && Double.compare(minLongitude, other.minLongitude) == 0
+				&& Double.compare(maxLatitude, other.maxLatitude) == 0 && Double.compare(maxLongitude, other.maxLongitude) == 0;
+	}
+	
+}
@@ -0,0 +1,91 @@
+package model;
+
+/**
+ * Models the area within a distance from a point.
+ * 
+ * @author Milan Sovic
+ */
+
+public class CircleArea extends Area {
+	
+	/** Latitude of the center in degrees */
+	private final double latitude;
+	/** Longitude of the center in degrees */
+	private final double longitude;
+	/** Radius in kilometers */
+	private final double radius;
+	/** Half of the bounding box height in degrees */
+	private final double latitudeDelta;
+	/** Half of the bounding box width in degrees, or 180 if the area is close to a pole */
+	private final double longitudeDelta;
+	
+	/**
+	 * Creates area within a distance from a point.
+	 * @param latitude Latitude of the center in degrees
+	 * @param longitude Longitude of the center in degrees
+	 * @param radius Radius in kilometers
+	 */
+	public CircleArea(double latitude, double longitude, double radius) {
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.radius = radius;
+		this.latitudeDelta = Math.toDegrees(radius / EARTH_RADIUS);
+		double cosLatitude = Math.cos(Math.toRadians(Math.min(Math.abs(latitude) + latitudeDelta, 90)));
+		this.longitudeDelta = cosLatitude < 1e-9 ? 180 : Math.min(180, latitudeDelta / cosLatitude);
+	}
+
+	@Override
+	public boolean contains(double latitude, double longitude) {
+		return distance(this.latitude, this.longitude, latitude, longitude) <= radius;
+	}
+	
+	@Override
+	public double getMinLatitude() {
+		return Math.max(-90, latitude - latitudeDelta);
+	}
+	@Override
+	public double getMaxLatitude() {
+		return Math.min(90, latitude + latitudeDelta);
+	}
+	@Override
+	public double getMinLongitude() {
+		return longitudeDelta >= 180 ? -180 : longitude - longitudeDelta;
+	}
+	@Override
+	public double getMaxLongitude() {
+		return longitudeDelta >= 180 ? 180 : longitude + longitudeDelta;
+	}
+	public double getLatitude() {
+		return latitude;
+	}
+	public double getLongitude() {
+		return longitude;
+	}
+	public double getRadius() {
+		return radius;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + Double.hashCode(latitude);
+		result = prime * result + Double.hashCode(longitude);
+		result = prime * result + Double.hashCode(radius);
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		CircleArea other = (CircleArea) obj;
+		return Double.compare(latitude, other.latitude) == 0 && Double.compare(longitude, other.longitude) == 0
+				&& Double.compare(radius, other.radius) == 0;
+	}
+	
+}
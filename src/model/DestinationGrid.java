@@ -0,0 +1,158 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spatial index of distinct destinations from a dictionary of destinations, as a uniform grid of latitude and longitude cells. <br>
+ * Destinations in an area are found by checking only the destinations in grid cells which overlap the bounding box of the area,
+ * so each distinct destination is checked at most once per query, and routes are then filtered by destination ids
+ * the same way as by destination names.
+ *
+ * @author Milan Sovic
+ */
+
+public class DestinationGrid {
+
+	/** Default size of grid cell in degrees, about 1 km of latitude */
+	public static final double DEFAULT_CELL_SIZE = 0.01;
+
+	/** Dictionary of indexed destinations */
+	private final DestinationRegistry destinationRegistry;
+	/** Size of grid cell in degrees */
+	private final double cellSize;
+	/** Ids of destinations in each cell, keyed by latitude cell in upper and longitude cell in lower 32 bits */
+	private final Map<Long, int[]> cells = new HashMap<>();
+	/** Number of destinations in each cell */
+	private final Map<Long, Integer> cellSizes = new HashMap<>();
+	/** Number of indexed destinations */
+	private int indexedDestinations;
+
+	/**
+	 * Creates grid with default cell size over all destinations of a dictionary.
+	 * @param destinationRegistry Dictionary of destinations
+	 */
+	public DestinationGrid(DestinationRegistry destinationRegistry) {
+		this(destinationRegistry, DEFAULT_CELL_SIZE);
+	}
+
+	/**
+	 * Creates grid over all destinations of a dictionary.
+	 * @param destinationRegistry Dictionary of destinations
+	 * @param cellSize Size of grid cell in degrees
+	 */
+	public DestinationGrid(DestinationRegistry destinationRegistry, double cellSize) {
+		this.destinationRegistry = destinationRegistry;
+		this.cellSize = cellSize;
+		update();
+	}
+
+	/**
+	 * Adds destinations registered in the dictionary since the grid is created or last updated.
+	 */
+	public void update() {
+		for(; indexedDestinations < destinationRegistry.size(); indexedDestinations++) {
+			Destination destination = destinationRegistry.getDestination(indexedDestinations);
+			Long key = key(cell(destination.getLatitude()), cell(destination.getLongitude()));
+			int[] ids = cells.get(key);
+			int size = cellSizes.getOrDefault(key, 0);
+			if(ids == null || ids.length == size) {
+				ids = ids == null ? new int[4] : Arrays.copyOf(ids, size * 2);
+				cells.put(key, ids);
+			}
+			ids[size] = indexedDestinations;
+			cellSizes.put(key, size + 1);
+		}
+	}
+
+	/**
+	 * Finds ids of all indexed destinations inside of an area.
+	 * @param area Area where destinations are looked up
+	 * @return Set of destination ids
+	 */
+	public BitSet findDestinations(Area area) {
+		BitSet found = new BitSet(indexedDestinations);
+		long minLatitudeCell = cell(area.getMinLatitude());
+		long maxLatitudeCell = cell(area.getMaxLatitude());
+		long minLongitudeCell = cell(area.getMinLongitude());
+		long maxLongitudeCell = cell(area.getMaxLongitude());
+		long areaCells = (maxLatitudeCell - minLatitudeCell + 1) * (maxLongitudeCell - minLongitudeCell + 1);
+		if(areaCells > cells.size() || area.getMinLongitude() < -180 || area.getMaxLongitude() > 180) {
+			// area covers more cells than there are non-empty cells, or it crosses the antimeridian
+			for(Map.Entry<Long, int[]> cell : cells.entrySet()) {
+				addDestinations(found, area, cell.getValue(), cellSizes.get(cell.getKey()));
+			}
+			return found;
+		}
+		for(long latitudeCell = minLatitudeCell; latitudeCell <= maxLatitudeCell; latitudeCell++) {
+			for(long longitudeCell = minLongitudeCell; longitudeCell <= maxLongitudeCell; longitudeCell++) {
+				Long key = key(latitudeCell, longitudeCell);
+				int[] ids = cells.get(key);
+				if(ids != null) {
+					addDestinations(found, area, ids, cellSizes.get(key));
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Finds ids of destinations required by a query: for each destination name the destinations whose name contains it,
+	 * and for each area the destinations inside of it. Grid is updated with newly registered destinations first.
+	 * @param routeQuery Query with required destination names and areas
+	 * @return List with a set of matching destination ids for each name and each area
+	 */
+	public List<BitSet> findRequiredDestinations(RouteQuery routeQuery) {
+		List<BitSet> requiredDestinations = new ArrayList<>(destinationRegistry.findDestinations(routeQuery.getDestinationNames()));
+		if(!routeQuery.getAreas().isEmpty()) {
+			update();
+			for(Area area : routeQuery.getAreas()) {
+				requiredDestinations.add(findDestinations(area));
+			}
+		}
+		return requiredDestinations;
+	}
+
+	/**
+	 * Adds destinations of a cell which are inside of an area.
+	 * @param found Set of found destination ids
+	 * @param area Area where destinations are looked up
+	 * @param ids Ids of destinations in cell
+	 * @param size Number of destinations in cell
+	 */
+	private void addDestinations(BitSet found, Area area, int[] ids, int size) {
+		for(int i = 0; i < size; i++) {
+			if(area.contains(destinationRegistry.getDestination(ids[i]))) {
+				found.set(ids[i]);
+			}
+		}
+	}
+
+	/**
+	 * Calculates index of the cell which contains a coordinate.
+	 * @param degrees Latitude or longitude
+	 * @return Cell index
+	 */
+	private long cell(double degrees) {
+		return (long) Math.floor(degrees / cellSize);
+	}
+
+	/**
+	 * Creates key of a cell.
+	 * @param latitudeCell Latitude cell index
+	 * @param longitudeCell Longitude cell index
+	 * @return Cell key
+	 */
+	private static Long key(long latitudeCell, long longitudeCell) {
+		return latitudeCell << 32 | (longitudeCell & 0xffffffffL);
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+}
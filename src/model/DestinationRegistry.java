@@ -0,0 +1,150 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+/**
+ * Dictionary of distinct destinations. Every distinct destination (name, latitude and longitude)
+ * is assigned a dense int id, and all equal destinations are replaced with one shared instance.
+ * Trips registered in the dictionary expose their itinerary as an array of destination ids.
+ * Distances of stages between registered destinations are cached, so each distinct stage is calculated only once.
+ * 
+ * @author Milan Sovic
+ */
+
+public class DestinationRegistry {
+
+	/** Ids of registered destinations */
+	private Map<Destination, Integer> ids;
+	/** Registered destinations, indexed by their ids */
+	private List<Destination> destinations;
+	/** Distances of distinct stages between registered destinations */
+	private StageDistances stageDistances;
+	
+	public DestinationRegistry() {
+		ids = new HashMap<>();
+		destinations = new ArrayList<>();
+		stageDistances = new StageDistances(this);
+	}
+	
+	/**
+	 * Registers destination if it is not already registered.
+	 * @param destination Destination to register
+	 * @return Id of the destination
+	 */
+	public int register(Destination destination) {
+		Integer id = ids.get(destination);
+		if(id == null) {
+			id = destinations.size();
+			ids.put(destination, id);
+			destinations.add(destination);
+		}
+		return id;
+	}
+	
+	/**
+	 * Registers all trip destinations, replaces them with shared instances 
+	 * and sets trip itinerary to the ids of its destinations.
+	 * Trip registered in one registry is registered again when used with another one.
+	 * @param trip Trip to register
+	 */
+	public void register(Trip trip) {
+		int[] itinerary = new int[trip.getDestinations().size()];
+		ListIterator<Destination> listIterator = trip.getDestinations().listIterator();
+		int position = 0;
+		while (listIterator.hasNext()) {
+			int id = register(listIterator.next());
+			listIterator.set(destinations.get(id));
+			itinerary[position++] = id;
+		}
+		trip.setItinerary(itinerary);
+		trip.setDestinationRegistry(this);
+	}
+	
+	/**
+	 * Finds ids of all destinations whose name contains <code>destinationName</code>.
+	 * Name is checked only once for every distinct destination.
+	 * @param destinationName Name of required destination
+	 * @return Set of matching destination ids
+	 */
+	public BitSet findDestinations(String destinationName) {
+		BitSet found = new BitSet(destinations.size());
+		for(int id = 0; id < destinations.size(); id++) {
+			if(destinations.get(id).getName().contains(destinationName)) {
+				found.set(id);
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * Finds ids of destinations for each of the required destination names.
+	 * @param destinationNames Names of required destinations
+	 * @return List with a set of matching destination ids for each name
+	 */
+	public List<BitSet> findDestinations(List<String> destinationNames) {
+		List<BitSet> found = new ArrayList<>(destinationNames.size());
+		for(String destinationName : destinationNames) {
+			found.add(findDestinations(destinationName));
+		}
+		return found;
+	}
+	
+	/**
+	 * Creates route from its key.
+	 * @param routeKey Route key with ids of route destinations
+	 * @return Route with stages between destinations from a key
+	 */
+	public Route toRoute(RouteKey routeKey) {
+		Route route = new Route();
+		int[] destinationIds = routeKey.getDestinationIds();
+		for(int i = 1; i < destinationIds.length; i++) {
+			route.addStage(new Stage(destinations.get(destinationIds[i - 1]), destinations.get(destinationIds[i])));
+		}
+		return route;
+	}
+	
+	/**
+	 * Creates key of a route, registering its destinations.
+	 * @param route Route with stages between destinations
+	 * @return Route key with ids of route destinations
+	 */
+	public RouteKey toRouteKey(Route route) {
+		int[] destinationIds = new int[route.getStages().size() + 1];
+		int position = 0;
+		for(Stage stage : route.getStages()) {
+			if(position == 0) {
+				destinationIds[position++] = register(stage.getStartDestination());
+			}
+			destinationIds[position++] = register(stage.getEndDestination());
+		}
+		return new RouteKey(destinationIds);
+	}
+	
+	/**
+	 * Returns distance of a stage between registered destinations, from the cache of stage distances.
+	 * @param startId Id of the stage start destination
+	 * @param endId Id of the stage end destination
+	 * @return Distance in kilometers
+	 */
+	public double getStageDistance(int startId, int endId) {
+		return stageDistances.getDistance(startId, endId);
+	}
+	
+	public StageDistances getStageDistances() {
+		return stageDistances;
+	}
+	
+	public Destination getDestination(int id) {
+		return destinations.get(id);
+	}
+	
+	public int size() {
+		return destinations.size();
+	}
+	
+}
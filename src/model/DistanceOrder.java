@@ -0,0 +1,37 @@
+package model;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Order of equally popular routes by their total travel distance.
+ * Routes with the same distance keep the order of their first appearance.
+ *
+ * @author Milan Sovic
+ */
+
+public enum DistanceOrder {
+
+	/** Routes are kept in the order of their first appearance */
+	NONE,
+	/** Shortest routes come first */
+	SHORTEST,
+	/** Longest routes come first */
+	LONGEST;
+
+	/**
+	 * Sorts routes by their distance. Sort is stable, so routes with the same distance keep their order.
+	 * @param routes Equally popular routes, in the order of their first appearance
+	 * @return The same list, sorted
+	 */
+	public List<Route> sort(List<Route> routes) {
+		if(this == SHORTEST) {
+			routes.sort(Comparator.comparingDouble(Route::getDistance));
+		}
+		else if(this == LONGEST) {
+			routes.sort(Comparator.comparingDouble(Route::getDistance).reversed());
+		}
+		return routes;
+	}
+
+}
@@ -0,0 +1,471 @@
+package model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Counts popularity of routes with bounded memory, spilling counted routes to disk. <br>
+ * Routes are counted in memory with {@link RouteCounter} until its estimated size reaches the memory budget.
+ * Then counted routes are sorted by their destination ids and written into a sorted run file, and counting continues
+ * with an empty counter. At the end, runs are merged with a k-way merge, which adds popularity of equal routes
+ * from different runs, so every route gets its exact popularity while only one route of each run is in memory.
+ * At most {@link #MAX_FAN_IN} runs are merged at once. If there are more runs, groups of the oldest runs are first
+ * merged into longer runs, until all remaining runs can be merged in the last pass.
+ * Runs are written and read sequentially with file channels, and their buffers are counted in the memory budget,
+ * so buffers get smaller and fewer runs are merged at once when the budget is small.
+ * Budget is checked only between trips,
+ * so routes of one trip are always in the same run and routes counted once per trip are still counted once.
+ *
+ * @author Milan Sovic
+ */
+
+public class ExternalRouteCounter {
+
+	/** Maximum number of runs merged at once */
+	private static final int MAX_FAN_IN = 64;
+	/** Minimum size of the buffer of a run file in bytes */
+	private static final int MIN_BUFFER_SIZE = 1 << 13;
+	/** Maximum size of the buffer of a run file in bytes */
+	private static final int MAX_BUFFER_SIZE = 1 << 18;
+
+	/** Directory where run files are written */
+	private final File directory;
+	/** Maximum estimated size of in-memory counter and buffers of run files in bytes */
+	private final long memoryBudget;
+	/** Size of the buffer of every run file in bytes */
+	private final int bufferSize;
+	/** Number of runs merged at once, so that their buffers and the buffer of merged run fit in the memory budget */
+	private final int fanIn;
+	/** Buffer of the run which is written, enlarged if a route does not fit in it */
+	private ByteBuffer writeBuffer;
+	/** Counter of routes which are not yet written into a run */
+	private RouteCounter routeCounter = new RouteCounter();
+	/** Written run files */
+	private final List<Path> runs = new ArrayList<>();
+	/** Number of written bytes of all runs */
+	private long spilledBytes;
+
+	/**
+	 * Creates external counter.
+	 * @param directory Directory where run files are written
+	 * @param memoryBudget Maximum estimated size of in-memory counter and buffers of run files in bytes
+	 */
+	public ExternalRouteCounter(File directory, long memoryBudget) {
+		this.directory = directory;
+		this.memoryBudget = memoryBudget;
+		// every merged run and the merged run have one buffer
+		this.bufferSize = (int) Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, memoryBudget / (MAX_FAN_IN + 1)));
+		this.fanIn = (int) Math.max(2, Math.min(MAX_FAN_IN, memoryBudget / bufferSize - 1));
+		this.writeBuffer = ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	/**
+	 * Returns counter where routes of the next trip are counted.
+	 * @return In-memory counter
+	 */
+	public RouteCounter getRouteCounter() {
+		return routeCounter;
+	}
+
+	/**
+	 * Ends counting of a trip, writing counted routes into a new run if they exceed the memory budget.
+	 * Budget also includes indexes of routes sorted when they are written, and the buffer of run file.
+	 */
+	public void endTrip() {
+		if(routeCounter.getSizeInBytes() + (long) Integer.BYTES * routeCounter.size() + bufferSize > memoryBudget) {
+			spill();
+		}
+	}
+
+	/**
+	 * Writes routes of in-memory counter into a new sorted run and empties the counter.
+	 * Every route is written as its number of stages, destination ids, popularity, and trip and position of its first appearance.
+	 */
+	public void spill() {
+		if(routeCounter.size() == 0) {
+			return;
+		}
+		RouteCounter counter = routeCounter;
+		int[] order = new int[counter.size()];
+		for(int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		sort(counter, order, 0, order.length);
+		try {
+			Path run = createRun();
+			try (FileChannel channel = FileChannel.open(run, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				for(int index : order) {
+					writeRoute(channel, counter.getItinerary(index), counter.getOffset(index), counter.getLength(index),
+							counter.getCount(index), counter.getFirstTrip(index), counter.getStart(index));
+				}
+				spilledBytes += write(channel, writeBuffer);
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Routes cannot be written into " + directory, e);
+		}
+		routeCounter = new RouteCounter();
+	}
+
+	/**
+	 * Creates a new empty run file and adds it after all written runs.
+	 * @return Path of run file
+	 */
+	private Path createRun() throws IOException {
+		Path run = Files.createTempFile(directory.toPath(), "routes", ".run");
+		runs.add(run);
+		return run;
+	}
+
+	/**
+	 * Adds a route into the buffer of written run, writing the buffer into the channel first if the route does not fit.
+	 * Buffer is enlarged only if the route is larger than the whole buffer.
+	 * @param channel Channel of run file
+	 * @param destinationIds Array with destination ids of the route
+	 * @param from Position of the first destination of the route in the array
+	 * @param length Number of stages in the route
+	 * @param count Popularity of the route
+	 * @param firstTrip Index of the trip where route is first found
+	 * @param start Position of the first route destination in the itinerary of the first trip
+	 */
+	private void writeRoute(FileChannel channel, int[] destinationIds, int from, int length, int count, int firstTrip, int start) throws IOException {
+		int bytes = Integer.BYTES * (length + 5);
+		if(writeBuffer.remaining() < bytes) {
+			spilledBytes += write(channel, writeBuffer);
+			if(writeBuffer.capacity() < bytes) {
+				writeBuffer = ByteBuffer.allocateDirect(Math.max(bytes, writeBuffer.capacity() * 2));
+			}
+		}
+		writeBuffer.putInt(length);
+		for(int position = from; position <= from + length; position++) {
+			writeBuffer.putInt(destinationIds[position]);
+		}
+		writeBuffer.putInt(count);
+		writeBuffer.putInt(firstTrip);
+		writeBuffer.putInt(start);
+	}
+
+	/**
+	 * Writes content of a buffer into a channel and clears the buffer.
+	 * @param channel Channel of run file
+	 * @param buffer Buffer with written routes
+	 * @return Number of written bytes
+	 */
+	private static int write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		int bytes = buffer.remaining();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+		return bytes;
+	}
+
+	/**
+	 * Sorts indexes of counted routes by destination ids of the routes, with quicksort on primitive indexes.
+	 * @param counter Counter of sorted routes
+	 * @param order Indexes of routes in the counter
+	 * @param from Position of the first sorted index (inclusive)
+	 * @param to Position of the last sorted index (exclusive)
+	 */
+	private static void sort(RouteCounter counter, int[] order, int from, int to) {
+		while(to - from > 16) {
+			int pivot = order[(from + to) >>> 1];
+			int left = from;
+			int right = to - 1;
+			while(left <= right) {
+				while(compare(counter, order[left], pivot) < 0) {
+					left++;
+				}
+				while(compare(counter, order[right], pivot) > 0) {
+					right--;
+				}
+				if(left <= right) {
+					int index = order[left];
+					order[left++] = order[right];
+					order[right--] = index;
+				}
+			}
+			// smaller part is sorted recursively, so recursion depth is logarithmic
+			if(right + 1 - from < to - left) {
+				sort(counter, order, from, right + 1);
+				from = left;
+			}
+			else {
+				sort(counter, order, left, to);
+				to = right + 1;
+			}
+		}
+		for(int i = from + 1; i < to; i++) {
+			int index = order[i];
+			int position = i;
+			while(position > from && compare(counter, order[position - 1], index) > 0) {
+				order[position] = order[position - 1];
+				position--;
+			}
+			order[position] = index;
+		}
+	}
+
+	/**
+	 * Compares two counted routes by number of stages, then by destination ids.
+	 * @param counter Counter of compared routes
+	 * @param index1 Index of the first route
+	 * @param index2 Index of the second route
+	 * @return Negative number, zero or positive number if the first route is before, equal to or after the second route
+	 */
+	private static int compare(RouteCounter counter, int index1, int index2) {
+		return compare(counter.getItinerary(index1), counter.getOffset(index1), counter.getLength(index1),
+				counter.getItinerary(index2), counter.getOffset(index2), counter.getLength(index2));
+	}
+
+	/**
+	 * Merges all runs and visits every distinct route with its exact popularity, in the order of destination ids.
+	 * Routes still in memory are written into the last run first. If there are more runs than can be merged at once,
+	 * groups of the oldest runs are merged into new runs first. Run files are deleted after merging.
+	 * @param routeVisitor Callback which is called for every distinct route
+	 */
+	public void merge(MergedRouteVisitor routeVisitor) {
+		spill();
+		try {
+			try {
+				while(runs.size() > fanIn) {
+					Path run = createRun();
+					List<Path> group = runs.subList(0, fanIn);
+					try (FileChannel channel = FileChannel.open(run, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+						mergeRuns(group, (destinationIds, count, firstTrip, start) ->
+								writeRoute(channel, destinationIds, 0, destinationIds.length - 1, count, firstTrip, start));
+						spilledBytes += write(channel, writeBuffer);
+					}
+					for(Path merged : group) {
+						Files.delete(merged);
+					}
+					group.clear();
+				}
+				mergeRuns(runs, routeVisitor::visitRoute);
+			}
+			finally {
+				for(Path run : runs) {
+					Files.deleteIfExists(run);
+				}
+				runs.clear();
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Routes cannot be read from " + directory, e);
+		}
+	}
+
+	/**
+	 * Merges a group of runs with a k-way merge and visits every distinct route of the group.
+	 * @param group Merged runs
+	 * @param routeVisitor Callback which is called for every distinct route
+	 */
+	private void mergeRuns(List<Path> group, RunVisitor routeVisitor) throws IOException {
+		PriorityQueue<RunReader> readers = new PriorityQueue<>((a, b) ->
+				compare(a.destinationIds, 0, a.length, b.destinationIds, 0, b.length));
+		try {
+			for(Path run : group) {
+				RunReader reader = new RunReader(run, bufferSize);
+				if(reader.next()) {
+					readers.add(reader);
+				}
+				else {
+					reader.close();
+				}
+			}
+			while(!readers.isEmpty()) {
+				RunReader reader = readers.poll();
+				int length = reader.length;
+				int[] destinationIds = Arrays.copyOf(reader.destinationIds, length + 1);
+				int count = reader.count;
+				int firstTrip = reader.firstTrip;
+				int start = reader.start;
+				advance(readers, reader);
+				// equal routes from other runs are at the top of the queue
+				while(!readers.isEmpty() && compare(readers.peek().destinationIds, 0, readers.peek().length, destinationIds, 0, length) == 0) {
+					RunReader equal = readers.poll();
+					count += equal.count;
+					if(equal.firstTrip < firstTrip || (equal.firstTrip == firstTrip && equal.start < start)) {
+						firstTrip = equal.firstTrip;
+						start = equal.start;
+					}
+					advance(readers, equal);
+				}
+				routeVisitor.visitRoute(destinationIds, count, firstTrip, start);
+			}
+		}
+		finally {
+			for(RunReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Moves a reader to its next route, returning it into the queue or closing it at the end of its run.
+	 * @param readers Queue of readers ordered by their current route
+	 * @param reader Reader to move
+	 */
+	private static void advance(PriorityQueue<RunReader> readers, RunReader reader) throws IOException {
+		if(reader.next()) {
+			readers.add(reader);
+		}
+		else {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Compares two routes by number of stages, then by destination ids.
+	 * @param destinationIds1 Destination ids of the first route
+	 * @param start1 Position of the first destination of the first route
+	 * @param length1 Number of stages in the first route
+	 * @param destinationIds2 Destination ids of the second route
+	 * @param start2 Position of the first destination of the second route
+	 * @param length2 Number of stages in the second route
+	 * @return Negative number, zero or positive number if the first route is before, equal to or after the second route
+	 */
+	private static int compare(int[] destinationIds1, int start1, int length1, int[] destinationIds2, int start2, int length2) {
+		if(length1 != length2) {
+			return Integer.compare(length1, length2);
+		}
+		return Arrays.compare(destinationIds1, start1, start1 + length1 + 1, destinationIds2, start2, start2 + length2 + 1);
+	}
+
+	/**
+	 * Number of written runs.
+	 * @return Run count
+	 */
+	public int getRunCount() {
+		return runs.size();
+	}
+
+	/**
+	 * Number of bytes written into all runs.
+	 * @return Spilled bytes
+	 */
+	public long getSpilledBytes() {
+		return spilledBytes;
+	}
+
+	/**
+	 * Callback which receives every merged route.
+	 */
+	@FunctionalInterface
+	public interface MergedRouteVisitor {
+
+		/**
+		 * Visits a distinct route.
+		 * @param destinationIds Destination ids of the route
+		 * @param count Exact route popularity
+		 * @param firstTrip Index of the trip where route is first found
+		 * @param start Position of the first route destination in the itinerary of the first trip
+		 */
+		void visitRoute(int[] destinationIds, int count, int firstTrip, int start);
+
+	}
+
+	/**
+	 * Callback which receives every route merged from a group of runs, possibly writing it into a new run.
+	 */
+	@FunctionalInterface
+	private interface RunVisitor {
+
+		void visitRoute(int[] destinationIds, int count, int firstTrip, int start) throws IOException;
+
+	}
+
+	/**
+	 * Sequential reader of a run file, positioned at one route.
+	 */
+	private static class RunReader {
+
+		/** Channel of run file */
+		private final FileChannel channel;
+		/** Buffer with read bytes of run */
+		private ByteBuffer buffer;
+		/** Destination ids of current route, followed by unused elements */
+		private int[] destinationIds = new int[16];
+		/** Number of stages in current route */
+		private int length;
+		/** Popularity of current route in run */
+		private int count;
+		/** Index of the trip where current route is first found */
+		private int firstTrip;
+		/** Position of the first route destination in itinerary */
+		private int start;
+
+		RunReader(Path run, int bufferSize) throws IOException {
+			channel = FileChannel.open(run, StandardOpenOption.READ);
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+			buffer.limit(0);
+		}
+
+		/**
+		 * Reads the next route of run.
+		 * @return <code>false</code> if there are no more routes
+		 */
+		boolean next() throws IOException {
+			if(!fill(4)) {
+				return false;
+			}
+			length = buffer.getInt();
+			if(!fill(4 * (length + 4))) {
+				throw new IOException("Run file is truncated");
+			}
+			if(destinationIds.length < length + 1) {
+				destinationIds = new int[Math.max(length + 1, destinationIds.length * 2)];
+			}
+			for(int position = 0; position <= length; position++) {
+				destinationIds[position] = buffer.getInt();
+			}
+			count = buffer.getInt();
+			firstTrip = buffer.getInt();
+			start = buffer.getInt();
+			return true;
+		}
+
+		/**
+		 * Reads more bytes from the channel until the buffer has at least <code>bytes</code> bytes.
+		 * Buffer is enlarged if it is smaller than <code>bytes</code>.
+		 * @param bytes Number of needed bytes
+		 * @return <code>false</code> if the end of run is reached before
+		 */
+		private boolean fill(int bytes) throws IOException {
+			if(buffer.remaining() >= bytes) {
+				return true;
+			}
+			if(buffer.capacity() < bytes) {
+				buffer = ByteBuffer.allocateDirect(Math.max(bytes, buffer.capacity() * 2)).put(buffer);
+			}
+			else {
+				buffer.compact();
+			}
+			while(buffer.position() < bytes) {
+				if(channel.read(buffer) < 0) {
+					buffer.flip();
+					return false;
+				}
+			}
+			buffer.flip();
+			return true;
+		}
+
+		void close() throws IOException {
+			channel.close();
+		}
+
+	}
+
+}
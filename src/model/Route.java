@@ -14,6 +14,8 @@ public class Route {
 
 	/** Route stages */
 	private LinkedList<Stage> stages;
+	/** Travel distance of the route in kilometers, <code>NaN</code> until it is known */
+	private double distance = Double.NaN;
 
 	public Route() {
 		stages = new LinkedList<>();
@@ -24,14 +26,41 @@ public class Route {
 	}
 	public void setStages(LinkedList<Stage> stages) {
 		this.stages = stages;
+		this.distance = Double.NaN;
 	}
 	
 	public void addStage(Stage stage) {
 		stages.addLast(stage);
+		distance = Double.NaN;
 	}
 	
 	public void addStages(LinkedList<Stage> stages) {
 		this.stages.addAll(stages);
+		distance = Double.NaN;
+	}
+	
+	/**
+	 * Returns total travel distance of the route. If distance is not set, it is calculated once
+	 * as the sum of great-circle distances of all stages, and kept for later calls.
+	 * @return Distance in kilometers
+	 */
+	public double getDistance() {
+		if(Double.isNaN(distance)) {
+			double sum = 0;
+			for(Stage stage : stages) {
+				sum += stage.getDistance();
+			}
+			distance = sum;
+		}
+		return distance;
+	}
+	/**
+	 * Sets travel distance of the route, for example the distance it is filtered by, 
+	 * so ordering and output use the same value.
+	 * @param distance Distance in kilometers
+	 */
+	public void setDistance(double distance) {
+		this.distance = distance;
 	}
 
 	@Override
@@ -0,0 +1,416 @@
+package model;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import util.RouteMetrics;
+
+/**
+ * Counts popularity of routes given by their position in trip itineraries.
+ * Routes are kept in an open-addressing hash table of primitive arrays. Each route is encoded by the itinerary
+ * where it was first found, its start position, number of stages and rolling hash, and its fields are stored
+ * in parallel arrays at the index of the route, so counting does not create any objects and popularity is increased in place.
+ * Hash table slots only hold route indexes, and table is resized without checking any route again.
+ * {@link Entry} objects are only views of counted routes, created when routes are iterated.
+ *
+ * @author Milan Sovic
+ */
+
+public class RouteCounter implements Iterable<RouteCounter.Entry> {
+
+	/** Initial number of table slots */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/** Hash table of counted routes, every slot holds route index increased by 1, or 0 if slot is empty */
+	private int[] table;
+	/** Rolling hashes of route destination ids, indexed by route index */
+	private long[] hashes;
+	/** Destination ids of the trips where routes are first found, or only destination ids of routes merged from other counts */
+	private int[][] itineraries;
+	/** Positions of the first route destination in kept destination ids */
+	private int[] offsets;
+	/** Positions of the first route destination in the itinerary of the trip where routes are first found */
+	private int[] starts;
+	/** Numbers of stages in routes */
+	private int[] lengths;
+	/** Route popularity */
+	private int[] counts;
+	/** Indexes of the trips where routes are first found */
+	private int[] firstTrips;
+	/** Indexes of the trips where routes are last counted */
+	private int[] lastTrips;
+	/** Number of counted distinct routes */
+	private int size;
+
+	public RouteCounter() {
+		table = new int[INITIAL_CAPACITY];
+		allocate(INITIAL_CAPACITY / 2);
+	}
+
+	/**
+	 * Increases popularity of a route by 1. 
+	 * Trips can be counted in any order, as long as all routes of one trip are counted one after another. 
+	 * If route is found in a trip before the trip of its first appearance, that trip becomes its first appearance.
+	 * @param trip Index of the trip where route is found
+	 * @param itinerary Destination ids of the trip
+	 * @param start Position of the first route destination in itinerary
+	 * @param length Number of stages in route
+	 * @param hash Rolling hash of route destination ids
+	 * @param oncePerTrip If route is counted only once for each trip
+	 * @return Index of the route, or -1 if route is already counted for the trip.
+	 */
+	public int add(int trip, int[] itinerary, int start, int length, long hash, boolean oncePerTrip) {
+		int index = find(itinerary, start, length, hash);
+		if(index < 0) {
+			return insert(hash, itinerary, start, length, 1, trip, start);
+		}
+		if(oncePerTrip && lastTrips[index] == trip) {
+			return -1;
+		}
+		counts[index]++;
+		lastTrips[index] = trip;
+		if(trip < firstTrips[index]) {
+			firstTrips[index] = trip;
+			itineraries[index] = itinerary;
+			offsets[index] = start;
+			starts[index] = start;
+		}
+		return index;
+	}
+
+	/**
+	 * Increases popularity of a route by <code>count</code>.
+	 * @param trip Index of the trip where route is first found
+	 * @param itinerary Destination ids of the trip
+	 * @param start Position of the first route destination in itinerary
+	 * @param length Number of stages in route
+	 * @param hash Rolling hash of route destination ids
+	 * @param count Popularity to add
+	 */
+	public void add(int trip, int[] itinerary, int start, int length, long hash, int count) {
+		add(trip, start, itinerary, start, length, hash, count);
+	}
+
+	/**
+	 * Increases popularity of a route by <code>count</code>, where destination ids of the route are not
+	 * necessarily in the itinerary of the trip where route is first found.
+	 * First appearance of the route is kept by its trip and position, so it is compared the same way for all routes.
+	 * @param trip Index of the trip where route is first found
+	 * @param start Position of the first route destination in the itinerary of the first trip
+	 * @param destinationIds Array with destination ids of the route
+	 * @param offset Position of the first route destination in <code>destinationIds</code>
+	 * @param length Number of stages in route
+	 * @param hash Rolling hash of route destination ids
+	 * @param count Popularity to add
+	 */
+	public void add(int trip, int start, int[] destinationIds, int offset, int length, long hash, int count) {
+		int index = find(destinationIds, offset, length, hash);
+		if(index < 0) {
+			insert(hash, destinationIds, offset, length, count, trip, start);
+		}
+		else {
+			counts[index] += count;
+			if(trip < firstTrips[index] || (trip == firstTrips[index] && start < starts[index])) {
+				firstTrips[index] = trip;
+				itineraries[index] = destinationIds;
+				offsets[index] = offset;
+				starts[index] = start;
+			}
+		}
+	}
+
+	/**
+	 * Adds popularity of all routes counted in other counter.
+	 * @param other Counter whose routes are added
+	 */
+	public void addAll(RouteCounter other) {
+		for(int i = 0; i < other.size; i++) {
+			add(other.firstTrips[i], other.starts[i], other.itineraries[i], other.offsets[i], other.lengths[i], other.hashes[i], other.counts[i]);
+		}
+	}
+
+	/**
+	 * Returns popularity of a route.
+	 * @param routeKey Key of the route
+	 * @return Route popularity, or 0 if route is not counted.
+	 */
+	public int getCount(RouteKey routeKey) {
+		int index = find(routeKey.getDestinationIds(), 0, routeKey.getLength(), routeKey.rollingHash());
+		return index < 0 ? 0 : counts[index];
+	}
+
+	/**
+	 * Returns popularity of a route given by its position in trip itinerary.
+	 * @param itinerary Destination ids of the trip
+	 * @param start Position of the first route destination in itinerary
+	 * @param length Number of stages in route
+	 * @param hash Rolling hash of route destination ids
+	 * @return Route popularity, or 0 if route is not counted.
+	 */
+	public int getCount(int[] itinerary, int start, int length, long hash) {
+		int index = find(itinerary, start, length, hash);
+		return index < 0 ? 0 : counts[index];
+	}
+
+	/**
+	 * Returns popularity of a counted route.
+	 * @param index Index of the route, from 0 to <code>size() - 1</code>
+	 * @return Route popularity
+	 */
+	public int getCount(int index) {
+		return counts[index];
+	}
+
+	/**
+	 * Returns number of stages of a counted route.
+	 * @param index Index of the route, from 0 to <code>size() - 1</code>
+	 * @return Number of stages in route
+	 */
+	public int getLength(int index) {
+		return lengths[index];
+	}
+
+	/**
+	 * Returns itinerary of the trip where a counted route is first found,
+	 * or only destination ids of the route if it is merged from other counts.
+	 * @param index Index of the route, from 0 to <code>size() - 1</code>
+	 * @return Array with destination ids of the route
+	 */
+	int[] getItinerary(int index) {
+		return itineraries[index];
+	}
+	
+	/**
+	 * Returns position of the first destination of a counted route in the array returned by {@link #getItinerary(int)}.
+	 * @param index Index of the route, from 0 to <code>size() - 1</code>
+	 * @return Offset of route destination ids
+	 */
+	int getOffset(int index) {
+		return offsets[index];
+	}
+	
+	/**
+	 * Returns position of the first destination of a counted route in the itinerary of the trip where it is first found.
+	 * @param index Index of the route, from 0 to <code>size() - 1</code>
+	 * @return Start position
+	 */
+	int getStart(int index) {
+		return starts[index];
+	}
+	
+	/**
+	 * Returns index of the trip where a counted route is first found.
+	 * @param index Index of the route, from 0 to <code>size() - 1</code>
+	 * @return Trip index
+	 */
+	int getFirstTrip(int index) {
+		return firstTrips[index];
+	}
+	
+	/**
+	 * Creates view of a counted route.
+	 * @param index Index of the route, from 0 to <code>size() - 1</code>
+	 * @return Entry of the route
+	 */
+	public Entry getEntry(int index) {
+		return new Entry(this, index);
+	}
+
+	/**
+	 * Finds index of a route.
+	 * @param itinerary Destination ids of the trip
+	 * @param start Position of the first route destination in itinerary
+	 * @param length Number of stages in route
+	 * @param hash Rolling hash of route destination ids
+	 * @return Index of the route, or -1 if route is not counted.
+	 */
+	private int find(int[] itinerary, int start, int length, long hash) {
+		int mask = table.length - 1;
+		for(int slot = slot(hash, mask); table[slot] != 0; slot = (slot + 1) & mask) {
+			int index = table[slot] - 1;
+			if(hashes[index] == hash && lengths[index] == length && Arrays.equals(itineraries[index], offsets[index],
+					offsets[index] + length + 1, itinerary, start, start + length + 1)) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Inserts new route, doubling the table and route arrays when the table gets half full.
+	 * @param hash Rolling hash of route destination ids
+	 * @param destinationIds Array with destination ids of the route
+	 * @param offset Position of the first route destination in <code>destinationIds</code>
+	 * @param length Number of stages in route
+	 * @param count Route popularity
+	 * @param trip Index of the trip where route is first found
+	 * @param start Position of the first route destination in the itinerary of the first trip
+	 * @return Index of the route
+	 */
+	private int insert(long hash, int[] destinationIds, int offset, int length, int count, int trip, int start) {
+		if(2 * (size + 1) > table.length) {
+			table = new int[table.length * 2];
+			allocate(table.length / 2);
+			for(int i = 0; i < size; i++) {
+				place(i);
+			}
+			RouteMetrics.mapResized();
+		}
+		int index = size++;
+		hashes[index] = hash;
+		itineraries[index] = destinationIds;
+		offsets[index] = offset;
+		starts[index] = start;
+		lengths[index] = length;
+		counts[index] = count;
+		firstTrips[index] = trip;
+		lastTrips[index] = trip;
+		place(index);
+		return index;
+	}
+
+	/**
+	 * Allocates route arrays, keeping already counted routes.
+	 * @param capacity Maximum number of routes
+	 */
+	private void allocate(int capacity) {
+		if(hashes == null) {
+			hashes = new long[capacity];
+			itineraries = new int[capacity][];
+			offsets = new int[capacity];
+			starts = new int[capacity];
+			lengths = new int[capacity];
+			counts = new int[capacity];
+			firstTrips = new int[capacity];
+			lastTrips = new int[capacity];
+			return;
+		}
+		hashes = Arrays.copyOf(hashes, capacity);
+		itineraries = Arrays.copyOf(itineraries, capacity);
+		offsets = Arrays.copyOf(offsets, capacity);
+		starts = Arrays.copyOf(starts, capacity);
+		lengths = Arrays.copyOf(lengths, capacity);
+		counts = Arrays.copyOf(counts, capacity);
+		firstTrips = Arrays.copyOf(firstTrips, capacity);
+		lastTrips = Arrays.copyOf(lastTrips, capacity);
+	}
+
+	/**
+	 * Places route index into the first free slot.
+	 * @param index Index of the route
+	 */
+	private void place(int index) {
+		int mask = table.length - 1;
+		int slot = slot(hashes[index], mask);
+		while(table[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = index + 1;
+	}
+
+	/**
+	 * Calculates home slot of a route hash.
+	 * @param hash Rolling hash of route destination ids
+	 * @param mask Table size minus 1
+	 * @return Index of a slot
+	 */
+	private static int slot(long hash, int mask) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return (int) hash & mask;
+	}
+
+	/**
+	 * Number of counted distinct routes.
+	 * @return Counter size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Estimates memory used by the counter. Itineraries are shared with trips, so only references to them are counted.
+	 * @return Estimated size in bytes
+	 */
+	public long getSizeInBytes() {
+		return 4L * table.length + (8L + 4 + 4 * 6) * hashes.length;
+	}
+
+	/**
+	 * Iterates counted routes in the order they are first counted.
+	 */
+	@Override
+	public Iterator<Entry> iterator() {
+		return new Iterator<Entry>() {
+
+			/** Index of the next route */
+			private int index;
+
+			@Override
+			public boolean hasNext() {
+				return index < size;
+			}
+
+			@Override
+			public Entry next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return new Entry(RouteCounter.this, index++);
+			}
+		};
+	}
+
+	/**
+	 * View of a counted route and its popularity. View reads current values of the route from its counter.
+	 */
+	public static class Entry {
+
+		/** Counter of the route */
+		private final RouteCounter counter;
+		/** Index of the route in counter */
+		private final int index;
+
+		Entry(RouteCounter counter, int index) {
+			this.counter = counter;
+			this.index = index;
+		}
+
+		/**
+		 * Creates key of the counted route.
+		 * @return Route key
+		 */
+		public RouteKey getKey() {
+			return new RouteKey(counter.itineraries[index], counter.offsets[index], counter.lengths[index]);
+		}
+
+		public long getHash() {
+			return counter.hashes[index];
+		}
+		public int getLength() {
+			return counter.lengths[index];
+		}
+		public int getCount() {
+			return counter.counts[index];
+		}
+		public int getFirstTrip() {
+			return counter.firstTrips[index];
+		}
+		public int getStart() {
+			return counter.starts[index];
+		}
+		public int getIndex() {
+			return index;
+		}
+		int[] getItinerary() {
+			return counter.itineraries[index];
+		}
+		int getOffset() {
+			return counter.offsets[index];
+		}
+
+	}
+
+}
@@ -0,0 +1,47 @@
+package model;
+
+/**
+ * Models a route with estimated popularity. 
+ * Real popularity of the route is between <code>popularity - maxError</code> and <code>popularity</code>.
+ * 
+ * @author Milan Sovic
+ */
+
+public class RouteEstimate {
+
+	/** Estimated route */
+	private Route route;
+	/** Estimated route popularity, never lower than the real one */
+	private int popularity;
+	/** Maximum overestimate of route popularity */
+	private int maxError;
+	
+	public RouteEstimate() {}
+	
+	public RouteEstimate(Route route, int popularity, int maxError) {
+		super();
+		this.route = route;
+		this.popularity = popularity;
+		this.maxError = maxError;
+	}
+
+	public Route getRoute() {
+		return route;
+	}
+	public void setRoute(Route route) {
+		this.route = route;
+	}
+	public int getPopularity() {
+		return popularity;
+	}
+	public void setPopularity(int popularity) {
+		this.popularity = popularity;
+	}
+	public int getMaxError() {
+		return maxError;
+	}
+	public void setMaxError(int maxError) {
+		this.maxError = maxError;
+	}
+	
+}
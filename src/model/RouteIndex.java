@@ -0,0 +1,150 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Read-only index of routes in a collection of trips, built once for answering many route queries. <br>
+ * Queries without required destinations are answered from a suffix automaton over all itineraries,
+ * without counting routes. For queries with required destinations, only the trips which include 
+ * a destination from each of the required destinations are counted, and they are found in lists of trips of every destination.
+ * Destinations inside of required areas are found in a spatial index of destinations.
+ * Travel distances of all itinerary prefixes are calculated when the index is built, so routes are filtered by distance in constant time.
+ * Index does not change after it is built, so it can be queried from many threads at the same time.
+ * Results are the same as after {@link TripCollection#findAllRoutes(RouteQuery)} and {@link TripCollection#findBestRoute()}.
+ * 
+ * @author Milan Sovic
+ */
+
+public class RouteIndex {
+
+	/** Indexed trips */
+	private final List<Trip> trips;
+	/** Dictionary of destinations in indexed trips */
+	private final DestinationRegistry destinationRegistry;
+	/** Suffix automaton over itineraries of all trips */
+	private final SuffixAutomaton suffixAutomaton;
+	/** Indexes of trips which include each destination, in ascending order, indexed by destination id */
+	private final int[][] destinationTrips;
+	/** Spatial index of destinations in indexed trips */
+	private final DestinationGrid destinationGrid;
+	
+	/**
+	 * Builds index of routes in a collection of trips. Trips added to the collection later are not indexed.
+	 * @param tripCollection Collection of trips
+	 */
+	public RouteIndex(TripCollection tripCollection) {
+		trips = new ArrayList<>(tripCollection.getTrips());
+		destinationRegistry = tripCollection.getDestinationRegistry();
+		int[] tripCounts = new int[destinationRegistry.size()];
+		int[] lastTrips = new int[destinationRegistry.size()];
+		for(int i = 0; i < trips.size(); i++) {
+			// itinerary and its prefix hashes are prepared here, so queries only read them
+			int[] itinerary = tripCollection.getItinerary(i);
+			trips.get(i).getPrefixHashes();
+			trips.get(i).getPrefixDistances();
+			for(int destinationId : itinerary) {
+				if(tripCounts[destinationId] == 0 || lastTrips[destinationId] != i) {
+					tripCounts[destinationId]++;
+					lastTrips[destinationId] = i;
+				}
+			}
+		}
+		destinationTrips = new int[tripCounts.length][];
+		for(int id = 0; id < tripCounts.length; id++) {
+			destinationTrips[id] = new int[tripCounts[id]];
+			tripCounts[id] = 0;
+		}
+		for(int i = 0; i < trips.size(); i++) {
+			for(int destinationId : trips.get(i).getItinerary()) {
+				int[] tripIndexes = destinationTrips[destinationId];
+				if(tripCounts[destinationId] == 0 || tripIndexes[tripCounts[destinationId] - 1] != i) {
+					tripIndexes[tripCounts[destinationId]++] = i;
+				}
+			}
+		}
+		suffixAutomaton = new SuffixAutomaton(trips);
+		destinationGrid = new DestinationGrid(destinationRegistry);
+	}
+	
+	/**
+	 * Finds most popular routes described by a query.
+	 * @param routeQuery Query with minimum and maximum number of stages, optional required destinations and areas
+	 * 		and optional maximum travel distance
+	 * @return Most popular routes with maximum number of stages, in the order of their first appearance 
+	 * 		or in distance order of the query, and their popularity
+	 */
+	public BestRoutes findBestRoute(RouteQuery routeQuery) {
+		List<Route> bestRoutes = new ArrayList<>();
+		if(!routeQuery.hasRequiredDestinations() && !routeQuery.hasMaxDistance()) {
+			List<RouteKey> bestRouteKeys = new ArrayList<>();
+			int popularity = suffixAutomaton.findBestRoutes(routeQuery.getMinLength(), routeQuery.getMaxLength(), bestRouteKeys);
+			for(RouteKey routeKey : bestRouteKeys) {
+				bestRoutes.add(destinationRegistry.toRoute(routeKey));
+			}
+			return new BestRoutes(routeQuery.getDistanceOrder().sort(bestRoutes), popularity);
+		}
+		List<BitSet> requiredDestinations = new ArrayList<>(destinationRegistry.findDestinations(routeQuery.getDestinationNames()));
+		// grid is not updated here, because the index does not change after it is built
+		for(Area area : routeQuery.getAreas()) {
+			requiredDestinations.add(destinationGrid.findDestinations(area));
+		}
+		RouteCounter routeCounter = new RouteCounter();
+		boolean oncePerTrip = !requiredDestinations.isEmpty();
+		double maxDistance = routeQuery.getMaxDistance();
+		BitSet candidateTrips = oncePerTrip ? findTrips(requiredDestinations) : allTrips();
+		for(int i = candidateTrips.nextSetBit(0); i >= 0; i = candidateTrips.nextSetBit(i + 1)) {
+			int tripIndex = i;
+			Trip trip = trips.get(i);
+			int[] itinerary = trip.getItinerary();
+			trip.visitRoutes(routeQuery.getMinLength(), routeQuery.getMaxLength(), requiredDestinations, (start, length, hash) -> {
+				if(trip.getDistance(start, length) <= maxDistance) {
+					routeCounter.add(tripIndex, itinerary, start, length, hash, oncePerTrip);
+				}
+			});
+		}
+		List<RouteCounter.Entry> bestEntries = TripCollection.findBestEntries(routeCounter);
+		int popularity = bestEntries.isEmpty() ? 0 : bestEntries.get(0).getCount();
+		return new BestRoutes(routeQuery.getDistanceOrder().sort(TripCollection.toRoutes(bestEntries, destinationRegistry, trips)), popularity);
+	}
+	
+	/**
+	 * Finds trips which include a destination from each of the required destinations.
+	 * @param requiredDestinations Ids of required destinations, one set for each required destination
+	 * @return Set of trip indexes
+	 */
+	private BitSet findTrips(List<BitSet> requiredDestinations) {
+		BitSet foundTrips = null;
+		for(BitSet destinationIds : requiredDestinations) {
+			BitSet tripsWithDestination = new BitSet(trips.size());
+			for(int id = destinationIds.nextSetBit(0); id >= 0 && id < destinationTrips.length; id = destinationIds.nextSetBit(id + 1)) {
+				for(int tripIndex : destinationTrips[id]) {
+					tripsWithDestination.set(tripIndex);
+				}
+			}
+			if(foundTrips == null) {
+				foundTrips = tripsWithDestination;
+			}
+			else {
+				foundTrips.and(tripsWithDestination);
+			}
+		}
+		return foundTrips;
+	}
+	
+	/**
+	 * Creates set of all indexed trips.
+	 * @return Set of trip indexes
+	 */
+	private BitSet allTrips() {
+		BitSet allTrips = new BitSet(trips.size());
+		allTrips.set(0, trips.size());
+		return allTrips;
+	}
+	
+	public int getTripCount() {
+		return trips.size();
+	}
+	
+}
@@ -0,0 +1,96 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+ * Compact key of a route. The route is represented as a sequence of destination ids
+ * assigned by {@link DestinationRegistry}, so comparing and hashing routes works on primitive ints
+ * instead of stage and destination objects.
+ * 
+ * @author Milan Sovic
+ */
+
+public class RouteKey {
+	
+	/** Base of polynomial rolling hash of destination ids */
+	static final long HASH_BASE = 0x9E3779B97F4A7C15L;
+
+	/** Ids of route destinations, in visiting order */
+	private final int[] destinationIds;
+	/** Cached hash code of destination ids */
+	private final int hash;
+	
+	public RouteKey(int[] destinationIds) {
+		this.destinationIds = destinationIds;
+		this.hash = Arrays.hashCode(destinationIds);
+	}
+	
+	/**
+	 * Creates route key from part of the trip itinerary.
+	 * @param itinerary Destination ids of a trip
+	 * @param start Position of the first route destination in itinerary
+	 * @param length Number of stages in route
+	 */
+	public RouteKey(int[] itinerary, int start, int length) {
+		this(Arrays.copyOfRange(itinerary, start, start + length + 1));
+	}
+
+	/**
+	 * Calculates polynomial rolling hashes of all prefixes of destination ids. 
+	 * Hash of ids between positions <code>i</code> (inclusive) and <code>j</code> (exclusive) is then
+	 * <code>prefixHashes[j] - prefixHashes[i] * HASH_BASE<sup>j - i</sup></code>.
+	 * @param destinationIds Destination ids
+	 * @return Array where element <code>i</code> is the hash of first <code>i</code> destination ids
+	 */
+	static long[] prefixHashes(int[] destinationIds) {
+		long[] prefixHashes = new long[destinationIds.length + 1];
+		for(int i = 0; i < destinationIds.length; i++) {
+			prefixHashes[i + 1] = prefixHashes[i] * HASH_BASE + destinationIds[i] + 1;
+		}
+		return prefixHashes;
+	}
+	
+	/**
+	 * Calculates rolling hash of route destination ids, equal to the hash of the same route visited in a trip.
+	 * @return Rolling hash of the route
+	 */
+	public long rollingHash() {
+		long hash = 0;
+		for(int id : destinationIds) {
+			hash = hash * HASH_BASE + id + 1;
+		}
+		return hash;
+	}
+
+	public int[] getDestinationIds() {
+		return destinationIds;
+	}
+	
+	/**
+	 * Number of stages in route.
+	 * @return Route length
+	 */
+	public int getLength() {
+		return destinationIds.length - 1;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		RouteKey other = (RouteKey) obj;
+		if (hash != other.hash)
+			return false;
+		return Arrays.equals(destinationIds, other.destinationIds);
+	}
+	
+}
@@ -0,0 +1,178 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Models a route query. Query describes which routes are counted: 
+ * routes with minimum and maximum number of stages, optionally including required destinations
+ * and destinations inside of required areas, and optionally not longer than maximum travel distance.
+ * Equally popular routes can be ordered by their travel distance.
+ * Constructors correspond to <code>findAllRoutes</code> methods of {@link TripCollection}.
+ * 
+ * @author Milan Sovic
+ */
+
+public class RouteQuery {
+	
+	/** Minimum number of stages in route */
+	private int minLength;
+	/** Maximum number of stages in route */
+	private int maxLength;
+	/** Names of required destinations, route has to include a destination with each of the names */
+	private List<String> destinationNames;
+	/** Required areas, route has to include a destination inside of each of the areas */
+	private List<Area> areas = new ArrayList<>();
+	/** Maximum travel distance of route in kilometers */
+	private double maxDistance = Double.POSITIVE_INFINITY;
+	/** Order of equally popular routes by their travel distance */
+	private DistanceOrder distanceOrder = DistanceOrder.NONE;
+	
+	/**
+	 * Creates query for routes with two stages.
+	 */
+	public RouteQuery() {
+		this(2, 2, Collections.emptyList());
+	}
+	
+	/**
+	 * Creates query for routes with minimum <code>minLength</code> stages.
+	 * @param minLength Minimum number of stages in route
+	 */
+	public RouteQuery(int minLength) {
+		this(minLength, Integer.MAX_VALUE, Collections.emptyList());
+	}
+	
+	/**
+	 * Creates query for routes with minimum <code>minLength</code> stages that includes 
+	 * <code>destinationName</code> destination.
+	 * @param minLength Minimum number of stages in route
+	 * @param destinationName Name of required destination
+	 */
+	public RouteQuery(int minLength, String destinationName) {
+		this(minLength, Integer.MAX_VALUE, Collections.singletonList(destinationName));
+	}
+	
+	/**
+	 * Creates query for routes with minimum <code>minLength</code> stages that includes 
+	 * all of the <code>destinationNames</code> destinations.
+	 * @param minLength Minimum number of stages in route
+	 * @param destinationNames Names of required destinations
+	 */
+	public RouteQuery(int minLength, List<String> destinationNames) {
+		this(minLength, Integer.MAX_VALUE, destinationNames);
+	}
+	
+	/**
+	 * Creates query for routes with <code>minLength</code> to <code>maxLength</code> stages that includes 
+	 * all of the <code>destinationNames</code> destinations.
+	 * @param minLength Minimum number of stages in route
+	 * @param maxLength Maximum number of stages in route
+	 * @param destinationNames Names of required destinations, empty if any route is counted
+	 */
+	public RouteQuery(int minLength, int maxLength, List<String> destinationNames) {
+		this.minLength = minLength;
+		this.maxLength = maxLength;
+		this.destinationNames = new ArrayList<>(destinationNames);
+	}
+
+	public int getMinLength() {
+		return minLength;
+	}
+	public void setMinLength(int minLength) {
+		this.minLength = minLength;
+	}
+	public int getMaxLength() {
+		return maxLength;
+	}
+	public void setMaxLength(int maxLength) {
+		this.maxLength = maxLength;
+	}
+	public List<String> getDestinationNames() {
+		return destinationNames;
+	}
+	public void setDestinationNames(List<String> destinationNames) {
+		this.destinationNames = destinationNames;
+	}
+	public List<Area> getAreas() {
+		return areas;
+	}
+	public void setAreas(List<Area> areas) {
+		this.areas = areas;
+	}
+	public double getMaxDistance() {
+		return maxDistance;
+	}
+	public void setMaxDistance(double maxDistance) {
+		this.maxDistance = maxDistance;
+	}
+	public DistanceOrder getDistanceOrder() {
+		return distanceOrder;
+	}
+	public void setDistanceOrder(DistanceOrder distanceOrder) {
+		this.distanceOrder = distanceOrder;
+	}
+	
+	/**
+	 * Checks if routes are filtered by their travel distance.
+	 * @return <code>true</code> if query has finite maximum distance
+	 */
+	public boolean hasMaxDistance() {
+		return maxDistance != Double.POSITIVE_INFINITY;
+	}
+	
+	/**
+	 * Checks if routes are filtered by required destinations or areas.
+	 * @return <code>true</code> if query has any required destination name or area
+	 */
+	public boolean hasRequiredDestinations() {
+		return !destinationNames.isEmpty() || !areas.isEmpty();
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((areas == null) ? 0 : areas.hashCode());
+		result = prime * result + ((destinationNames == null) ? 0 : destinationNames.hashCode());
+		result = prime * result + ((distanceOrder == null) ? 0 : distanceOrder.hashCode());
+		long temp;
+		temp = Double.doubleToLongBits(maxDistance);
+		result = prime * result + (int) (temp ^ (temp >>> 32));
+		result = prime * result + maxLength;
+		result = prime * result + minLength;
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		RouteQuery other = (RouteQuery) obj;
+		if (areas == null) {
+			if (other.areas != null)
+				return false;
+		} else if (!areas.equals(other.areas))
+			return false;
+		if (destinationNames == null) {
+			if (other.destinationNames != null)
+				return false;
+		} else if (!destinationNames.equals(other.destinationNames))
+			return false;
+		if (distanceOrder != other.distanceOrder)
+			return false;
+		if (Double.doubleToLongBits(maxDistance) != Double.doubleToLongBits(other.maxDistance))
+			return false;
+		if (maxLength != other.maxLength)
+			return false;
+		if (minLength != other.minLength)
+			return false;
+		return true;
+	}
+	
+}
@@ -0,0 +1,224 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Cache of route query results, placed in front of a collection of trips or an index of routes. <br>
+ * Results are kept in least recently used order, and the least recently used results are evicted when the cache
+ * has more than maximum number of entries or its estimated size is bigger than maximum number of bytes.
+ * Every result is stored together with the version of trips it is found for,
+ * and all results are invalidated as soon as the version of trips changes (when trips are added or replaced). <br>
+ * Cache is thread-safe. Results are found outside of the lock, so a slow query does not block other queries.
+ *
+ * @author Milan Sovic
+ */
+
+public class RouteQueryCache {
+
+	/** Finds results of queries which are not cached */
+	private final Function<RouteQuery, BestRoutes> loader;
+	/** Returns current version of trips */
+	private final LongSupplier version;
+	/** Maximum number of cached results */
+	private final int maxEntries;
+	/** Maximum estimated size of cached results in bytes */
+	private final long maxBytes;
+
+	/** Cached results by their queries, in least recently used order */
+	private final LinkedHashMap<RouteQuery, CachedResult> results = new LinkedHashMap<>(16, 0.75f, true);
+	/** Version of trips of cached results */
+	private long cachedVersion;
+	/** Estimated size of cached results in bytes */
+	private long bytes;
+
+	/** Number of queries answered from cache */
+	private long hits;
+	/** Number of queries which are not found in cache */
+	private long misses;
+	/** Number of results evicted because of cache size */
+	private long evictions;
+	/** Number of results removed because trips are changed */
+	private long invalidations;
+
+	/**
+	 * Creates cache in front of a collection of trips. Queries are answered with {@link TripCollection#findBestRoute(RouteQuery)},
+	 * and cached results are invalidated when trips are added or replaced.
+	 * @param tripCollection Collection of trips
+	 * @param maxEntries Maximum number of cached results
+	 * @param maxBytes Maximum estimated size of cached results in bytes
+	 */
+	public RouteQueryCache(TripCollection tripCollection, int maxEntries, long maxBytes) {
+		this(tripCollection::findBestRoute, tripCollection::getVersion, maxEntries, maxBytes);
+	}
+
+	/**
+	 * Creates cache in front of any source of query results.
+	 * @param loader Finds results of queries which are not cached
+	 * @param version Returns current version of trips, whose change invalidates all cached results
+	 * @param maxEntries Maximum number of cached results
+	 * @param maxBytes Maximum estimated size of cached results in bytes
+	 */
+	public RouteQueryCache(Function<RouteQuery, BestRoutes> loader, LongSupplier version, int maxEntries, long maxBytes) {
+		this.loader = loader;
+		this.version = version;
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.cachedVersion = version.getAsLong();
+	}
+
+	/**
+	 * Finds most popular routes described by a query, from cache if they are already found for current version of trips.
+	 * Returned result is shared between all callers with the same query, and should not be changed.
+	 * @param routeQuery Query with minimum and maximum number of stages and optional required destinations
+	 * @return Most popular routes and their popularity
+	 */
+	public BestRoutes findBestRoute(RouteQuery routeQuery) {
+		long currentVersion = version.getAsLong();
+		synchronized (this) {
+			invalidate(currentVersion);
+			CachedResult cachedResult = results.get(routeQuery);
+			if(cachedResult != null) {
+				hits++;
+				return cachedResult.bestRoutes;
+			}
+			misses++;
+		}
+		BestRoutes bestRoutes = loader.apply(routeQuery);
+		// query is copied, so later changes of the query object do not change the key
+		RouteQuery key = new RouteQuery(routeQuery.getMinLength(), routeQuery.getMaxLength(), routeQuery.getDestinationNames());
+		key.setAreas(new ArrayList<>(routeQuery.getAreas()));
+		key.setMaxDistance(routeQuery.getMaxDistance());
+		key.setDistanceOrder(routeQuery.getDistanceOrder());
+		CachedResult cachedResult = new CachedResult(bestRoutes, estimateBytes(key, bestRoutes));
+		synchronized (this) {
+			// result found for trips that are changed in the meantime is not cached
+			if(currentVersion == cachedVersion && cachedResult.bytes <= maxBytes) {
+				CachedResult replaced = results.put(key, cachedResult);
+				if(replaced != null) {
+					bytes -= replaced.bytes;
+				}
+				bytes += cachedResult.bytes;
+				evict();
+			}
+		}
+		return bestRoutes;
+	}
+
+	/**
+	 * Removes all cached results if the version of trips is increased.
+	 * @param currentVersion Current version of trips
+	 */
+	private void invalidate(long currentVersion) {
+		if(currentVersion > cachedVersion) {
+			invalidations += results.size();
+			results.clear();
+			bytes = 0;
+			cachedVersion = currentVersion;
+		}
+	}
+
+	/**
+	 * Evicts least recently used results until the cache is within its bounds.
+	 */
+	private void evict() {
+		Iterator<CachedResult> iterator = results.values().iterator();
+		while((results.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+			bytes -= iterator.next().bytes;
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Removes all cached results.
+	 */
+	public synchronized void clear() {
+		results.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Estimates memory used by a cached result. Destinations are shared with the dictionary of destinations,
+	 * so only the objects of routes and stages are counted.
+	 * @param routeQuery Query of the result
+	 * @param bestRoutes Result of the query
+	 * @return Estimated size in bytes
+	 */
+	static long estimateBytes(RouteQuery routeQuery, BestRoutes bestRoutes) {
+		long bytes = 128;
+		for(String destinationName : routeQuery.getDestinationNames()) {
+			bytes += 48 + 2L * destinationName.length();
+		}
+		bytes += 64L * routeQuery.getAreas().size();
+		for(Route route : bestRoutes.getRoutes()) {
+			// route with its list of stages, and a list node and stage object for every stage
+			bytes += 64 + 48L * route.getStages().size();
+		}
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return results.size();
+	}
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	public synchronized long getHits() {
+		return hits;
+	}
+	public synchronized long getMisses() {
+		return misses;
+	}
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * Returns statistics of the cache.
+	 * @return Map of statistic names and their values
+	 */
+	public synchronized Map<String, Long> getStatistics() {
+		Map<String, Long> statistics = new LinkedHashMap<>();
+		statistics.put("entries", (long) results.size());
+		statistics.put("bytes", bytes);
+		statistics.put("max_entries", (long) maxEntries);
+		statistics.put("max_bytes", maxBytes);
+		statistics.put("hits", hits);
+		statistics.put("misses", misses);
+		statistics.put("evictions", evictions);
+		statistics.put("invalidations", invalidations);
+		return statistics;
+	}
+
+	/**
+	 * Cached result with its estimated size.
+	 */
+	private static class CachedResult {
+
+		/** Result of a query */
+		private final BestRoutes bestRoutes;
+		/** Estimated size of the result in bytes */
+		private final long bytes;
+
+		CachedResult(BestRoutes bestRoutes, long bytes) {
+			this.bestRoutes = bestRoutes;
+			this.bytes = bytes;
+		}
+
+	}
+
+}
@@ -0,0 +1,21 @@
+package model;
+
+/**
+ * Callback for routes found in a trip itinerary. 
+ * Route is given by its position in the itinerary, so no objects are created while routes are visited.
+ * 
+ * @author Milan Sovic
+ */
+
+@FunctionalInterface
+public interface RouteVisitor {
+
+	/**
+	 * Visits one route of a trip.
+	 * @param start Position of the first route destination in trip itinerary
+	 * @param length Number of stages in route
+	 * @param hash Rolling hash of route destination ids, equal for all routes with the same destinations
+	 */
+	void visitRoute(int start, int length, long hash);
+	
+}
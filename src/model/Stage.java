@@ -20,6 +20,25 @@ public class Stage {
 		this.endDestination = endDestination;
 	}
 
+	/**
+	 * Calculates great-circle distance between stage destinations.
+	 * @return Distance in kilometers
+	 */
+	public double getDistance() {
+		return distance(startDestination, endDestination);
+	}
+	
+	/**
+	 * Calculates great-circle distance between two destinations.
+	 * @param startDestination Stage start destination
+	 * @param endDestination Stage end destination
+	 * @return Distance in kilometers
+	 */
+	public static double distance(Destination startDestination, Destination endDestination) {
+		return Area.distance(startDestination.getLatitude(), startDestination.getLongitude(), 
+				endDestination.getLatitude(), endDestination.getLongitude());
+	}
+
 	public Destination getStartDestination() {
 		return startDestination;
 	}
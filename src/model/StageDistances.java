@@ -0,0 +1,112 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+ * Cache of great-circle distances of distinct stages, keyed by the pair of destination ids. <br>
+ * Distance of a stage is calculated only once, when the stage is first found in any trip,
+ * and every later appearance of the stage reads it from an open-addressing hash table of primitive keys and values.
+ * Stage from one destination to another has the same distance as the stage back, so both share an entry.
+ * Cache is not thread-safe, the same as the dictionary of destinations which owns it.
+ *
+ * @author Milan Sovic
+ */
+
+public class StageDistances {
+
+	/** Initial number of table slots */
+	private static final int INITIAL_CAPACITY = 64;
+	/** Key of an empty slot, which no pair of destination ids can have */
+	private static final long EMPTY = -1;
+
+	/** Dictionary of destinations whose stages are cached */
+	private final DestinationRegistry destinationRegistry;
+	/** Pairs of destination ids, the smaller id in upper and the bigger id in lower 32 bits */
+	private long[] keys;
+	/** Distances of stages in kilometers, in the same slots as their keys */
+	private double[] distances;
+	/** Number of cached stages */
+	private int size;
+
+	/**
+	 * Creates empty cache of stage distances.
+	 * @param destinationRegistry Dictionary of destinations whose stages are cached
+	 */
+	public StageDistances(DestinationRegistry destinationRegistry) {
+		this.destinationRegistry = destinationRegistry;
+		keys = new long[INITIAL_CAPACITY];
+		distances = new double[INITIAL_CAPACITY];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	/**
+	 * Returns distance of a stage, calculating it on first use.
+	 * @param startId Id of the stage start destination
+	 * @param endId Id of the stage end destination
+	 * @return Distance in kilometers
+	 */
+	public double getDistance(int startId, int endId) {
+		long key = startId < endId ? (long) startId << 32 | endId : (long) endId << 32 | startId;
+		int mask = keys.length - 1;
+		int slot = slot(key, mask);
+		for(; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+			if(keys[slot] == key) {
+				return distances[slot];
+			}
+		}
+		double distance = Stage.distance(destinationRegistry.getDestination(startId), destinationRegistry.getDestination(endId));
+		if(2 * (size + 1) > keys.length) {
+			resize();
+			mask = keys.length - 1;
+			for(slot = slot(key, mask); keys[slot] != EMPTY; slot = (slot + 1) & mask);
+		}
+		keys[slot] = key;
+		distances[slot] = distance;
+		size++;
+		return distance;
+	}
+
+	/**
+	 * Doubles the table, placing all cached stages into new slots.
+	 */
+	private void resize() {
+		long[] oldKeys = keys;
+		double[] oldDistances = distances;
+		keys = new long[oldKeys.length * 2];
+		distances = new double[oldKeys.length * 2];
+		Arrays.fill(keys, EMPTY);
+		int mask = keys.length - 1;
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldKeys[i] != EMPTY) {
+				int slot = slot(oldKeys[i], mask);
+				while(keys[slot] != EMPTY) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				distances[slot] = oldDistances[i];
+			}
+		}
+	}
+
+	/**
+	 * Calculates home slot of a key.
+	 * @param key Pair of destination ids
+	 * @param mask Table size minus 1
+	 * @return Index of a slot
+	 */
+	private static int slot(long key, int mask) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key & mask;
+	}
+
+	/**
+	 * Number of cached distinct stages.
+	 * @return Cache size
+	 */
+	public int size() {
+		return size;
+	}
+
+}
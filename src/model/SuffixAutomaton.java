@@ -0,0 +1,323 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Generalized suffix automaton over itineraries of all trips.
+ * Every state of the automaton represents a group of routes (substrings of itineraries) 
+ * which appear at exactly the same end positions, so popularity of all routes can be read from
+ * at most two states per destination, without enumerating routes one by one.
+ * The automaton is built in time and memory linear in the total number of destinations.
+ * 
+ * @author Milan Sovic
+ */
+
+public class SuffixAutomaton {
+	
+	/** Value of empty slot in a transition table */
+	private static final long EMPTY = -1L;
+	
+	/** Itineraries of trips, in the order of trips */
+	private final List<int[]> itineraries;
+	
+	/** Number of states */
+	private int states;
+	/** Length of the longest route (number of destinations) in each state */
+	private int[] length;
+	/** Suffix link of each state */
+	private int[] link;
+	/** Number of appearances of routes in each state */
+	private int[] occurrences;
+	/** First end position of routes in each state, as trip index in upper and position in lower 32 bits */
+	private long[] firstEnd;
+	
+	/** Number of transitions */
+	private int edges;
+	/** First transition of each state */
+	private int[] edgeHead;
+	/** Next transition of the same state */
+	private int[] edgeNext;
+	/** Destination id of each transition */
+	private int[] edgeSymbol;
+	/** Target state of each transition */
+	private int[] edgeTarget;
+	/** Hash table of transitions, keyed by state in upper and destination id in lower 32 bits */
+	private long[] transitionKeys;
+	/** Transitions of hash table keys */
+	private int[] transitionEdges;
+	
+	/**
+	 * Builds suffix automaton over itineraries of trips.
+	 * Trips have to be registered in {@link DestinationRegistry} first.
+	 * @param trips Trips whose itineraries are indexed
+	 */
+	public SuffixAutomaton(List<Trip> trips) {
+		itineraries = new ArrayList<>(trips.size());
+		int destinations = 0;
+		for(Trip trip : trips) {
+			itineraries.add(trip.getItinerary());
+			destinations += trip.getItinerary().length;
+		}
+		int capacity = 2 * destinations + 2;
+		length = new int[capacity];
+		link = new int[capacity];
+		occurrences = new int[capacity];
+		firstEnd = new long[capacity];
+		edgeHead = new int[capacity];
+		edgeNext = new int[capacity];
+		edgeSymbol = new int[capacity];
+		edgeTarget = new int[capacity];
+		transitionKeys = new long[Integer.highestOneBit(capacity) * 4];
+		transitionEdges = new int[transitionKeys.length];
+		Arrays.fill(transitionKeys, EMPTY);
+		
+		newState(0, -1);
+		for(int trip = 0; trip < itineraries.size(); trip++) {
+			int[] itinerary = itineraries.get(trip);
+			int last = 0;
+			for(int position = 0; position < itinerary.length; position++) {
+				last = extend(last, itinerary[position]);
+				occurrences[last]++;
+				firstEnd[last] = Math.min(firstEnd[last], ((long) trip << 32) | position);
+			}
+		}
+		propagateOccurrences();
+	}
+	
+	/**
+	 * Finds most popular routes with <code>minLength</code> to <code>maxLength</code> stages, 
+	 * and among them the routes with maximum number of stages. 
+	 * Result is the same as if all routes in that range are counted and the best of them are selected.
+	 * @param minLength Minimum number of stages in route
+	 * @param maxLength Maximum number of stages in route
+	 * @param bestRouteKeys List where keys of best routes are placed, in the order of their first appearance
+	 * @return Popularity of best routes, or 0 if there is no route in the range.
+	 */
+	public int findBestRoutes(int minLength, int maxLength, List<RouteKey> bestRouteKeys) {
+		int minDestinations = Math.max(minLength, 1) + 1;
+		int maxDestinations = maxLength == Integer.MAX_VALUE ? Integer.MAX_VALUE : maxLength + 1;
+		int maxPopularity = 0;
+		int maxDestinationsInBest = 0;
+		for(int state = 1; state < states; state++) {
+			int longest = Math.min(length[state], maxDestinations);
+			if(Math.max(length[link[state]] + 1, minDestinations) > longest) {
+				continue;
+			}
+			if(occurrences[state] > maxPopularity) {
+				maxPopularity = occurrences[state];
+				maxDestinationsInBest = longest;
+			}
+			else if(occurrences[state] == maxPopularity && longest > maxDestinationsInBest) {
+				maxDestinationsInBest = longest;
+			}
+		}
+		List<Integer> bestStates = new ArrayList<>();
+		for(int state = 1; state < states; state++) {
+			int longest = Math.min(length[state], maxDestinations);
+			if(occurrences[state] == maxPopularity && longest == maxDestinationsInBest 
+					&& Math.max(length[link[state]] + 1, minDestinations) <= longest) {
+				bestStates.add(state);
+			}
+		}
+		bestStates.sort(Comparator.comparingLong(state -> firstEnd[state]));
+		for(int state : bestStates) {
+			int[] itinerary = itineraries.get((int) (firstEnd[state] >>> 32));
+			int end = (int) firstEnd[state];
+			bestRouteKeys.add(new RouteKey(itinerary, end - maxDestinationsInBest + 1, maxDestinationsInBest - 1));
+		}
+		return maxPopularity;
+	}
+	
+	/**
+	 * Extends the automaton with next destination of current itinerary.
+	 * @param last State of the itinerary read so far
+	 * @param symbol Id of next destination
+	 * @return State of the itinerary with next destination
+	 */
+	private int extend(int last, int symbol) {
+		int edge = findEdge(last, symbol);
+		if(edge >= 0) {
+			// the itinerary read so far continues as in some previous trip
+			int next = edgeTarget[edge];
+			if(length[last] + 1 == length[next]) {
+				return next;
+			}
+			return split(last, symbol, next);
+		}
+		int current = newState(length[last] + 1, 0);
+		int state = last;
+		while(state != -1 && (edge = findEdge(state, symbol)) < 0) {
+			addEdge(state, symbol, current);
+			state = link[state];
+		}
+		if(state != -1) {
+			int next = edgeTarget[edge];
+			if(length[state] + 1 == length[next]) {
+				link[current] = next;
+			}
+			else {
+				link[current] = split(state, symbol, next);
+			}
+		}
+		return current;
+	}
+	
+	/**
+	 * Splits state <code>next</code> by cloning it with the length of <code>state</code> plus one,
+	 * and redirects transitions of <code>state</code> and its suffixes to the clone.
+	 * @param state State whose transition leads to <code>next</code>
+	 * @param symbol Destination id of the transition
+	 * @param next State to split
+	 * @return Cloned state
+	 */
+	private int split(int state, int symbol, int next) {
+		int clone = newState(length[state] + 1, link[next]);
+		for(int edge = edgeHead[next]; edge >= 0; edge = edgeNext[edge]) {
+			addEdge(clone, edgeSymbol[edge], edgeTarget[edge]);
+		}
+		int edge;
+		while(state != -1 && (edge = findEdge(state, symbol)) >= 0 && edgeTarget[edge] == next) {
+			edgeTarget[edge] = clone;
+			state = link[state];
+		}
+		link[next] = clone;
+		return clone;
+	}
+	
+	/**
+	 * Sums number of appearances along suffix links, from the longest states to the shortest,
+	 * and finds the first end position of every state.
+	 */
+	private void propagateOccurrences() {
+		int maxLength = 0;
+		for(int state = 0; state < states; state++) {
+			maxLength = Math.max(maxLength, length[state]);
+		}
+		int[] statesPerLength = new int[maxLength + 2];
+		for(int state = 0; state < states; state++) {
+			statesPerLength[length[state] + 1]++;
+		}
+		for(int i = 1; i < statesPerLength.length; i++) {
+			statesPerLength[i] += statesPerLength[i - 1];
+		}
+		int[] order = new int[states];
+		for(int state = 0; state < states; state++) {
+			order[statesPerLength[length[state]]++] = state;
+		}
+		for(int i = states - 1; i > 0; i--) {
+			int state = order[i];
+			occurrences[link[state]] += occurrences[state];
+			firstEnd[link[state]] = Math.min(firstEnd[link[state]], firstEnd[state]);
+		}
+	}
+	
+	/**
+	 * Creates new state.
+	 * @param stateLength Length of the longest route in state
+	 * @param stateLink Suffix link of the state
+	 * @return New state
+	 */
+	private int newState(int stateLength, int stateLink) {
+		if(states == length.length) {
+			int capacity = states * 2;
+			length = Arrays.copyOf(length, capacity);
+			link = Arrays.copyOf(link, capacity);
+			occurrences = Arrays.copyOf(occurrences, capacity);
+			firstEnd = Arrays.copyOf(firstEnd, capacity);
+			edgeHead = Arrays.copyOf(edgeHead, capacity);
+		}
+		length[states] = stateLength;
+		link[states] = stateLink;
+		firstEnd[states] = Long.MAX_VALUE;
+		edgeHead[states] = -1;
+		return states++;
+	}
+	
+	/**
+	 * Finds transition of a state.
+	 * @param state State whose transition is looked up
+	 * @param symbol Destination id of the transition
+	 * @return Transition index, or -1 if there is no such transition.
+	 */
+	private int findEdge(int state, int symbol) {
+		long key = ((long) state << 32) | (symbol & 0xffffffffL);
+		int mask = transitionKeys.length - 1;
+		for(int slot = slot(key, mask); transitionKeys[slot] != EMPTY; slot = (slot + 1) & mask) {
+			if(transitionKeys[slot] == key) {
+				return transitionEdges[slot];
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Adds new transition to a state.
+	 * @param state State of the transition
+	 * @param symbol Destination id of the transition
+	 * @param target Target state of the transition
+	 */
+	private void addEdge(int state, int symbol, int target) {
+		if(edges == edgeTarget.length) {
+			int capacity = edges * 2;
+			edgeNext = Arrays.copyOf(edgeNext, capacity);
+			edgeSymbol = Arrays.copyOf(edgeSymbol, capacity);
+			edgeTarget = Arrays.copyOf(edgeTarget, capacity);
+		}
+		edgeSymbol[edges] = symbol;
+		edgeTarget[edges] = target;
+		edgeNext[edges] = edgeHead[state];
+		edgeHead[state] = edges;
+		if(2 * (edges + 1) > transitionKeys.length) {
+			long[] oldKeys = transitionKeys;
+			int[] oldEdges = transitionEdges;
+			transitionKeys = new long[oldKeys.length * 2];
+			transitionEdges = new int[oldKeys.length * 2];
+			Arrays.fill(transitionKeys, EMPTY);
+			for(int i = 0; i < oldKeys.length; i++) {
+				if(oldKeys[i] != EMPTY) {
+					placeTransition(oldKeys[i], oldEdges[i]);
+				}
+			}
+		}
+		placeTransition(((long) state << 32) | (symbol & 0xffffffffL), edges);
+		edges++;
+	}
+	
+	/**
+	 * Places transition into the first free slot of the hash table.
+	 * @param key State and destination id of the transition
+	 * @param edge Transition index
+	 */
+	private void placeTransition(long key, int edge) {
+		int mask = transitionKeys.length - 1;
+		int slot = slot(key, mask);
+		while(transitionKeys[slot] != EMPTY) {
+			slot = (slot + 1) & mask;
+		}
+		transitionKeys[slot] = key;
+		transitionEdges[slot] = edge;
+	}
+	
+	/**
+	 * Calculates home slot of a transition key.
+	 * @param key State and destination id of the transition
+	 * @param mask Table size minus 1
+	 * @return Index of a slot
+	 */
+	private static int slot(long key, int mask) {
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+	
+	/**
+	 * Number of states in automaton.
+	 * @return Automaton size
+	 */
+	public int size() {
+		return states;
+	}
+
+}
@@ -0,0 +1,247 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import util.CountMinSketch;
+
+/**
+ * Approximate counter of the most popular routes with fixed memory (Space-Saving algorithm backed by Count-Min Sketch). 
+ * Only <code>capacity</code> routes are monitored at any time. Every route is added to the sketch, and a route that
+ * is not monitored replaces the least popular monitored route when its sketch estimate exceeds that popularity.
+ * Popularity of a monitored route never underestimates the real one, and the overestimate is at most its error.
+ * 
+ * @author Milan Sovic
+ */
+
+public class TopRouteCounter {
+
+	/** Maximum number of monitored routes */
+	private final int capacity;
+	/** Sketch with estimated popularity of all routes */
+	private final CountMinSketch sketch;
+	/** Monitored routes, ordered in a binary min-heap by popularity */
+	private final Entry[] heap;
+	/** Number of monitored routes */
+	private int size;
+	/** Hash table of monitored routes */
+	private final Entry[] table;
+	
+	/**
+	 * Creates empty counter.
+	 * @param capacity Maximum number of monitored routes
+	 * @param sketchWidth Number of counters in each sketch row
+	 * @param sketchDepth Number of sketch rows
+	 */
+	public TopRouteCounter(int capacity, int sketchWidth, int sketchDepth) {
+		this.capacity = capacity;
+		this.sketch = new CountMinSketch(sketchWidth, sketchDepth);
+		this.heap = new Entry[capacity];
+		this.table = new Entry[Integer.highestOneBit(Math.max(capacity, 1)) * 4];
+	}
+	
+	/**
+	 * Increases popularity of a route by 1.
+	 * @param trip Index of the trip where route is found
+	 * @param itinerary Destination ids of the trip
+	 * @param start Position of the first route destination in itinerary
+	 * @param length Number of stages in route
+	 * @param hash Rolling hash of route destination ids
+	 */
+	public void add(int trip, int[] itinerary, int start, int length, long hash) {
+		int estimate = sketch.add(hash);
+		int slot = find(itinerary, start, length, hash);
+		if(table[slot] != null) {
+			Entry entry = table[slot];
+			entry.count++;
+			siftDown(entry.heapIndex);
+		}
+		else if(size < capacity) {
+			Entry entry = new Entry();
+			entry.set(hash, itinerary, start, length, estimate, trip);
+			table[slot] = entry;
+			heap[size] = entry;
+			entry.heapIndex = size++;
+			siftUp(entry.heapIndex);
+		}
+		else if(capacity > 0 && estimate > heap[0].count) {
+			// the least popular monitored route is replaced
+			Entry entry = heap[0];
+			remove(entry);
+			entry.set(hash, itinerary, start, length, estimate, trip);
+			table[find(itinerary, start, length, hash)] = entry;
+			siftDown(0);
+		}
+	}
+	
+	/**
+	 * Returns monitored routes, from the most popular. 
+	 * Routes with the same popularity are ordered from the longest, then by their first appearance.
+	 * @return List of monitored routes
+	 */
+	public List<Entry> getEntries() {
+		List<Entry> entries = new ArrayList<>(Arrays.asList(heap).subList(0, size));
+		entries.sort(Comparator.comparingInt(Entry::getCount).reversed()
+				.thenComparing(Comparator.comparingInt(Entry::getLength).reversed())
+				.thenComparingInt(Entry::getFirstTrip).thenComparingInt(Entry::getStart));
+		return entries;
+	}
+	
+	/**
+	 * Finds slot of a monitored route, or the free slot where it should be placed.
+	 * @param itinerary Destination ids of the trip
+	 * @param start Position of the first route destination in itinerary
+	 * @param length Number of stages in route
+	 * @param hash Rolling hash of route destination ids
+	 * @return Index of a slot
+	 */
+	private int find(int[] itinerary, int start, int length, long hash) {
+		int mask = table.length - 1;
+		int slot = slot(hash, mask);
+		while(table[slot] != null) {
+			Entry entry = table[slot];
+			if(entry.hash == hash && entry.length == length && Arrays.equals(entry.itinerary, entry.start, 
+					entry.start + length + 1, itinerary, start, start + length + 1)) {
+				break;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	/**
+	 * Removes monitored route from hash table, shifting back the following routes of the same cluster.
+	 * @param entry Route to remove
+	 */
+	private void remove(Entry entry) {
+		int mask = table.length - 1;
+		int slot = slot(entry.hash, mask);
+		while(table[slot] != entry) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = null;
+		for(int next = (slot + 1) & mask; table[next] != null; next = (next + 1) & mask) {
+			int home = slot(table[next].hash, mask);
+			// entry can be moved to the free slot only if the free slot is between its home slot and its current slot
+			if(((next - home) & mask) >= ((next - slot) & mask)) {
+				table[slot] = table[next];
+				table[next] = null;
+				slot = next;
+			}
+		}
+	}
+	
+	private void siftUp(int index) {
+		Entry entry = heap[index];
+		while(index > 0) {
+			int parent = (index - 1) >>> 1;
+			if(heap[parent].count <= entry.count) {
+				break;
+			}
+			heap[index] = heap[parent];
+			heap[index].heapIndex = index;
+			index = parent;
+		}
+		heap[index] = entry;
+		entry.heapIndex = index;
+	}
+	
+	private void siftDown(int index) {
+		Entry entry = heap[index];
+		while(2 * index + 1 < size) {
+			int child = 2 * index + 1;
+			if(child + 1 < size && heap[child + 1].count < heap[child].count) {
+				child++;
+			}
+			if(entry.count <= heap[child].count) {
+				break;
+			}
+			heap[index] = heap[child];
+			heap[index].heapIndex = index;
+			index = child;
+		}
+		heap[index] = entry;
+		entry.heapIndex = index;
+	}
+	
+	/**
+	 * Calculates home slot of a route hash.
+	 * @param hash Rolling hash of route destination ids
+	 * @param mask Table size minus 1
+	 * @return Index of a slot
+	 */
+	private static int slot(long hash, int mask) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return (int) hash & mask;
+	}
+	
+	public CountMinSketch getSketch() {
+		return sketch;
+	}
+	public int getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Monitored route and its estimated popularity.
+	 */
+	public static class Entry {
+		
+		/** Rolling hash of route destination ids */
+		private long hash;
+		/** Destination ids of the trip where route is found */
+		private int[] itinerary;
+		/** Position of the first route destination in itinerary */
+		private int start;
+		/** Number of stages in route */
+		private int length;
+		/** Estimated route popularity */
+		private int count;
+		/** Maximum overestimate of route popularity */
+		private int error;
+		/** Index of the trip where route is found */
+		private int firstTrip;
+		/** Position of the entry in heap */
+		private int heapIndex;
+		
+		void set(long hash, int[] itinerary, int start, int length, int count, int trip) {
+			this.hash = hash;
+			this.itinerary = itinerary;
+			this.start = start;
+			this.length = length;
+			this.count = count;
+			this.error = count - 1;
+			this.firstTrip = trip;
+		}
+		
+		/**
+		 * Creates key of the monitored route.
+		 * @return Route key
+		 */
+		public RouteKey getKey() {
+			return new RouteKey(itinerary, start, length);
+		}
+
+		public int getLength() {
+			return length;
+		}
+		public int getCount() {
+			return count;
+		}
+		public int getError() {
+			return error;
+		}
+		public int getFirstTrip() {
+			return firstTrip;
+		}
+		public int getStart() {
+			return start;
+		}
+		
+	}
+	
+}
@@ -1,9 +1,16 @@
 package model;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Set;
+
+import util.PhaseEvent;
+import util.RouteMetrics;
 
 /**
  * Models a trip.
@@ -14,10 +21,23 @@ import java.util.ListIterator;
 
 public class Trip {
 	
+	/** Timestamp of a trip which has no known time */
+	public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+	
 	/** Tourist who takes a trip */
 	private Tourist tourist;
 	/** Trip destinations */
 	private LinkedList<Destination> destinations;
+	/** Ids of trip destinations, assigned by {@link DestinationRegistry} */
+	private int[] itinerary;
+	/** Rolling hashes of itinerary prefixes */
+	private long[] prefixHashes;
+	/** Travel distances of itinerary prefixes in kilometers */
+	private double[] prefixDistances;
+	/** Dictionary of destinations which assigned the itinerary ids */
+	private DestinationRegistry destinationRegistry;
+	/** Time of the trip in milliseconds since the epoch, or <code>NO_TIMESTAMP</code> if time is not known */
+	private long timestamp = NO_TIMESTAMP;
 	
 
 	public Trip() {
@@ -48,6 +68,7 @@ public class Trip {
 	 * @return List of found routes.
 	 */
 	public List<Route> findRoutes() {	
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.ENUMERATE);
 		List<Route> routes = new ArrayList<>();
 		LinkedList<Stage> stages = findStages();
 		ListIterator<Stage> listIterator = stages.listIterator();
@@ -62,6 +83,7 @@ public class Trip {
 			}
 			lastStage = stage;
 		}
+		RouteMetrics.end(event, routes.size(), 0);
 		return routes;
 		
 	}
@@ -72,6 +94,7 @@ public class Trip {
 	 * @return List of found routes.
 	 */
 	public List<Route> findRoutes(int minLength) {
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.ENUMERATE);
 		List<Route> routes = new ArrayList<>();
 		LinkedList<Stage> stages = findStages();
 		for(int length = minLength; length <= stages.size(); length++) {
@@ -88,38 +111,179 @@ public class Trip {
 				}
 			}
 		}
+		RouteMetrics.end(event, routes.size(), 0);
 		return routes;
 	}
 	
 	/**
 	 * Finds all routes with minimum <code>minLength</code> stages that includes 
 	 * <code>destinationName</code> destination.
+	 * Destination names are checked only once for each destination, 
+	 * and found routes are deduplicated in a hash set.
 	 * @param minLength Minimum number of stages in route
 	 * @param destinationName Name of required destination
 	 * @return List of found routes.
 	 */
 	public List<Route> findRoutes(int minLength, String destinationName) {
-		List<Route> routes = new ArrayList<>();
-		LinkedList<Stage> stages = findStages();
-		for(int length = minLength; length <= stages.size(); length++) {
-			ListIterator<Stage> listIterator = stages.listIterator();
-			LinkedList<Stage> routeStages = new LinkedList<>();
-			while (listIterator.hasNext()) {
-				Stage stage = listIterator.next();
-				routeStages.addLast(stage);
-				if(routeStages.size() == length) {
-					if(includesDestination(routeStages, destinationName)) {
-						Route route = new Route();
-						route.addStages(routeStages);
-						if(!routes.contains(route)) {
-							routes.add(route);
-						}
-					}	
-					routeStages.removeFirst();
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.ENUMERATE);
+		Set<Route> routes = new LinkedHashSet<>();
+		List<Stage> stages = new ArrayList<>(findStages());
+		boolean[] matches = new boolean[destinations.size()];
+		int position = 0;
+		for(Destination destination : destinations) {
+			matches[position++] = destination.getName().contains(destinationName);
+		}
+		int[] requiredEnd = new int[matches.length];
+		fillRequiredEnd(requiredEnd, matches);
+		for(int length = Math.max(minLength, 1); length <= stages.size(); length++) {
+			for(int start = 0; start + length <= stages.size(); start++) {
+				if(start + length >= requiredEnd[start]) {
+					Route route = new Route();
+					route.addStages(new LinkedList<>(stages.subList(start, start + length)));
+					routes.add(route);
 				}
 			}
 		}
-		return routes;
+		RouteMetrics.end(event, routes.size(), 0);
+		return new ArrayList<>(routes);
+	}
+
+	/**
+	 * Visits all routes with <code>minLength</code> to <code>maxLength</code> stages without creating route objects. 
+	 * Every route is visited together with its rolling hash, which is calculated in constant time
+	 * from prefix hashes of the itinerary.
+	 * Trip has to be registered in {@link DestinationRegistry} first.
+	 * @param minLength Minimum number of stages in route
+	 * @param maxLength Maximum number of stages in route
+	 * @param routeVisitor Callback which is called for every found route
+	 * @return Number of visited routes
+	 */
+	public int visitRoutes(int minLength, int maxLength, RouteVisitor routeVisitor) {
+		return visitRoutes(minLength, maxLength, Collections.emptyList(), routeVisitor);
+	}
+
+	/**
+	 * Visits all routes with <code>minLength</code> to <code>maxLength</code> stages, which includes
+	 * a destination from each of the <code>requiredDestinations</code>, without creating route objects. 
+	 * Every route is visited together with its rolling hash, which is calculated in constant time
+	 * from prefix hashes of the itinerary.
+	 * For each position in itinerary, the position where a route starting there first includes all required destinations
+	 * is found once, so each route is checked in constant time for any number of required destinations.
+	 * Trip has to be registered in {@link DestinationRegistry} first.
+	 * @param minLength Minimum number of stages in route
+	 * @param maxLength Maximum number of stages in route
+	 * @param requiredDestinations Ids of required destinations, one set for each required destination.
+	 * 		If the list is empty, any route is accepted.
+	 * @param routeVisitor Callback which is called for every found route
+	 * @return Number of visited routes
+	 */
+	public int visitRoutes(int minLength, int maxLength, List<BitSet> requiredDestinations, RouteVisitor routeVisitor) {
+		long[] prefixHashes = getPrefixHashes();
+		int[] requiredEnd = findRequiredEnd(requiredDestinations);
+		int firstLength = Math.max(minLength, 1);
+		int lastLength = Math.min(maxLength, itinerary.length - 1);
+		int visited = 0;
+		long power = 1;
+		for(int i = 0; i <= firstLength; i++) {
+			power *= RouteKey.HASH_BASE;
+		}
+		for(int length = firstLength; length <= lastLength; length++) {
+			for(int start = 0; start + length < itinerary.length; start++) {
+				if(start + length >= requiredEnd[start]) {
+					routeVisitor.visitRoute(start, length, prefixHashes[start + length + 1] - prefixHashes[start] * power);
+					visited++;
+				}
+			}
+			power *= RouteKey.HASH_BASE;
+		}
+		return visited;
+	}
+	
+	/**
+	 * Finds for each position in itinerary the position where a route starting there first includes 
+	 * a destination from each of the required destinations.
+	 * Route starting at position <code>i</code> includes all required destinations only if it ends at 
+	 * <code>requiredEnd[i]</code> or later.
+	 * Trip has to be registered in {@link DestinationRegistry} first.
+	 * @param requiredDestinations Ids of required destinations, one set for each required destination
+	 * @return Minimum end position of a route starting at each position, 
+	 * 		or <code>Integer.MAX_VALUE</code> if no route starting there includes all required destinations
+	 */
+	public int[] findRequiredEnd(List<BitSet> requiredDestinations) {
+		int[] requiredEnd = new int[itinerary.length];
+		boolean[] matches = new boolean[itinerary.length];
+		for(BitSet destinationIds : requiredDestinations) {
+			for(int position = 0; position < itinerary.length; position++) {
+				matches[position] = destinationIds.get(itinerary[position]);
+			}
+			fillRequiredEnd(requiredEnd, matches);
+		}
+		return requiredEnd;
+	}
+	
+	/**
+	 * Raises the required end of a route starting at each position to the nearest following matching position. 
+	 * Route starting at position <code>i</code> includes a matching destination only if it ends at 
+	 * <code>requiredEnd[i]</code> or later.
+	 * @param requiredEnd Minimum end position of a route starting at each position
+	 * @param matches Tells for each position if its destination matches
+	 */
+	private static void fillRequiredEnd(int[] requiredEnd, boolean[] matches) {
+		int nextMatch = Integer.MAX_VALUE;
+		for(int position = matches.length - 1; position >= 0; position--) {
+			if(matches[position]) {
+				nextMatch = position;
+			}
+			requiredEnd[position] = Math.max(requiredEnd[position], nextMatch);
+		}
+	}
+	
+	/**
+	 * Returns rolling hashes of all itinerary prefixes, calculating them on first use.
+	 * @return Array where element <code>i</code> is the hash of first <code>i</code> destination ids
+	 */
+	public long[] getPrefixHashes() {
+		if(prefixHashes == null) {
+			prefixHashes = RouteKey.prefixHashes(itinerary);
+		}
+		return prefixHashes;
+	}
+
+	/**
+	 * Returns travel distances of all itinerary prefixes, calculating them on first use.
+	 * Stage distances are read from the cache of the dictionary of destinations, 
+	 * so this method is not thread-safe until distances are calculated.
+	 * Trip has to be registered in {@link DestinationRegistry} first.
+	 * @return Array where element <code>i</code> is the distance from the first to the <code>i</code>-th destination (counting from 0)
+	 */
+	public double[] getPrefixDistances() {
+		if(prefixDistances == null) {
+			double[] distances = new double[itinerary.length];
+			for(int i = 1; i < itinerary.length; i++) {
+				distances[i] = distances[i - 1] + destinationRegistry.getStageDistance(itinerary[i - 1], itinerary[i]);
+			}
+			prefixDistances = distances;
+		}
+		return prefixDistances;
+	}
+	
+	/**
+	 * Tells if travel distances of itinerary prefixes are already calculated.
+	 * @return If {@link #getDistance(int, int)} can be used
+	 */
+	public boolean hasPrefixDistances() {
+		return prefixDistances != null;
+	}
+	
+	/**
+	 * Returns travel distance of a route given by its position in itinerary, in constant time.
+	 * Prefix distances have to be calculated first, with {@link #getPrefixDistances()}.
+	 * @param start Position of the first route destination in itinerary
+	 * @param length Number of stages in route
+	 * @return Distance in kilometers
+	 */
+	public double getDistance(int start, int length) {
+		return prefixDistances[start + length] - prefixDistances[start];
 	}
 
 	/**
@@ -149,10 +313,39 @@ public class Trip {
 	}
 	public void setDestinations(LinkedList<Destination> destinations) {
 		this.destinations = destinations;
+		this.itinerary = null;
+		this.prefixHashes = null;
+		this.prefixDistances = null;
+	}
+	public int[] getItinerary() {
+		return itinerary;
+	}
+	public void setItinerary(int[] itinerary) {
+		this.itinerary = itinerary;
+		this.prefixHashes = null;
+		this.prefixDistances = null;
+	}
+	public DestinationRegistry getDestinationRegistry() {
+		return destinationRegistry;
+	}
+	public void setDestinationRegistry(DestinationRegistry destinationRegistry) {
+		this.destinationRegistry = destinationRegistry;
+	}
+	public long getTimestamp() {
+		return timestamp;
+	}
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+	public boolean hasTimestamp() {
+		return timestamp != NO_TIMESTAMP;
 	}
 
 	public void addDestination(Destination destination) {
 		destinations.add(destination);
+		itinerary = null;
+		prefixHashes = null;
+		prefixDistances = null;
 	}
 
 }
@@ -1,11 +1,21 @@
 package model;
 
+import java.io.File;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import util.PhaseEvent;
+import util.RouteMetrics;
 
 /**
  * Represents collection of all trips and their routes.
@@ -18,147 +28,982 @@ public class TripCollection {
 
 	/** Collection of all trips */
 	private List<Trip> trips;
-	/** All found routes and their popularity */
+	/** All found routes and their popularity, created from <code>routeCounter</code> on demand */
 	private Map<Route, Integer> routes;
+	/** Popularity of all found routes */
+	private RouteCounter routeCounter;
 	/** Maximum route popularity */
 	int maxRoutePopularity;
+	/** Dictionary of destinations in trips */
+	private DestinationRegistry destinationRegistry;
+	/** Number of threads used for counting routes */
+	private int parallelism = 1;
+	/** Suffix automaton over itineraries of all trips, built on first use */
+	private SuffixAutomaton suffixAutomaton;
+	/** Index of best routes, maintained while trips are added in incremental mode */
+	private IncrementalIndex incrementalIndex;
+	/** Version of trips, increased whenever trips are added or replaced */
+	private volatile long version;
+	/** Spatial index of destinations, built on the first query with required areas */
+	private DestinationGrid destinationGrid;
+	/** Maximum estimated size of counted routes in memory in bytes, 0 if routes are always counted in memory */
+	private long memoryBudget;
+	/** Directory where counted routes are written when they exceed the memory budget */
+	private File spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+	/** Popularity of routes in time buckets, maintained in incremental mode, or <code>null</code> if routes are not counted in time */
+	private WindowedRouteCounter windowedCounter;
 	
 	public TripCollection() {
+		this(new DestinationRegistry());
+	}
+	
+	/**
+	 * Creates trip collection that uses given dictionary of destinations. 
+	 * If trips are converted with a registry, the same registry should be used here.
+	 * @param destinationRegistry Dictionary of destinations
+	 */
+	public TripCollection(DestinationRegistry destinationRegistry) {
 		trips = new ArrayList<>();
-		routes = new HashMap<>();
+		routeCounter = new RouteCounter();
+		this.destinationRegistry = destinationRegistry;
 	}
 
 	
 	/**
 	 * Finds all routes with two stages and their popularity, in collection of trips. 
-	 * The result is placed in <code>routes</code> attribute. <br>
+	 * The result is placed in <code>routeCounter</code> attribute. <br>
 	 * We iterate trough collection of trips and do following in each iteration:
 	 * <ul>
-	 * 	<li>Find all routes for current trip</li>
-	 * 	<li>Iterate trough found routes and check if the current route is contained in a map of routes.
-	 * 		If it is contained, we increase the route popularity. On the contrary, we put it in the map 
-	 * 		and set its popularity to 1.
+	 * 	<li>Visit all routes of current trip by their position in trip itinerary</li>
+	 * 	<li>Increase popularity of visited route in the counter. 
+	 * 		Only the first appearance of a route creates a counter entry.
 	 * 	</li>
 	 * </ul>
+	 * Route objects are created only when they are needed, in {@link #findBestRoute()} and {@link #getRoutes()}.
 	 */
 	public void findAllRoutes() {
-		for(Trip trip : trips) {
-			List<Route> tripRoutes = trip.findRoutes();
-			for(Route route : tripRoutes) {
-				if(!routes.containsKey(route)) {
-					routes.put(route, 1);
-				}
-				else {
-					routes.put(route, routes.get(route) + 1);
-				}
-			}
-		}
+		countRoutes(2, 2, Collections.emptyList(), Double.POSITIVE_INFINITY);
 	}
 	
 	/**
 	 * Finds all routes with minimum <code>minLength</code> stages and their popularity, in collection of trips.
-	 * The result is placed in <code>routes</code> attribute. <br>
+	 * The result is placed in <code>routeCounter</code> attribute. <br>
 	 * We iterate trough collection of trips and do following in each iteration:
 	 * <ul>
-	 * 	<li>Find all routes for current trip</li>
-	 * 	<li>Iterate trough found routes and check if the current route is contained in a map of routes.
-	 * 		If it is contained, we increase the route popularity. On the contrary, we put it in the map 
-	 * 		and set its popularity to 1.
+	 * 	<li>Visit all routes of current trip by their position in trip itinerary</li>
+	 * 	<li>Increase popularity of visited route in the counter. 
+	 * 		Only the first appearance of a route creates a counter entry.
 	 * 	</li>
 	 * </ul>
+	 * Route objects are created only when they are needed, in {@link #findBestRoute()} and {@link #getRoutes()}.
 	 * @param minLength Minimum number of stages in route
 	 */
 	public void findAllRoutes(int minLength) {
-		for(Trip trip : trips) {
-			List<Route> tripRoutes = trip.findRoutes(minLength);
-			for(Route route : tripRoutes) {
-				if(!routes.containsKey(route)) {
-					routes.put(route, 1);
-				}
-				else {
-					routes.put(route, routes.get(route) + 1);
-				}
-			}
-		}
+		countRoutes(minLength, Integer.MAX_VALUE, Collections.emptyList(), Double.POSITIVE_INFINITY);
 	}
 	
 	/**
 	 * Finds all routes with minimum <code>minLength</code> stages, that includes 
 	 * <code>destinationName</code> destination, and their popularity, in collection of trips.
-	 * The result is placed in <code>routes</code> attribute. <br>
+	 * The result is placed in <code>routeCounter</code> attribute. <br>
 	 * We iterate trough collection of trips and do following in each iteration:
 	 * <ul>
-	 * 	<li>Find all routes for current trip</li>
-	 * 	<li>Iterate trough found routes and check if the current route is contained in a map of routes.
-	 * 		If it is contained, we increase the route popularity. On the contrary, we put it in the map 
-	 * 		and set its popularity to 1.
+	 * 	<li>Visit all routes of current trip, which include required destination, by their position in trip itinerary</li>
+	 * 	<li>Increase popularity of visited route in the counter, if it is not already counted for current trip. 
+	 * 		Only the first appearance of a route creates a counter entry.
 	 * 	</li>
 	 * </ul>
+	 * Route objects are created only when they are needed, in {@link #findBestRoute()} and {@link #getRoutes()}.
 	 * @param minLength Minimum number of stages in route
 	 * @param destinationName Name of required destination
 	 */
 	public void findAllRoutes(int minLength, String destinationName) {
-		for(Trip trip : trips) {
-			List<Route> tripRoutes = trip.findRoutes(minLength, destinationName);
-			for(Route route : tripRoutes) {
-				if(!routes.containsKey(route)) {
-					routes.put(route, 1);
+		countRoutes(minLength, Integer.MAX_VALUE, Collections.singletonList(destinationRegistry.findDestinations(destinationName)), 
+				Double.POSITIVE_INFINITY);
+	}
+	
+	/**
+	 * Finds all routes with minimum <code>minLength</code> stages, that includes all of the
+	 * <code>destinationNames</code> destinations, and their popularity, in collection of trips.
+	 * Routes are checked for all required destinations in the same pass over trips.
+	 * The result is placed in <code>routeCounter</code> attribute.
+	 * @param minLength Minimum number of stages in route
+	 * @param destinationNames Names of required destinations
+	 */
+	public void findAllRoutes(int minLength, List<String> destinationNames) {
+		countRoutes(minLength, Integer.MAX_VALUE, destinationRegistry.findDestinations(destinationNames), Double.POSITIVE_INFINITY);
+	}
+	
+	/**
+	 * Finds all routes described by a query and their popularity, in collection of trips.
+	 * The result is placed in <code>routeCounter</code> attribute.
+	 * @param routeQuery Query with minimum and maximum number of stages, optional required destinations and areas
+	 * 		and optional maximum travel distance
+	 */
+	public void findAllRoutes(RouteQuery routeQuery) {
+		countRoutes(routeQuery.getMinLength(), routeQuery.getMaxLength(), findRequiredDestinations(routeQuery), routeQuery.getMaxDistance());
+	}
+	
+	/**
+	 * Finds ids of destinations required by a query, one set for each required destination name and area.
+	 * Destinations inside of areas are found in the spatial index of destinations, 
+	 * so only the destinations near each area are checked.
+	 * @param routeQuery Query with optional required destinations and areas
+	 * @return List of sets of destination ids
+	 */
+	private List<BitSet> findRequiredDestinations(RouteQuery routeQuery) {
+		if(routeQuery.getAreas().isEmpty()) {
+			return destinationRegistry.findDestinations(routeQuery.getDestinationNames());
+		}
+		synchronized (this) {
+			// trips are registered first, so the index includes all their destinations
+			for(Trip trip : trips) {
+				itinerary(trip);
+			}
+			if(destinationGrid == null) {
+				destinationGrid = new DestinationGrid(destinationRegistry);
+			}
+			return destinationGrid.findRequiredDestinations(routeQuery);
+		}
+	}
+	
+	/**
+	 * Counts routes found in every trip and adds their popularity to <code>routeCounter</code> attribute.
+	 * Counted routes are mixed with the routes counted in incremental mode, so incremental mode is ended.
+	 * @param minLength Minimum number of stages in route
+	 * @param maxLength Maximum number of stages in route
+	 * @param requiredDestinations Ids of required destinations, one set for each required destination.
+	 * 		Routes with required destinations are counted once per trip.
+	 * @param maxDistance Maximum travel distance of route in kilometers, infinite if routes are not filtered by distance
+	 */
+	private void countRoutes(int minLength, int maxLength, List<BitSet> requiredDestinations, double maxDistance) {
+		if(memoryBudget > 0) {
+			routeCounter = countExternalRoutes(minLength, maxLength, requiredDestinations, maxDistance);
+			routes = null;
+			incrementalIndex = null;
+			return;
+		}
+		RouteCounter tripRoutes = countAllRoutes(minLength, maxLength, requiredDestinations, maxDistance);
+		if(routeCounter.size() == 0) {
+			routeCounter = tripRoutes;
+		}
+		else {
+			routeCounter.addAll(tripRoutes);
+		}
+		routes = null;
+		incrementalIndex = null;
+		RouteMetrics.setDistinctRoutes(routeCounter.size());
+	}
+	
+	/**
+	 * Counts routes found in every trip with bounded memory, on the calling thread. <br>
+	 * Routes are counted with {@link ExternalRouteCounter}, which writes counted routes into sorted runs on disk
+	 * whenever they exceed <code>memoryBudget</code>, and merges the runs at the end. 
+	 * Merged routes are not kept, only the most popular routes with maximum number of stages are returned,
+	 * so {@link #findBestRoute()} gives the same result as after counting in memory, 
+	 * but {@link #getRoutes()} only returns the best routes.
+	 * @param minLength Minimum number of stages in route
+	 * @param maxLength Maximum number of stages in route
+	 * @param requiredDestinations Ids of required destinations, one set for each required destination.
+	 * 		Routes with required destinations are counted once per trip.
+	 * @param maxDistance Maximum travel distance of route in kilometers, infinite if routes are not filtered by distance
+	 * @return Counter with popularity of the best routes
+	 */
+	private RouteCounter countExternalRoutes(int minLength, int maxLength, List<BitSet> requiredDestinations, double maxDistance) {
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.COUNT);
+		prepareTrips(maxDistance != Double.POSITIVE_INFINITY);
+		ExternalRouteCounter externalCounter = new ExternalRouteCounter(spillDirectory, memoryBudget);
+		// already counted routes are added to the first run
+		externalCounter.getRouteCounter().addAll(routeCounter);
+		boolean oncePerTrip = !requiredDestinations.isEmpty();
+		long windows = 0;
+		for(int i = 0; i < trips.size(); i++) {
+			int tripIndex = i;
+			Trip trip = trips.get(i);
+			int[] itinerary = trip.getItinerary();
+			RouteCounter tripRoutes = externalCounter.getRouteCounter();
+			windows += trip.visitRoutes(minLength, maxLength, requiredDestinations, (start, length, hash) -> {
+				if(maxDistance == Double.POSITIVE_INFINITY || trip.getDistance(start, length) <= maxDistance) {
+					tripRoutes.add(tripIndex, itinerary, start, length, hash, oncePerTrip);
+				}
+			});
+			externalCounter.endTrip();
+		}
+		RouteMetrics.addWindows(windows);
+		RouteMetrics.end(event, trips.size(), externalCounter.getSpilledBytes());
+		PhaseEvent selectEvent = RouteMetrics.begin(RouteMetrics.Phase.SELECT_BEST);
+		List<int[]> bestIds = new ArrayList<>();
+		List<int[]> bestValues = new ArrayList<>();
+		// maximum popularity, maximum number of stages of most popular routes and number of merged routes
+		int[] best = new int[3];
+		externalCounter.merge((destinationIds, count, firstTrip, start) -> {
+			best[2]++;
+			int length = destinationIds.length - 1;
+			if(count < best[0] || (count == best[0] && length < best[1])) {
+				return;
+			}
+			if(count > best[0] || length > best[1]) {
+				best[0] = count;
+				best[1] = length;
+				bestIds.clear();
+				bestValues.clear();
+			}
+			bestIds.add(destinationIds);
+			bestValues.add(new int[] {count, firstTrip, start});
+		});
+		RouteCounter bestRoutes = new RouteCounter();
+		for(int i = 0; i < bestIds.size(); i++) {
+			int[] destinationIds = bestIds.get(i);
+			int[] values = bestValues.get(i);
+			long hash = new RouteKey(destinationIds).rollingHash();
+			if(values[1] < trips.size()) {
+				bestRoutes.add(values[1], trips.get(values[1]).getItinerary(), values[2], destinationIds.length - 1, hash, values[0]);
+			}
+			else {
+				bestRoutes.add(values[1], values[2], destinationIds, 0, destinationIds.length - 1, hash, values[0]);
+			}
+		}
+		RouteMetrics.end(selectEvent, best[2], 0);
+		RouteMetrics.setDistinctRoutes(best[2]);
+		return bestRoutes;
+	}
+	
+	/**
+	 * Counts routes found in every trip into a new counter.
+	 * If <code>parallelism</code> is greater than 1, trips are split between fork-join workers,
+	 * each worker counts its part of trips into its own counter, and partial counters are merged at the end.
+	 * @param minLength Minimum number of stages in route
+	 * @param maxLength Maximum number of stages in route
+	 * @param requiredDestinations Ids of required destinations, one set for each required destination.
+	 * 		Routes with required destinations are counted once per trip.
+	 * @param maxDistance Maximum travel distance of route in kilometers, infinite if routes are not filtered by distance
+	 * @return Counter with popularity of found routes
+	 */
+	private RouteCounter countAllRoutes(int minLength, int maxLength, List<BitSet> requiredDestinations, double maxDistance) {
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.COUNT);
+		// trips are registered before counting, because the dictionary of destinations is not thread-safe
+		prepareTrips(maxDistance != Double.POSITIVE_INFINITY);
+		RouteCounter tripRoutes;
+		if(parallelism <= 1 || trips.size() < 2) {
+			tripRoutes = countRoutes(minLength, maxLength, requiredDestinations, maxDistance, 0, trips.size());
+		}
+		else {
+			ForkJoinPool forkJoinPool = new ForkJoinPool(parallelism);
+			try {
+				int granularity = Math.max(1, trips.size() / (parallelism * 8));
+				tripRoutes = forkJoinPool.invoke(new CountRoutesTask(minLength, maxLength, requiredDestinations, maxDistance, 0, trips.size(), granularity));
+			}
+			finally {
+				forkJoinPool.shutdown();
+			}
+		}
+		RouteMetrics.end(event, trips.size(), 0);
+		return tripRoutes;
+	}
+	
+	/**
+	 * Counts routes found in a part of trips.
+	 * @param minLength Minimum number of stages in route
+	 * @param maxLength Maximum number of stages in route
+	 * @param requiredDestinations Ids of required destinations, one set for each required destination
+	 * @param maxDistance Maximum travel distance of route in kilometers, infinite if routes are not filtered by distance
+	 * @param from Index of the first trip (inclusive)
+	 * @param to Index of the last trip (exclusive)
+	 * @return Counter with popularity of found routes
+	 */
+	private RouteCounter countRoutes(int minLength, int maxLength, List<BitSet> requiredDestinations, double maxDistance, int from, int to) {
+		RouteCounter tripRoutes = new RouteCounter();
+		boolean oncePerTrip = !requiredDestinations.isEmpty();
+		long windows = 0;
+		for(int i = from; i < to; i++) {
+			int tripIndex = i;
+			Trip trip = trips.get(i);
+			int[] itinerary = trip.getItinerary();
+			if(maxDistance == Double.POSITIVE_INFINITY) {
+				windows += trip.visitRoutes(minLength, maxLength, requiredDestinations, 
+						(start, length, hash) -> tripRoutes.add(tripIndex, itinerary, start, length, hash, oncePerTrip));
+			}
+			else {
+				// distance of every route is a difference of two prefix distances
+				windows += trip.visitRoutes(minLength, maxLength, requiredDestinations, (start, length, hash) -> {
+					if(trip.getDistance(start, length) <= maxDistance) {
+						tripRoutes.add(tripIndex, itinerary, start, length, hash, oncePerTrip);
+					}
+				});
+			}
+		}
+		RouteMetrics.addWindows(windows);
+		return tripRoutes;
+	}
+	
+	/**
+	 * Fork-join task which counts routes in a part of trips.
+	 * Parts bigger than <code>granularity</code> are split in halves, 
+	 * and the counts of the right half are merged into the counts of the left half.
+	 */
+	private class CountRoutesTask extends RecursiveTask<RouteCounter> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		/** Minimum number of stages in route */
+		private final int minLength;
+		/** Maximum number of stages in route */
+		private final int maxLength;
+		/** Ids of required destinations, one set for each required destination */
+		private final List<BitSet> requiredDestinations;
+		/** Maximum travel distance of route in kilometers */
+		private final double maxDistance;
+		/** Index of the first trip (inclusive) */
+		private final int from;
+		/** Index of the last trip (exclusive) */
+		private final int to;
+		/** Maximum number of trips counted without splitting */
+		private final int granularity;
+		
+		CountRoutesTask(int minLength, int maxLength, List<BitSet> requiredDestinations, double maxDistance, int from, int to, int granularity) {
+			this.minLength = minLength;
+			this.maxLength = maxLength;
+			this.requiredDestinations = requiredDestinations;
+			this.maxDistance = maxDistance;
+			this.from = from;
+			this.to = to;
+			this.granularity = granularity;
+		}
+
+		@Override
+		protected RouteCounter compute() {
+			if(to - from <= granularity) {
+				return countRoutes(minLength, maxLength, requiredDestinations, maxDistance, from, to);
+			}
+			int middle = (from + to) >>> 1;
+			CountRoutesTask right = new CountRoutesTask(minLength, maxLength, requiredDestinations, maxDistance, middle, to, granularity);
+			right.fork();
+			RouteCounter tripRoutes = new CountRoutesTask(minLength, maxLength, requiredDestinations, maxDistance, from, middle, granularity).compute();
+			tripRoutes.addAll(right.join());
+			return tripRoutes;
+		}
+		
+	}
+	
+	/**
+	 * Starts incremental mode, where every added trip immediately updates route popularity and the index of best routes,
+	 * so {@link #findBestRoute()} only returns already known best routes. <br>
+	 * Routes of trips already in collection are counted first. Incremental mode ends when routes are counted 
+	 * with <code>findAllRoutes</code> methods or replaced with {@link #setRoutes(Map)}.
+	 * @param routeQuery Query which describes counted routes, or <code>null</code> to end incremental mode
+	 */
+	public void setIncrementalQuery(RouteQuery routeQuery) {
+		routeCounter = new RouteCounter();
+		routes = null;
+		maxRoutePopularity = 0;
+		incrementalIndex = routeQuery == null ? null : new IncrementalIndex(routeQuery);
+		if(windowedCounter != null) {
+			windowedCounter.clear();
+		}
+		if(incrementalIndex != null) {
+			for(int i = 0; i < trips.size(); i++) {
+				incrementalIndex.countRoutes(i);
+			}
+		}
+	}
+	
+	public RouteQuery getIncrementalQuery() {
+		return incrementalIndex == null ? null : incrementalIndex.routeQuery;
+	}
+	
+	/**
+	 * Index of best routes in incremental mode. 
+	 * Popularity of a route only grows, so the best routes change only when popularity of some route 
+	 * reaches the maximum popularity, and each counted route is checked in constant time.
+	 */
+	private class IncrementalIndex {
+		
+		/** Query which describes counted routes */
+		private final RouteQuery routeQuery;
+		/** Ids of required destinations, one set for each required destination */
+		private final List<BitSet> requiredDestinations;
+		/** Number of registered destinations already checked for required destinations */
+		private int checkedDestinations;
+		/** Maximum number of stages in most popular routes */
+		private int maxRouteLength;
+		/** Most popular routes with maximum number of stages */
+		private final List<RouteCounter.Entry> bestEntries = new ArrayList<>();
+		
+		IncrementalIndex(RouteQuery routeQuery) {
+			this.routeQuery = routeQuery;
+			this.requiredDestinations = new ArrayList<>();
+			for(int i = 0; i < routeQuery.getDestinationNames().size() + routeQuery.getAreas().size(); i++) {
+				requiredDestinations.add(new BitSet());
+			}
+		}
+		
+		/**
+		 * Counts routes of a trip and updates best routes.
+		 * @param tripIndex Index of the trip in collection
+		 */
+		void countRoutes(int tripIndex) {
+			Trip trip = itinerary(trips.get(tripIndex));
+			int[] itinerary = trip.getItinerary();
+			// only destinations registered since the last trip are checked
+			int nameCount = routeQuery.getDestinationNames().size();
+			for(; checkedDestinations < destinationRegistry.size(); checkedDestinations++) {
+				Destination destination = destinationRegistry.getDestination(checkedDestinations);
+				for(int i = 0; i < nameCount; i++) {
+					if(destination.getName().contains(routeQuery.getDestinationNames().get(i))) {
+						requiredDestinations.get(i).set(checkedDestinations);
+					}
+				}
+				for(int i = 0; i < routeQuery.getAreas().size(); i++) {
+					if(routeQuery.getAreas().get(i).contains(destination)) {
+						requiredDestinations.get(nameCount + i).set(checkedDestinations);
+					}
+				}
+			}
+			boolean oncePerTrip = !requiredDestinations.isEmpty();
+			double maxDistance = routeQuery.getMaxDistance();
+			if(routeQuery.hasMaxDistance()) {
+				trip.getPrefixDistances();
+			}
+			// trips without time are added before time buckets are set, so they are not counted in any bucket
+			RouteCounter bucketRoutes = windowedCounter == null || !trip.hasTimestamp() ? null 
+					: windowedCounter.getRouteCounter(trip.getTimestamp());
+			int windows = trip.visitRoutes(routeQuery.getMinLength(), routeQuery.getMaxLength(), requiredDestinations, (start, length, hash) -> {
+				if(maxDistance != Double.POSITIVE_INFINITY && trip.getDistance(start, length) > maxDistance) {
+					return;
+				}
+				int index = routeCounter.add(tripIndex, itinerary, start, length, hash, oncePerTrip);
+				if(index >= 0) {
+					updateBestRoutes(index);
 				}
-				else {
-					routes.put(route, routes.get(route) + 1);
+				if(bucketRoutes != null) {
+					bucketRoutes.add(tripIndex, itinerary, start, length, hash, oncePerTrip);
 				}
+			});
+			RouteMetrics.addWindows(windows);
+			RouteMetrics.setDistinctRoutes(routeCounter.size());
+		}
+		
+		/**
+		 * Updates best routes after popularity of a route is increased.
+		 * @param index Index of the counted route
+		 */
+		private void updateBestRoutes(int index) {
+			int count = routeCounter.getCount(index);
+			int length = routeCounter.getLength(index);
+			if(count > maxRoutePopularity || (count == maxRoutePopularity && length > maxRouteLength)) {
+				maxRoutePopularity = count;
+				maxRouteLength = length;
+				bestEntries.clear();
+				bestEntries.add(routeCounter.getEntry(index));
+			}
+			else if(count == maxRoutePopularity && length == maxRouteLength) {
+				bestEntries.add(routeCounter.getEntry(index));
 			}
 		}
+		
 	}
 	
 	/**
-	 * Finds best route in a map of routes and their popularity. <br>
+	 * Registers all trips in the dictionary of destinations and optionally calculates their prefix distances,
+	 * so the trips can be read from many threads. The dictionary of destinations and its cache of stage distances 
+	 * are not thread-safe, so trips are prepared under the lock of the collection, 
+	 * and concurrent queries wait until the first of them prepares the trips.
+	 * @param distances If prefix distances of trips are calculated
+	 */
+	private synchronized void prepareTrips(boolean distances) {
+		for(Trip trip : trips) {
+			itinerary(trip);
+			if(distances) {
+				trip.getPrefixDistances();
+			}
+		}
+	}
+	
+	/**
+	 * Registers trip in the dictionary of destinations, if its itinerary is not known yet
+	 * or it is registered in another dictionary.
+	 * @param trip Trip to register
+	 * @return Registered trip
+	 */
+	private Trip itinerary(Trip trip) {
+		if(trip.getItinerary() == null || trip.getDestinationRegistry() != destinationRegistry) {
+			destinationRegistry.register(trip);
+		}
+		return trip;
+	}
+	
+	/**
+	 * Finds best route in a counter of routes and their popularity. <br>
 	 * Firstly, we check for the maximum route popularity of all routes,
 	 * then we find maximum number of stages in most popular routes,
 	 * and finally filter only routes with maximum popularity and maximum number of stages.
+	 * Only the filtered routes are converted to route objects, 
+	 * in the order of their first appearance in collection of trips.
+	 * In incremental mode, the best routes are already known and only converted to route objects.
 	 * @return List of most popular routes with maximum number of stages.
 	 */
 	public List<Route> findBestRoute() {
-		List<Route> bestRoutes = new ArrayList<Route>();
+		if(incrementalIndex != null) {
+			return toRoutes(new ArrayList<>(incrementalIndex.bestEntries), destinationRegistry, trips);
+		}
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.SELECT_BEST);
+		List<RouteCounter.Entry> bestEntries = findBestEntries(routeCounter);
+		this.maxRoutePopularity = bestEntries.isEmpty() ? 0 : bestEntries.get(0).getCount();
+		RouteMetrics.end(event, routeCounter.size(), 0);
+		return toRoutes(bestEntries, destinationRegistry, trips);
+	}
+	
+	/**
+	 * Finds most popular routes of the trips in a time window, in incremental mode with time buckets. <br>
+	 * Routes are already counted in time buckets while trips are added, so only the counters of the buckets 
+	 * which overlap the window are merged, and no trip is counted again. Window is rounded to whole buckets, 
+	 * and buckets older than the ring of time buckets are not included.
+	 * <code>maxRoutePopularity</code> attribute keeps all-time popularity.
+	 * @param from Start of the window (inclusive)
+	 * @param to End of the window (exclusive)
+	 * @return Most popular routes with maximum number of stages in the window, in the order of their first appearance 
+	 * 		or in distance order of the incremental query, and their popularity in the window
+	 * @throws IllegalStateException If routes are not counted in time buckets
+	 */
+	public BestRoutes findBestRoute(Instant from, Instant to) {
+		if(incrementalIndex == null || windowedCounter == null) {
+			throw new IllegalStateException("Routes are counted in time buckets only in incremental mode with time buckets");
+		}
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.SELECT_BEST);
+		RouteCounter windowRoutes = windowedCounter.count(from.toEpochMilli(), to.toEpochMilli());
+		List<RouteCounter.Entry> bestEntries = findBestEntries(windowRoutes);
+		RouteMetrics.end(event, windowRoutes.size(), 0);
+		List<Route> bestRoutes = incrementalIndex.routeQuery.getDistanceOrder().sort(toRoutes(bestEntries, destinationRegistry, trips));
+		return new BestRoutes(bestRoutes, bestEntries.isEmpty() ? 0 : bestEntries.get(0).getCount());
+	}
+	
+	/**
+	 * Drops popularity of time buckets which are older than the ring of time buckets ending at a time.
+	 * It takes at most one step per bucket, regardless of the number of expired routes.
+	 * @param time Time of the newest bucket
+	 */
+	public void expireTimeBuckets(Instant time) {
+		if(windowedCounter != null) {
+			windowedCounter.expire(time.toEpochMilli());
+		}
+	}
+	
+	/**
+	 * Finds most popular routes described by a query. Routes are counted into a new counter,
+	 * so <code>routeCounter</code> attribute and incremental mode are not changed.
+	 * Result is the same as after {@link #findAllRoutes(RouteQuery)} and {@link #findBestRoute()} on a collection without counted routes.
+	 * Method can be called from many threads at the same time, as long as trips are not added meanwhile.
+	 * @param routeQuery Query with minimum and maximum number of stages, optional required destinations and areas
+	 * 		and optional maximum travel distance
+	 * @return Most popular routes with maximum number of stages, in the order of their first appearance 
+	 * 		or in distance order of the query, and their popularity
+	 */
+	public BestRoutes findBestRoute(RouteQuery routeQuery) {
+		RouteCounter queryRoutes = countAllRoutes(routeQuery.getMinLength(), routeQuery.getMaxLength(), 
+				findRequiredDestinations(routeQuery), routeQuery.getMaxDistance());
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.SELECT_BEST);
+		List<RouteCounter.Entry> bestEntries = findBestEntries(queryRoutes);
+		RouteMetrics.end(event, queryRoutes.size(), 0);
+		// prefix distances are read only when this query prepared them, because other queries may be preparing them now
+		List<Trip> distanceTrips = routeQuery.hasMaxDistance() ? trips : Collections.emptyList();
+		List<Route> bestRoutes = routeQuery.getDistanceOrder().sort(toRoutes(bestEntries, destinationRegistry, distanceTrips));
+		return new BestRoutes(bestRoutes, bestEntries.isEmpty() ? 0 : bestEntries.get(0).getCount());
+	}
+	
+	/**
+	 * Finds most popular routes for each of the queries, in a single pass over trips. <br>
+	 * Routes of each trip are visited only once, for the widest range of route lengths of all queries,
+	 * and every visited route is counted for each query whose range of lengths and required destinations it matches.
+	 * Each query has its own counter, so the results are the same as if each query is answered 
+	 * by {@link #findBestRoute(RouteQuery)}, and <code>routeCounter</code> attribute is not changed.
+	 * @param routeQueries Queries with minimum and maximum number of stages and optional required destinations
+	 * @return Most popular routes and their popularity for each query, in the order of queries
+	 */
+	public List<BestRoutes> findBestRoutes(List<RouteQuery> routeQueries) {
+		int queryCount = routeQueries.size();
+		int[] minLengths = new int[queryCount];
+		int[] maxLengths = new int[queryCount];
+		double[] maxDistances = new double[queryCount];
+		boolean distances = false;
+		List<List<BitSet>> requiredDestinations = new ArrayList<>(queryCount);
+		RouteCounter[] queryRoutes = new RouteCounter[queryCount];
+		int minLength = Integer.MAX_VALUE;
+		int maxLength = 0;
+		for(int query = 0; query < queryCount; query++) {
+			RouteQuery routeQuery = routeQueries.get(query);
+			minLengths[query] = Math.max(routeQuery.getMinLength(), 1);
+			maxLengths[query] = routeQuery.getMaxLength();
+			maxDistances[query] = routeQuery.getMaxDistance();
+			distances |= routeQuery.hasMaxDistance();
+			requiredDestinations.add(findRequiredDestinations(routeQuery));
+			queryRoutes[query] = new RouteCounter();
+			minLength = Math.min(minLength, minLengths[query]);
+			maxLength = Math.max(maxLength, maxLengths[query]);
+		}
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.COUNT);
+		long windows = 0;
+		int[][] requiredEnds = new int[queryCount][];
+		for(int i = 0; i < trips.size(); i++) {
+			int tripIndex = i;
+			Trip trip = itinerary(trips.get(i));
+			int[] itinerary = trip.getItinerary();
+			if(distances) {
+				trip.getPrefixDistances();
+			}
+			// required destinations are found once per trip for each query, so each route is checked in constant time
+			for(int query = 0; query < queryCount; query++) {
+				requiredEnds[query] = requiredDestinations.get(query).isEmpty() ? null : trip.findRequiredEnd(requiredDestinations.get(query));
+			}
+			windows += trip.visitRoutes(minLength, maxLength, (start, length, hash) -> {
+				for(int query = 0; query < queryCount; query++) {
+					if(length < minLengths[query] || length > maxLengths[query]) {
+						continue;
+					}
+					if(maxDistances[query] != Double.POSITIVE_INFINITY && trip.getDistance(start, length) > maxDistances[query]) {
+						continue;
+					}
+					if(requiredEnds[query] == null) {
+						queryRoutes[query].add(tripIndex, itinerary, start, length, hash, false);
+					}
+					else if(start + length >= requiredEnds[query][start]) {
+						queryRoutes[query].add(tripIndex, itinerary, start, length, hash, true);
+					}
+				}
+			});
+		}
+		RouteMetrics.addWindows(windows);
+		RouteMetrics.end(event, trips.size(), 0);
+		List<BestRoutes> results = new ArrayList<>(queryCount);
+		for(int query = 0; query < queryCount; query++) {
+			List<RouteCounter.Entry> bestEntries = findBestEntries(queryRoutes[query]);
+			List<Route> bestRoutes = routeQueries.get(query).getDistanceOrder().sort(toRoutes(bestEntries, destinationRegistry, trips));
+			results.add(new BestRoutes(bestRoutes, bestEntries.isEmpty() ? 0 : bestEntries.get(0).getCount()));
+		}
+		return results;
+	}
+	
+	/**
+	 * Finds most popular routes with maximum number of stages in a counter of routes and their popularity.
+	 * @param routeCounter Counter with popularity of routes
+	 * @return Entries of best routes, in no particular order
+	 */
+	static List<RouteCounter.Entry> findBestEntries(RouteCounter routeCounter) {
+		// routes are read by their index, so entry views are created only for the best routes
 		int maxRoutePopularity = 0;
-		for (Integer popularity : routes.values()) {
-		    if(popularity > maxRoutePopularity) {
-		    	maxRoutePopularity = popularity;
+		for (int i = 0; i < routeCounter.size(); i++) {
+		    if(routeCounter.getCount(i) > maxRoutePopularity) {
+		    	maxRoutePopularity = routeCounter.getCount(i);
 		    }
 		}
-		this.maxRoutePopularity = maxRoutePopularity;
 		int maxRouteLength = 0;
-		for (Map.Entry<Route, Integer> entry : routes.entrySet()) {
-		    Integer popularity = entry.getValue();
-		    Route route = entry.getKey();
-	    	int routeLength = route.getStages().size();
-		    if(popularity == maxRoutePopularity) {
-		    	if(routeLength > maxRouteLength) {
-		    		maxRouteLength = routeLength; 
-		    	}
+		for (int i = 0; i < routeCounter.size(); i++) {
+		    if(routeCounter.getCount(i) == maxRoutePopularity && routeCounter.getLength(i) > maxRouteLength) {
+		    	maxRouteLength = routeCounter.getLength(i); 
 		    }
 		}
-		for (Map.Entry<Route, Integer> entry : routes.entrySet()) {
-		    Integer popularity = entry.getValue();
-		    Route route = entry.getKey();
-	    	int routeLength = route.getStages().size();
-		    if(popularity == maxRoutePopularity && routeLength == maxRouteLength) {
-		    	bestRoutes.add(route);
+		List<RouteCounter.Entry> bestEntries = new ArrayList<>();
+		for (int i = 0; i < routeCounter.size(); i++) {
+		    if(routeCounter.getCount(i) == maxRoutePopularity && routeCounter.getLength(i) == maxRouteLength) {
+		    	bestEntries.add(routeCounter.getEntry(i));
 		    }
 		}
+		return bestEntries;
+	}
+	
+	/**
+	 * Converts counted routes to route objects, in the order of their first appearance.
+	 * If prefix distances of the trip where a route first appears are calculated, route gets its distance from them,
+	 * the same distance which is compared with maximum travel distance of the query, 
+	 * so routes are ordered and written by the distance they are filtered by.
+	 * @param entries Counted routes
+	 * @param destinationRegistry Dictionary of destinations in counted routes
+	 * @param trips Trips whose indexes are the first appearances of counted routes
+	 * @return List of routes
+	 */
+	static List<Route> toRoutes(List<RouteCounter.Entry> entries, DestinationRegistry destinationRegistry, List<Trip> trips) {
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.CONVERT);
+		entries.sort(FIRST_APPEARANCE);
+		List<Route> bestRoutes = new ArrayList<Route>();
+		for (RouteCounter.Entry entry : entries) {
+			Route route = destinationRegistry.toRoute(entry.getKey());
+			int firstTrip = entry.getFirstTrip();
+			if(firstTrip >= 0 && firstTrip < trips.size()) {
+				Trip trip = trips.get(firstTrip);
+				// routes merged from other counters may refer to their own copy of the itinerary
+				if(trip.hasPrefixDistances() && trip.getItinerary() == entry.getItinerary()) {
+					route.setDistance(trip.getDistance(entry.getOffset(), entry.getLength()));
+				}
+			}
+			bestRoutes.add(route);
+		}
+		RouteMetrics.end(event, bestRoutes.size(), 0);
+		return bestRoutes;
+	}
+	
+	/**
+	 * Finds best route with <code>minLength</code> to <code>maxLength</code> stages, without counting all routes. <br>
+	 * Popularity of a route is the number of its appearances in trip itineraries, so the most popular route 
+	 * is the most frequent substring of itineraries. It is found in a suffix automaton over all itineraries,
+	 * which is built once for the collection of trips in time and memory linear in the number of destinations.
+	 * Result and <code>maxRoutePopularity</code> are the same as after {@link #findAllRoutes(int)} 
+	 * (or {@link #findAllRoutes()} for two stages) and {@link #findBestRoute()}, 
+	 * but <code>routes</code> attribute is not changed.
+	 * @param minLength Minimum number of stages in route
+	 * @param maxLength Maximum number of stages in route
+	 * @return List of most popular routes with maximum number of stages.
+	 */
+	public List<Route> findBestRoute(int minLength, int maxLength) {
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.SELECT_BEST);
+		if(suffixAutomaton == null) {
+			for(Trip trip : trips) {
+				itinerary(trip);
+			}
+			suffixAutomaton = new SuffixAutomaton(trips);
+		}
+		List<RouteKey> bestRouteKeys = new ArrayList<>();
+		maxRoutePopularity = suffixAutomaton.findBestRoutes(minLength, maxLength, bestRouteKeys);
+		RouteMetrics.end(event, suffixAutomaton.size(), 0);
+		event = RouteMetrics.begin(RouteMetrics.Phase.CONVERT);
+		List<Route> bestRoutes = new ArrayList<Route>();
+		for (RouteKey routeKey : bestRouteKeys) {
+			bestRoutes.add(destinationRegistry.toRoute(routeKey));
+		}
+		RouteMetrics.end(event, bestRoutes.size(), 0);
 		return bestRoutes;
 	}
 	
+	/**
+	 * Finds best route with <code>minLength</code> to <code>maxLength</code> stages level by level, 
+	 * counting only the routes which can still be the most popular. <br>
+	 * A route is never more popular than its own prefix, so the best popularity is the popularity of 
+	 * the most popular route with <code>minLength</code> stages, and all routes are counted only on that level.
+	 * Then routes are extended by one destination on each level, but only at the positions of routes 
+	 * which still have the best popularity, because the extensions of other routes can never reach it.
+	 * Search stops when no extended route has the best popularity, or when <code>maxLength</code> is reached,
+	 * so its time after the first level is proportional to the appearances of the most popular routes, and not to all routes.
+	 * Result and <code>maxRoutePopularity</code> are the same as after {@link #findAllRoutes(int)} 
+	 * (or {@link #findAllRoutes()} for two stages) and {@link #findBestRoute()}, 
+	 * but <code>routeCounter</code> attribute is not changed.
+	 * @param minLength Minimum number of stages in route
+	 * @param maxLength Maximum number of stages in route
+	 * @return List of most popular routes with maximum number of stages.
+	 */
+	public List<Route> findBestRouteLevelWise(int minLength, int maxLength) {
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.COUNT);
+		int length = Math.max(minLength, 1);
+		long power = 1;
+		for(int i = 0; i <= length; i++) {
+			power *= RouteKey.HASH_BASE;
+		}
+		// on the first level, all routes with minimum number of stages are counted
+		RouteCounter levelRoutes = new RouteCounter();
+		long windows = 0;
+		for(int i = 0; i < trips.size() && length <= maxLength; i++) {
+			int[] itinerary = itinerary(trips.get(i)).getItinerary();
+			long[] prefixHashes = trips.get(i).getPrefixHashes();
+			for(int start = 0; start + length < itinerary.length; start++) {
+				levelRoutes.add(i, itinerary, start, length, prefixHashes[start + length + 1] - prefixHashes[start] * power, false);
+				windows++;
+			}
+		}
+		int popularity = 0;
+		for(int i = 0; i < levelRoutes.size(); i++) {
+			popularity = Math.max(popularity, levelRoutes.getCount(i));
+		}
+		// appearances of the most popular routes, as trip index in upper and start position in lower 32 bits
+		long[] appearances = new long[16];
+		int appearanceCount = 0;
+		for(int i = 0; i < trips.size() && popularity > 0; i++) {
+			int[] itinerary = trips.get(i).getItinerary();
+			long[] prefixHashes = trips.get(i).getPrefixHashes();
+			for(int start = 0; start + length < itinerary.length; start++) {
+				if(levelRoutes.getCount(itinerary, start, length, prefixHashes[start + length + 1] - prefixHashes[start] * power) == popularity) {
+					if(appearanceCount == appearances.length) {
+						appearances = Arrays.copyOf(appearances, appearanceCount * 2);
+					}
+					appearances[appearanceCount++] = (long) i << 32 | start;
+				}
+			}
+		}
+		// on each next level, only the routes which can still have the best popularity are extended and counted
+		while(appearanceCount > 0 && length < maxLength) {
+			int nextLength = length + 1;
+			long nextPower = power * RouteKey.HASH_BASE;
+			RouteCounter nextRoutes = new RouteCounter();
+			for(int a = 0; a < appearanceCount; a++) {
+				int tripIndex = (int) (appearances[a] >>> 32);
+				int start = (int) appearances[a];
+				int[] itinerary = trips.get(tripIndex).getItinerary();
+				long[] prefixHashes = trips.get(tripIndex).getPrefixHashes();
+				if(start + nextLength < itinerary.length) {
+					nextRoutes.add(tripIndex, itinerary, start, nextLength, prefixHashes[start + nextLength + 1] - prefixHashes[start] * nextPower, false);
+					windows++;
+				}
+			}
+			int nextAppearanceCount = 0;
+			for(int a = 0; a < appearanceCount; a++) {
+				int tripIndex = (int) (appearances[a] >>> 32);
+				int start = (int) appearances[a];
+				int[] itinerary = trips.get(tripIndex).getItinerary();
+				long[] prefixHashes = trips.get(tripIndex).getPrefixHashes();
+				if(start + nextLength < itinerary.length && nextRoutes.getCount(itinerary, start, nextLength, 
+						prefixHashes[start + nextLength + 1] - prefixHashes[start] * nextPower) == popularity) {
+					appearances[nextAppearanceCount++] = appearances[a];
+				}
+			}
+			if(nextAppearanceCount == 0) {
+				break;
+			}
+			appearanceCount = nextAppearanceCount;
+			levelRoutes = nextRoutes;
+			length = nextLength;
+			power = nextPower;
+		}
+		RouteMetrics.addWindows(windows);
+		RouteMetrics.end(event, trips.size(), 0);
+		maxRoutePopularity = popularity;
+		List<RouteCounter.Entry> bestEntries = new ArrayList<>();
+		for(int i = 0; i < levelRoutes.size(); i++) {
+			if(levelRoutes.getCount(i) == popularity) {
+				bestEntries.add(levelRoutes.getEntry(i));
+			}
+		}
+		return toRoutes(bestEntries, destinationRegistry, trips);
+	}
+	
+	/**
+	 * Estimates most popular routes described by a query, using fixed memory of approximate counter. <br>
+	 * All routes are visited as in {@link #findAllRoutes(RouteQuery)}, but instead of counting every distinct route,
+	 * only the routes that are likely the most popular are monitored by the approximate counter.
+	 * <code>routes</code> attribute is not changed.
+	 * @param routeQuery Query which describes counted routes
+	 * @param topRouteCounter Empty approximate counter, whose capacity is the number of estimated routes
+	 * @return List of estimated routes, from the most popular.
+	 */
+	public List<RouteEstimate> estimateTopRoutes(RouteQuery routeQuery, TopRouteCounter topRouteCounter) {
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.COUNT);
+		List<BitSet> requiredDestinations = findRequiredDestinations(routeQuery);
+		double maxDistance = routeQuery.getMaxDistance();
+		long windows = 0;
+		for(int i = 0; i < trips.size(); i++) {
+			int tripIndex = i;
+			Trip trip = itinerary(trips.get(i));
+			int[] itinerary = trip.getItinerary();
+			if(routeQuery.hasMaxDistance()) {
+				trip.getPrefixDistances();
+				// routes with required destination are counted once per trip
+				boolean oncePerTrip = !requiredDestinations.isEmpty();
+				RouteCounter tripRoutes = oncePerTrip ? new RouteCounter() : null;
+				windows += trip.visitRoutes(routeQuery.getMinLength(), routeQuery.getMaxLength(), requiredDestinations, (start, length, hash) -> {
+					if(trip.getDistance(start, length) > maxDistance) {
+						return;
+					}
+					if(!oncePerTrip || tripRoutes.add(tripIndex, itinerary, start, length, hash, true) >= 0) {
+						topRouteCounter.add(tripIndex, itinerary, start, length, hash);
+					}
+				});
+			}
+			else if(requiredDestinations.isEmpty()) {
+				windows += trip.visitRoutes(routeQuery.getMinLength(), routeQuery.getMaxLength(), 
+						(start, length, hash) -> topRouteCounter.add(tripIndex, itinerary, start, length, hash));
+			}
+			else {
+				// routes with required destination are counted once per trip
+				RouteCounter tripRoutes = new RouteCounter();
+				windows += trip.visitRoutes(routeQuery.getMinLength(), routeQuery.getMaxLength(), requiredDestinations, (start, length, hash) -> {
+					if(tripRoutes.add(tripIndex, itinerary, start, length, hash, true) >= 0) {
+						topRouteCounter.add(tripIndex, itinerary, start, length, hash);
+					}
+				});
+			}
+		}
+		RouteMetrics.addWindows(windows);
+		RouteMetrics.end(event, trips.size(), 0);
+		List<RouteEstimate> topRoutes = new ArrayList<>();
+		for(TopRouteCounter.Entry entry : topRouteCounter.getEntries()) {
+			topRoutes.add(new RouteEstimate(destinationRegistry.toRoute(entry.getKey()), entry.getCount(), entry.getError()));
+		}
+		return topRoutes;
+	}
+	
+	/**
+	 * Finds <code>count</code> most popular routes in a counter of routes and their popularity.
+	 * Routes with the same popularity are ordered from the longest, then by their first appearance.
+	 * @param count Number of routes to find
+	 * @return List of most popular routes with exact popularity.
+	 */
+	public List<RouteEstimate> findTopRoutes(int count) {
+		Comparator<RouteCounter.Entry> order = Comparator.comparingInt(RouteCounter.Entry::getCount).reversed()
+				.thenComparing(Comparator.comparingInt(RouteCounter.Entry::getLength).reversed())
+				.thenComparing(FIRST_APPEARANCE);
+		PriorityQueue<RouteCounter.Entry> topEntries = new PriorityQueue<>(order.reversed());
+		for(RouteCounter.Entry entry : routeCounter) {
+			topEntries.add(entry);
+			if(topEntries.size() > count) {
+				topEntries.poll();
+			}
+		}
+		List<RouteCounter.Entry> entries = new ArrayList<>(topEntries);
+		entries.sort(order);
+		List<RouteEstimate> topRoutes = new ArrayList<>();
+		for(RouteCounter.Entry entry : entries) {
+			topRoutes.add(new RouteEstimate(destinationRegistry.toRoute(entry.getKey()), entry.getCount(), 0));
+		}
+		return topRoutes;
+	}
+	
+	/**
+	 * Returns popularity of a route in a counter of routes and their popularity.
+	 * @param route Route whose popularity is returned
+	 * @return Route popularity, or 0 if route is not found.
+	 */
+	public int getPopularity(Route route) {
+		return routeCounter.getCount(destinationRegistry.toRouteKey(route));
+	}
+	
+	/** Orders counted routes by the trip and position of their first appearance */
+	static final Comparator<RouteCounter.Entry> FIRST_APPEARANCE = 
+			Comparator.comparingInt(RouteCounter.Entry::getFirstTrip).thenComparingInt(RouteCounter.Entry::getStart);
+	
 	public List<Trip> getTrips() {
 		return trips;
 	}
 	public void setTrips(List<Trip> trips) {
 		this.trips = trips;
+		this.version++;
+		this.suffixAutomaton = null;
+		for(Trip trip : trips) {
+			itinerary(trip);
+		}
+		if(incrementalIndex != null) {
+			setIncrementalQuery(incrementalIndex.routeQuery);
+		}
 	}	
+	/**
+	 * Returns map of all found routes and their popularity. 
+	 * The map is created from counted routes on the first call after routes are counted.
+	 * @return Map of routes and their popularity
+	 */
 	public Map<Route, Integer> getRoutes() {
+		if(routes == null) {
+			routes = new HashMap<>();
+			for(RouteCounter.Entry entry : routeCounter) {
+				routes.put(destinationRegistry.toRoute(entry.getKey()), entry.getCount());
+			}
+		}
 		return routes;
 	}
+	/**
+	 * Replaces all found routes and their popularity.
+	 * @param routes Map of routes and their popularity
+	 */
 	public void setRoutes(Map<Route, Integer> routes) {
+		this.routeCounter = new RouteCounter();
+		this.incrementalIndex = null;
+		for(Map.Entry<Route, Integer> entry : routes.entrySet()) {
+			RouteKey routeKey = destinationRegistry.toRouteKey(entry.getKey());
+			routeCounter.add(Integer.MAX_VALUE, routeKey.getDestinationIds(), 0, routeKey.getLength(), routeKey.rollingHash(), entry.getValue());
+		}
 		this.routes = routes;
 	}
 	public int getMaxRoutePopularity() {
@@ -167,9 +1012,101 @@ public class TripCollection {
 	public void setMaxRoutePopularity(int maxRoutePopularity) {
 		this.maxRoutePopularity = maxRoutePopularity;
 	}
+	public DestinationRegistry getDestinationRegistry() {
+		return destinationRegistry;
+	}
+	public RouteCounter getRouteCounter() {
+		return routeCounter;
+	}
+	/**
+	 * Replaces popularity of all found routes, for example with the routes counted in an earlier run.
+	 * Counted routes have to refer to the itineraries of trips in this collection.
+	 * @param routeCounter Counter with popularity of routes
+	 */
+	public void setRouteCounter(RouteCounter routeCounter) {
+		this.routeCounter = routeCounter;
+		this.routes = null;
+		this.incrementalIndex = null;
+	}
+	
+	/**
+	 * Returns itinerary of a trip, registering the trip in the dictionary of destinations if needed.
+	 * @param tripIndex Index of the trip in collection
+	 * @return Destination ids of the trip
+	 */
+	public int[] getItinerary(int tripIndex) {
+		return itinerary(trips.get(tripIndex)).getItinerary();
+	}
+	/**
+	 * Returns version of trips, which is increased by {@link #addTrip(Trip)} and {@link #setTrips(List)}.
+	 * Results found for the same version of trips are equal.
+	 * @return Version of trips
+	 */
+	public long getVersion() {
+		return version;
+	}
+	public int getParallelism() {
+		return parallelism;
+	}
+	/**
+	 * Sets number of threads used for counting routes. Result of counting is the same for any parallelism.
+	 * @param parallelism Number of threads, 1 for counting on the calling thread
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+	/**
+	 * Sets memory budget for counting routes. If budget is greater than 0, routes are counted on one thread,
+	 * and counted routes are written to disk whenever their estimated size exceeds the budget.
+	 * Only the best routes are kept after counting.
+	 * @param memoryBudget Maximum estimated size of counted routes in bytes, 0 for counting in memory
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	public WindowedRouteCounter getWindowedCounter() {
+		return windowedCounter;
+	}
+	/**
+	 * Sets ring of time buckets where routes are counted in incremental mode, in addition to their all-time popularity.
+	 * Routes of trips already in collection are counted again if collection is in incremental mode.
+	 * Trips without timestamp get the time when they are added into collection, which is kept with them,
+	 * so they stay in the same bucket when they are counted again or loaded from snapshot.
+	 * Trips without timestamp which are added before time buckets are set are not counted in buckets.
+	 * @param bucketMillis Duration of every bucket in milliseconds
+	 * @param bucketCount Number of kept buckets, or 0 if routes are not counted in time buckets
+	 */
+	public void setTimeBuckets(long bucketMillis, int bucketCount) {
+		windowedCounter = bucketCount == 0 ? null : new WindowedRouteCounter(bucketMillis, bucketCount);
+		if(incrementalIndex != null) {
+			setIncrementalQuery(incrementalIndex.routeQuery);
+		}
+	}
+
+	public File getSpillDirectory() {
+		return spillDirectory;
+	}
+	public void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
 
 	public void addTrip(Trip trip) {
-		trips.add(trip);
+		if(windowedCounter != null && !trip.hasTimestamp()) {
+			// arrival time is the time of the trip, and it is saved into snapshot with the trip
+			trip.setTimestamp(System.currentTimeMillis());
+		}
+		trips.add(itinerary(trip));
+		version++;
+		suffixAutomaton = null;
+		if(incrementalIndex != null) {
+			incrementalIndex.countRoutes(trips.size() - 1);
+			routes = null;
+		}
 	}
 	
 }
@@ -0,0 +1,151 @@
+package model;
+
+/**
+ * Counts popularity of routes in a ring of time buckets, so popularity can be evaluated over a recent time window. <br>
+ * Time is split into buckets of equal duration, and routes of every trip are counted with {@link RouteCounter}
+ * of the bucket which contains time of the trip. Ring keeps only the newest <code>bucketCount</code> buckets.
+ * When a trip newer than the newest bucket is counted, the ring advances and the slots of buckets which fall out
+ * of the ring are emptied, so expiring old popularity costs at most one step per bucket, without counting any trip again.
+ * Popularity over a time window is found by merging counters of the buckets in the window,
+ * so the window is rounded to whole buckets.
+ *
+ * @author Milan Sovic
+ */
+
+public class WindowedRouteCounter {
+
+	/** Duration of every bucket in milliseconds */
+	private final long bucketMillis;
+	/** Counters of buckets, bucket with number <code>b</code> is in slot <code>b % bucketCount</code> */
+	private final RouteCounter[] buckets;
+	/** Number of the bucket held in each slot, bucket number is time divided by bucket duration */
+	private final long[] bucketNumbers;
+	/** Number of the newest bucket, or <code>Long.MIN_VALUE</code> if no trip is counted yet */
+	private long newestBucket = Long.MIN_VALUE;
+
+	/**
+	 * Creates empty ring of time buckets.
+	 * @param bucketMillis Duration of every bucket in milliseconds
+	 * @param bucketCount Number of kept buckets
+	 */
+	public WindowedRouteCounter(long bucketMillis, int bucketCount) {
+		if(bucketMillis <= 0 || bucketCount <= 0) {
+			throw new IllegalArgumentException("Duration and number of buckets have to be positive");
+		}
+		this.bucketMillis = bucketMillis;
+		this.buckets = new RouteCounter[bucketCount];
+		this.bucketNumbers = new long[bucketCount];
+	}
+
+	/**
+	 * Returns counter of the bucket which contains a time, advancing the ring if time is after the newest bucket.
+	 * @param time Time in milliseconds since the epoch
+	 * @return Counter where routes of a trip with given time are counted,
+	 * 		or <code>null</code> if the bucket of the time is already expired
+	 */
+	public RouteCounter getRouteCounter(long time) {
+		long bucket = Math.floorDiv(time, bucketMillis);
+		advance(bucket);
+		if(bucket <= newestBucket - buckets.length) {
+			return null;
+		}
+		int slot = (int) Math.floorMod(bucket, (long) buckets.length);
+		if(buckets[slot] == null) {
+			buckets[slot] = new RouteCounter();
+		}
+		return buckets[slot];
+	}
+
+	/**
+	 * Advances the ring so that the bucket which contains a time is the newest bucket,
+	 * and drops popularity of all buckets which are older than the ring.
+	 * Nothing is changed if the time is not after the newest bucket.
+	 * @param time Time in milliseconds since the epoch
+	 */
+	public void expire(long time) {
+		advance(Math.floorDiv(time, bucketMillis));
+	}
+
+	/**
+	 * Makes a bucket the newest bucket, emptying slots of the buckets which fall out of the ring.
+	 * At most one slot is emptied for each bucket of the ring.
+	 * @param bucket Number of the new newest bucket
+	 */
+	private void advance(long bucket) {
+		if(newestBucket != Long.MIN_VALUE && bucket <= newestBucket) {
+			return;
+		}
+		// slots of the buckets between the newest bucket and the new one are reused
+		long steps = newestBucket == Long.MIN_VALUE || bucket - newestBucket > buckets.length ? buckets.length : bucket - newestBucket;
+		for(long i = 0; i < steps; i++) {
+			long emptyBucket = bucket - i;
+			int slot = (int) Math.floorMod(emptyBucket, (long) buckets.length);
+			buckets[slot] = null;
+			bucketNumbers[slot] = emptyBucket;
+		}
+		newestBucket = bucket;
+	}
+
+	/**
+	 * Merges popularity of routes counted in all kept buckets which overlap a time window.
+	 * Every route keeps its first appearance, so routes of the result are ordered the same as in all-time counting.
+	 * @param from Start of the window in milliseconds since the epoch (inclusive)
+	 * @param to End of the window in milliseconds since the epoch (exclusive)
+	 * @return New counter with popularity of routes in the window
+	 */
+	public RouteCounter count(long from, long to) {
+		RouteCounter windowRoutes = new RouteCounter();
+		if(newestBucket == Long.MIN_VALUE || from >= to) {
+			return windowRoutes;
+		}
+		long firstBucket = Math.max(Math.floorDiv(from, bucketMillis), newestBucket - buckets.length + 1);
+		long lastBucket = Math.min(Math.floorDiv(to - 1, bucketMillis), newestBucket);
+		for(long bucket = firstBucket; bucket <= lastBucket; bucket++) {
+			int slot = (int) Math.floorMod(bucket, (long) buckets.length);
+			if(bucketNumbers[slot] == bucket && buckets[slot] != null) {
+				windowRoutes.addAll(buckets[slot]);
+			}
+		}
+		return windowRoutes;
+	}
+
+	/**
+	 * Drops popularity of all buckets.
+	 */
+	public void clear() {
+		for(int slot = 0; slot < buckets.length; slot++) {
+			buckets[slot] = null;
+		}
+		newestBucket = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Returns start of the oldest kept bucket.
+	 * @return Time in milliseconds since the epoch, or <code>Long.MIN_VALUE</code> if no trip is counted yet
+	 */
+	public long getOldestTime() {
+		return newestBucket == Long.MIN_VALUE ? Long.MIN_VALUE : (newestBucket - buckets.length + 1) * bucketMillis;
+	}
+
+	/**
+	 * Number of distinct routes counted in all kept buckets, where routes counted in more buckets are counted for each bucket.
+	 * @return Number of bucket entries
+	 */
+	public long size() {
+		long size = 0;
+		for(RouteCounter bucket : buckets) {
+			if(bucket != null) {
+				size += bucket.size();
+			}
+		}
+		return size;
+	}
+
+	public long getBucketMillis() {
+		return bucketMillis;
+	}
+	public int getBucketCount() {
+		return buckets.length;
+	}
+
+}
@@ -1,18 +1,37 @@
 package util;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
 
+import model.Area;
+import model.BoxArea;
+import model.CircleArea;
 import model.Destination;
+import model.DestinationRegistry;
+import model.DistanceOrder;
 import model.Route;
+import model.RouteEstimate;
+import model.RouteQuery;
 import model.Stage;
 import model.Tourist;
 import model.Trip;
+import model.TripCollection;
 
 /**
  * Helper class for converting from JSON to model objects and vice versa.
@@ -21,8 +40,26 @@ import model.Trip;
  */
 
 public class Converter {
+	
+	/** Dictionary of destinations where converted trips are registered */
+	private DestinationRegistry destinationRegistry;
+	/** If travel distance of every route is included in converted routes */
+	private boolean includeDistance;
+	
+	public Converter() {}
+	
+	/**
+	 * Creates converter that registers every converted trip in a dictionary of destinations,
+	 * so equal destinations share one instance and trips get their itinerary of destination ids.
+	 * @param destinationRegistry Dictionary of destinations
+	 */
+	public Converter(DestinationRegistry destinationRegistry) {
+		this.destinationRegistry = destinationRegistry;
+	}
 
 	/** Converts JSON object to trip object from a model.
+	 * Trip has optional <code>timestamp</code>, either as ISO-8601 text (for example <code>2024-05-01T10:15:30Z</code>)
+	 * or as a number of milliseconds since the epoch.
 	 * @param jsonObject JSON object for conversion
 	 * @return Converted trip object
 	 */
@@ -33,11 +70,22 @@ public class Converter {
 		Tourist tourist = jsonObjectToTourist(jsonObject.getJsonObject("tourist"));
 		trip.setTourist(tourist);
 		
+		if(jsonObject.get("timestamp") instanceof JsonString) {
+			trip.setTimestamp(parseTimestamp(jsonObject.getString("timestamp")));
+		}
+		else if(jsonObject.get("timestamp") instanceof JsonNumber) {
+			trip.setTimestamp(jsonObject.getJsonNumber("timestamp").longValue());
+		}
+		
 		JsonArray destinationsJsonArray = jsonObject.getJsonArray("destinations");
 		for(JsonObject destinationJsonObject : destinationsJsonArray.getValuesAs(JsonObject.class)) {
 			Destination destination = jsonObjectToDestination(destinationJsonObject);
 			trip.addDestination(destination);
 		}
+		
+		if(destinationRegistry != null) {
+			destinationRegistry.register(trip);
+		}
 
 		return trip;
 	}
@@ -67,6 +115,299 @@ public class Converter {
 		return destination;
 	}
 	
+	/** Reads trips from JSON parser and adds them one by one into trip collection.
+	 * Unlike reading the whole document with <code>JsonReader</code>, only the trip that is currently
+	 * being converted is held in memory, so memory usage is bounded by the largest trip and not by the input size.
+	 * @param jsonParser JSON parser positioned before the start of input document
+	 * @param tripCollection Trip collection where converted trips are added
+	 */
+	public void jsonParserToTrips(JsonParser jsonParser, TripCollection tripCollection) {
+		jsonParserToTrips(jsonParser, tripCollection, 0, 1);
+	}
+	
+	/** Reads one shard of trips from JSON parser and adds them one by one into trip collection.
+	 * Trips are assigned to shards in turn by their index in input, so trip with index <code>i</code> belongs to
+	 * shard <code>i % shardCount</code>. Trips of other shards are skipped without conversion.
+	 * @param jsonParser JSON parser positioned before the start of input document
+	 * @param tripCollection Trip collection where converted trips are added
+	 * @param shardIndex Index of the shard, from 0 to <code>shardCount - 1</code>
+	 * @param shardCount Number of shards
+	 */
+	public void jsonParserToTrips(JsonParser jsonParser, TripCollection tripCollection, int shardIndex, int shardCount) {
+		
+		if(!jsonParser.hasNext() || jsonParser.next() != Event.START_OBJECT) {
+			return;
+		}
+		while(jsonParser.hasNext()) {
+			Event event = jsonParser.next();
+			if(event == Event.END_OBJECT) {
+				break;
+			}
+			String key = jsonParser.getString();
+			event = jsonParser.next();
+			if(key.equals("trips") && event == Event.START_ARRAY) {
+				int tripIndex = 0;
+				while((event = jsonParser.next()) != Event.END_ARRAY) {
+					if(event == Event.START_OBJECT && tripIndex++ % shardCount == shardIndex) {
+						tripCollection.addTrip(jsonParserToTrip(jsonParser));
+					}
+					else {
+						skipValue(jsonParser, event);
+					}
+				}
+			}
+			else {
+				skipValue(jsonParser, event);
+			}
+		}
+	}
+	
+	/** Reads array of trips from JSON parser. Elements of array that are not objects are skipped.
+	 * @param jsonParser JSON parser positioned before the start of array
+	 * @return Converted trips, in the order of array
+	 */
+	public List<Trip> jsonParserToTripArray(JsonParser jsonParser) {
+		
+		List<Trip> trips = new ArrayList<>();
+		if(!jsonParser.hasNext() || jsonParser.next() != Event.START_ARRAY) {
+			return trips;
+		}
+		Event event;
+		while((event = jsonParser.next()) != Event.END_ARRAY) {
+			if(event == Event.START_OBJECT) {
+				trips.add(jsonParserToTrip(jsonParser));
+			}
+			else {
+				skipValue(jsonParser, event);
+			}
+		}
+		return trips;
+	}
+	
+	/** Converts trip object, which start is already read from JSON parser, to trip object from a model.
+	 * Optional <code>timestamp</code> is read the same as in {@link #jsonObjectToTrip(JsonObject)}.
+	 * @param jsonParser JSON parser positioned right after the start of trip object
+	 * @return Converted trip object
+	 */
+	public Trip jsonParserToTrip(JsonParser jsonParser) {
+		
+		Trip trip = new Trip();
+		
+		Event event;
+		while((event = jsonParser.next()) != Event.END_OBJECT) {
+			String key = jsonParser.getString();
+			event = jsonParser.next();
+			if(key.equals("tourist") && event == Event.START_OBJECT) {
+				trip.setTourist(jsonParserToTourist(jsonParser));
+			}
+			else if(key.equals("destinations") && event == Event.START_ARRAY) {
+				while((event = jsonParser.next()) != Event.END_ARRAY) {
+					if(event == Event.START_OBJECT) {
+						trip.addDestination(jsonParserToDestination(jsonParser));
+					}
+					else {
+						skipValue(jsonParser, event);
+					}
+				}
+			}
+			else if(key.equals("timestamp") && event == Event.VALUE_STRING) {
+				trip.setTimestamp(parseTimestamp(jsonParser.getString()));
+			}
+			else if(key.equals("timestamp") && event == Event.VALUE_NUMBER) {
+				trip.setTimestamp(jsonParser.getLong());
+			}
+			else {
+				skipValue(jsonParser, event);
+			}
+		}
+		
+		if(destinationRegistry != null) {
+			destinationRegistry.register(trip);
+		}
+		
+		return trip;
+	}
+	
+	/** Converts tourist object, which start is already read from JSON parser, to tourist object from a model.
+	 * @param jsonParser JSON parser positioned right after the start of tourist object
+	 * @return Converted tourist object
+	 */
+	public Tourist jsonParserToTourist(JsonParser jsonParser) {
+		
+		Tourist tourist = new Tourist();
+		
+		Event event;
+		while((event = jsonParser.next()) != Event.END_OBJECT) {
+			String key = jsonParser.getString();
+			event = jsonParser.next();
+			if(key.equals("name") && event == Event.VALUE_STRING) {
+				tourist.setName(jsonParser.getString());
+			}
+			else if(key.equals("country_of_origin") && event == Event.VALUE_STRING) {
+				tourist.setCountryOfOrigin(jsonParser.getString());
+			}
+			else {
+				skipValue(jsonParser, event);
+			}
+		}
+		
+		return tourist;
+	}
+	
+	/** Converts destination object, which start is already read from JSON parser, to destination object from a model.
+	 * @param jsonParser JSON parser positioned right after the start of destination object
+	 * @return Converted destination object
+	 */
+	public Destination jsonParserToDestination(JsonParser jsonParser) {
+		
+		Destination destination = new Destination();
+		
+		Event event;
+		while((event = jsonParser.next()) != Event.END_OBJECT) {
+			String key = jsonParser.getString();
+			event = jsonParser.next();
+			if(key.equals("name") && event == Event.VALUE_STRING) {
+				destination.setName(jsonParser.getString());
+			}
+			else if(key.equals("latitude") && event == Event.VALUE_NUMBER) {
+				destination.setLatitude(jsonParser.getBigDecimal().doubleValue());
+			}
+			else if(key.equals("longitude") && event == Event.VALUE_NUMBER) {
+				destination.setLongitude(jsonParser.getBigDecimal().doubleValue());
+			}
+			else {
+				skipValue(jsonParser, event);
+			}
+		}
+		
+		return destination;
+	}
+	
+	/** Converts ISO-8601 text of a trip timestamp to milliseconds since the epoch.
+	 * @param timestamp Timestamp text, for example <code>2024-05-01T10:15:30Z</code>
+	 * @return Milliseconds since the epoch
+	 * @throws JsonException If text is not a valid timestamp
+	 */
+	private static long parseTimestamp(String timestamp) {
+		try {
+			return Instant.parse(timestamp).toEpochMilli();
+		}
+		catch (DateTimeParseException e) {
+			throw new JsonException("Invalid trip timestamp " + timestamp, e);
+		}
+	}
+	
+	/** Skips JSON value whose first event is already read from JSON parser.
+	 * Nested objects and arrays are skipped entirely.
+	 * @param jsonParser JSON parser positioned right after the first event of a value
+	 * @param event First event of a value
+	 */
+	private void skipValue(JsonParser jsonParser, Event event) {
+		
+		if(event != Event.START_OBJECT && event != Event.START_ARRAY) {
+			return;
+		}
+		int depth = 1;
+		while(depth > 0) {
+			event = jsonParser.next();
+			if(event == Event.START_OBJECT || event == Event.START_ARRAY) {
+				depth++;
+			}
+			else if(event == Event.END_OBJECT || event == Event.END_ARRAY) {
+				depth--;
+			}
+		}
+	}
+	
+	/** Converts JSON object to route query object from a model. 
+	 * Query object has optional <code>min_length</code>, <code>max_length</code> and <code>destinations</code> array,
+	 * and optional required areas: <code>near</code> object with <code>latitude</code>, <code>longitude</code> and <code>radius_km</code>,
+	 * and <code>bbox</code> object with <code>min_latitude</code>, <code>min_longitude</code>, <code>max_latitude</code> and <code>max_longitude</code>.
+	 * Routes can be limited with <code>max_distance_km</code>, and equally popular routes ordered with <code>distance_order</code>
+	 * (<code>shortest</code> or <code>longest</code>).
+	 * Without length and destinations it describes routes with two stages, the same as application without optional arguments.
+	 * @param jsonObject JSON object for conversion
+	 * @return Converted route query object
+	 */
+	public RouteQuery jsonObjectToRouteQuery(JsonObject jsonObject) {
+		
+		List<String> destinationNames = new ArrayList<>();
+		JsonArray destinationsJsonArray = jsonObject.getJsonArray("destinations");
+		if(destinationsJsonArray != null) {
+			for(JsonString destinationName : destinationsJsonArray.getValuesAs(JsonString.class)) {
+				destinationNames.add(destinationName.getString());
+			}
+		}
+		RouteQuery routeQuery;
+		if(!jsonObject.containsKey("min_length") && !jsonObject.containsKey("max_length") && destinationNames.isEmpty()) {
+			routeQuery = new RouteQuery();
+		}
+		else {
+			routeQuery = new RouteQuery(jsonObject.getInt("min_length", 2), jsonObject.getInt("max_length", Integer.MAX_VALUE), destinationNames);
+		}
+		if(jsonObject.containsKey("max_distance_km")) {
+			routeQuery.setMaxDistance(jsonObject.getJsonNumber("max_distance_km").doubleValue());
+		}
+		if(jsonObject.containsKey("distance_order")) {
+			routeQuery.setDistanceOrder(DistanceOrder.valueOf(jsonObject.getString("distance_order").toUpperCase()));
+		}
+		JsonObject nearJsonObject = jsonObject.getJsonObject("near");
+		if(nearJsonObject != null) {
+			routeQuery.getAreas().add(new CircleArea(nearJsonObject.getJsonNumber("latitude").doubleValue(), 
+					nearJsonObject.getJsonNumber("longitude").doubleValue(), nearJsonObject.getJsonNumber("radius_km").doubleValue()));
+		}
+		JsonObject bboxJsonObject = jsonObject.getJsonObject("bbox");
+		if(bboxJsonObject != null) {
+			routeQuery.getAreas().add(new BoxArea(bboxJsonObject.getJsonNumber("min_latitude").doubleValue(), 
+					bboxJsonObject.getJsonNumber("min_longitude").doubleValue(), bboxJsonObject.getJsonNumber("max_latitude").doubleValue(), 
+					bboxJsonObject.getJsonNumber("max_longitude").doubleValue()));
+		}
+		return routeQuery;
+	}
+	
+	/** Writes route query object from a model into JSON generator, as a <code>query</code> object.
+	 * @param jsonGenerator JSON generator positioned inside an object
+	 * @param routeQuery Route query object for writing
+	 */
+	public void writeRouteQuery(JsonGenerator jsonGenerator, RouteQuery routeQuery) {
+		
+		jsonGenerator.writeStartObject("query")
+				.write("min_length", routeQuery.getMinLength());
+		if(routeQuery.getMaxLength() != Integer.MAX_VALUE) {
+			jsonGenerator.write("max_length", routeQuery.getMaxLength());
+		}
+		jsonGenerator.writeStartArray("destinations");
+		for(String destinationName : routeQuery.getDestinationNames()) {
+			jsonGenerator.write(destinationName);
+		}
+		jsonGenerator.writeEnd();
+		if(routeQuery.hasMaxDistance()) {
+			jsonGenerator.write("max_distance_km", BigDecimal.valueOf(routeQuery.getMaxDistance()));
+		}
+		if(routeQuery.getDistanceOrder() != DistanceOrder.NONE) {
+			jsonGenerator.write("distance_order", routeQuery.getDistanceOrder().name().toLowerCase());
+		}
+		for(Area area : routeQuery.getAreas()) {
+			if(area instanceof CircleArea) {
+				CircleArea circleArea = (CircleArea) area;
+				jsonGenerator.writeStartObject("near")
+						.write("latitude", BigDecimal.valueOf(circleArea.getLatitude()))
+						.write("longitude", BigDecimal.valueOf(circleArea.getLongitude()))
+						.write("radius_km", BigDecimal.valueOf(circleArea.getRadius()))
+						.writeEnd();
+			}
+			else {
+				jsonGenerator.writeStartObject("bbox")
+						.write("min_latitude", BigDecimal.valueOf(area.getMinLatitude()))
+						.write("min_longitude", BigDecimal.valueOf(area.getMinLongitude()))
+						.write("max_latitude", BigDecimal.valueOf(area.getMaxLatitude()))
+						.write("max_longitude", BigDecimal.valueOf(area.getMaxLongitude()))
+						.writeEnd();
+			}
+		}
+		jsonGenerator.writeEnd();
+	}
+	
 	/** Converts trip object from a model to JSON object.
 	 * @param trip JSON object for conversion
 	 * @return JSON representation of a trip object
@@ -75,6 +416,10 @@ public class Converter {
 		
 		JsonObjectBuilder jsonObjectBuilder = Json.createObjectBuilder()
 				.add("tourist", touristToJsonObject(trip.getTourist()));
+		
+		if(trip.hasTimestamp()) {
+			jsonObjectBuilder.add("timestamp", Instant.ofEpochMilli(trip.getTimestamp()).toString());
+		}
 			
 		JsonArrayBuilder jsonArrayBuilder = Json.createArrayBuilder();
 		
@@ -130,7 +475,8 @@ public class Converter {
 		return jsonArrayBuilder.build();
 	}
 	
-	/** Converts route object from a model to JSON array.
+	/** Converts route object from a model to JSON array. 
+	 * Route travel distance is included as <code>distance_km</code> if it is enabled with {@link #setIncludeDistance(boolean)}.
 	 * @param route Route objects for conversion
 	 * @param popularity Route popularity
 	 * @return JSON representation of a route object
@@ -139,6 +485,9 @@ public class Converter {
 		
 		JsonObjectBuilder jsonObjectBuilder = Json.createObjectBuilder()
 				.add("popularity", popularity);
+		if(includeDistance) {
+			jsonObjectBuilder.add("distance_km", distance(route));
+		}
 		JsonArrayBuilder jsonArrayBuilder = Json.createArrayBuilder();
 		
 		if(route.getStages() != null && route.getStages().size() > 0 && route.getStages().getFirst() != null) {
@@ -153,4 +502,113 @@ public class Converter {
 		
 		return jsonObjectBuilder.build();
 	}
+	
+	/** Converts list of routes with estimated popularity from a model to JSON array.
+	 * @param routeEstimates List of routes with estimated popularity for conversion
+	 * @return JSON representation of a route list
+	 */
+	public JsonArray routeEstimatesToJsonArray(List<RouteEstimate> routeEstimates) {
+		
+		JsonArrayBuilder jsonArrayBuilder = Json.createArrayBuilder();
+
+		for(RouteEstimate routeEstimate : routeEstimates) {
+			JsonObject routeJsonObject = routeToJsonArray(routeEstimate.getRoute(), routeEstimate.getPopularity());
+			jsonArrayBuilder.add(Json.createObjectBuilder()
+					.add("popularity", routeEstimate.getPopularity())
+					.add("max_error", routeEstimate.getMaxError())
+					.add("destinations", routeJsonObject.getJsonArray("destinations")));	
+		}
+		
+		return jsonArrayBuilder.build();
+	}
+	
+	/** Writes list of route objects from a model into JSON generator, as elements of the array currently being written.
+	 * Route travel distance is included as <code>distance_km</code> if it is enabled with {@link #setIncludeDistance(boolean)}.
+	 * Output is the same as of {@link #routesToJsonArray(List, int)}, but JSON objects are never built.
+	 * @param jsonGenerator JSON generator positioned inside an array
+	 * @param routes List of route objects for writing
+	 * @param popularity Routes popularity
+	 */
+	public void writeRoutes(JsonGenerator jsonGenerator, List<Route> routes, int popularity) {
+		
+		for(Route route : routes) {
+			jsonGenerator.writeStartObject()
+					.write("popularity", popularity);
+			if(includeDistance) {
+				jsonGenerator.write("distance_km", distance(route));
+			}
+			writeRouteDestinations(jsonGenerator, route);
+			jsonGenerator.writeEnd();
+		}
+	}
+	
+	/** Writes list of routes with estimated popularity from a model into JSON generator, 
+	 * as elements of the array currently being written.
+	 * Output is the same as of {@link #routeEstimatesToJsonArray(List)}, but JSON objects are never built.
+	 * @param jsonGenerator JSON generator positioned inside an array
+	 * @param routeEstimates List of routes with estimated popularity for writing
+	 */
+	public void writeRouteEstimates(JsonGenerator jsonGenerator, List<RouteEstimate> routeEstimates) {
+		
+		for(RouteEstimate routeEstimate : routeEstimates) {
+			jsonGenerator.writeStartObject()
+					.write("popularity", routeEstimate.getPopularity())
+					.write("max_error", routeEstimate.getMaxError());
+			writeRouteDestinations(jsonGenerator, routeEstimate.getRoute());
+			jsonGenerator.writeEnd();
+		}
+	}
+	
+	/** Writes destinations of route object from a model into JSON generator, as a <code>destinations</code> array.
+	 * @param jsonGenerator JSON generator positioned inside a route object
+	 * @param route Route object for writing
+	 */
+	private void writeRouteDestinations(JsonGenerator jsonGenerator, Route route) {
+		
+		jsonGenerator.writeStartArray("destinations");
+		
+		if(route.getStages() != null && route.getStages().size() > 0 && route.getStages().getFirst() != null) {
+			writeDestination(jsonGenerator, route.getStages().getFirst().getStartDestination());
+		}
+		
+		for(Stage stage : route.getStages()) {
+			writeDestination(jsonGenerator, stage.getEndDestination());
+		}
+		
+		jsonGenerator.writeEnd();
+	}
+	
+	/** Calculates travel distance of route object from a model, rounded to meters.
+	 * @param route Route object
+	 * @return Distance in kilometers
+	 */
+	private static BigDecimal distance(Route route) {
+		
+		return BigDecimal.valueOf(route.getDistance()).setScale(3, RoundingMode.HALF_UP);
+	}
+	
+	/** Writes destination object from a model into JSON generator.
+	 * Coordinates are written as <code>BigDecimal</code> numbers, the same way as JSON object builder writes them.
+	 * @param jsonGenerator JSON generator positioned inside an array
+	 * @param destination Destination object for writing
+	 */
+	public void writeDestination(JsonGenerator jsonGenerator, Destination destination) {
+		
+		jsonGenerator.writeStartObject()
+				.write("name", destination.getName())
+				.write("latitude", BigDecimal.valueOf(destination.getLatitude()))
+				.write("longitude", BigDecimal.valueOf(destination.getLongitude()))
+				.writeEnd();
+	}
+	
+	public boolean isIncludeDistance() {
+		return includeDistance;
+	}
+	/**
+	 * Sets if travel distance of every route is included in converted routes, as <code>distance_km</code>.
+	 * @param includeDistance If route distance is included
+	 */
+	public void setIncludeDistance(boolean includeDistance) {
+		this.includeDistance = includeDistance;
+	}
 }
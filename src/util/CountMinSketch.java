@@ -0,0 +1,107 @@
+package util;
+
+/**
+ * Count-Min Sketch of 64-bit hashes. Sketch uses fixed memory of <code>width * depth</code> counters,
+ * and estimates number of additions of any hash with an error of at most <code>e / width</code> 
+ * of all additions, with probability of at least <code>1 - e<sup>-depth</sup></code>. 
+ * Estimate is never lower than the real count.
+ * Counters are increased with conservative update, which only increases counters equal to the current estimate.
+ * 
+ * @author Milan Sovic
+ */
+
+public class CountMinSketch {
+
+	/** Number of counters in each row, power of two */
+	private final int width;
+	/** Number of rows */
+	private final int depth;
+	/** Counters of all rows, row after row */
+	private final int[] counters;
+	/** Number of all additions */
+	private long total;
+	
+	/**
+	 * Creates empty sketch.
+	 * @param width Number of counters in each row, rounded up to power of two
+	 * @param depth Number of rows
+	 */
+	public CountMinSketch(int width, int depth) {
+		this.width = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+		this.depth = depth;
+		this.counters = new int[this.width * depth];
+	}
+	
+	/**
+	 * Adds hash to the sketch.
+	 * @param hash Added hash
+	 * @return Estimated number of additions of the hash, including this one
+	 */
+	public int add(long hash) {
+		total++;
+		int estimate = estimate(hash) + 1;
+		for(int row = 0; row < depth; row++) {
+			int index = index(hash, row);
+			if(counters[index] < estimate) {
+				counters[index] = estimate;
+			}
+		}
+		return estimate;
+	}
+	
+	/**
+	 * Estimates number of additions of a hash.
+	 * @param hash Hash to estimate
+	 * @return Estimated number of additions
+	 */
+	public int estimate(long hash) {
+		int estimate = Integer.MAX_VALUE;
+		for(int row = 0; row < depth; row++) {
+			estimate = Math.min(estimate, counters[index(hash, row)]);
+		}
+		return estimate;
+	}
+	
+	/**
+	 * Calculates index of a hash counter in a row. Every row uses differently mixed hash.
+	 * @param hash Added hash
+	 * @param row Row of the counter
+	 * @return Index of the counter
+	 */
+	private int index(long hash, int row) {
+		hash += (row + 1) * 0x9E3779B97F4A7C15L;
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return row * width + ((int) hash & (width - 1));
+	}
+	
+	/**
+	 * Maximum overestimate of any count, which is exceeded with probability of at most <code>e<sup>-depth</sup></code>.
+	 * @return Error bound
+	 */
+	public long getErrorBound() {
+		return (long) Math.ceil(Math.E / width * total);
+	}
+	
+	/**
+	 * Memory used by counters.
+	 * @return Number of bytes
+	 */
+	public long getSizeInBytes() {
+		return 4L * counters.length;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+	public int getDepth() {
+		return depth;
+	}
+	public long getTotal() {
+		return total;
+	}
+	
+}
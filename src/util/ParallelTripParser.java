@@ -0,0 +1,347 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+
+import model.Trip;
+import model.TripCollection;
+
+/**
+ * Reads trips from JSON input on multiple threads. <br>
+ * Input file is mapped into memory and scanned once for the boundaries of elements of the top-level <code>trips</code> array.
+ * Scanning only follows nesting of objects and arrays and skips strings, without decoding any value, so it is much faster
+ * than parsing. Consecutive elements are then grouped into batches, and each batch is parsed and converted
+ * by a worker thread as a JSON array of its own. Batches are added into trip collection in the order of input
+ * on the calling thread, which also registers their destinations, so trips, their itineraries and destination ids
+ * are the same as when input is read by one thread.
+ * Input files larger than 2 GB cannot be mapped and are read by one thread.
+ *
+ * @author Milan Sovic
+ */
+
+public class ParallelTripParser {
+
+	/** Number of batches given to each thread, so threads stay busy when batches take different time */
+	private static final int BATCHES_PER_THREAD = 8;
+
+	/** Factory of JSON parsers, shared by all threads */
+	private static final JsonParserFactory PARSER_FACTORY = Json.createParserFactory(null);
+	/** Start of JSON array which wraps every batch */
+	private static final byte[] ARRAY_START = {'['};
+	/** End of JSON array which wraps every batch */
+	private static final byte[] ARRAY_END = {']'};
+	/** Name of the array of trips */
+	private static final byte[] TRIPS = {'t', 'r', 'i', 'p', 's'};
+
+	/** Number of threads which parse trips */
+	private final int parallelism;
+
+	/**
+	 * Creates parser of trips.
+	 * @param parallelism Number of threads which parse trips, 1 for parsing on the calling thread
+	 */
+	public ParallelTripParser(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Reads all trips from JSON file and adds them into trip collection, in the order of input.
+	 * @param file JSON file with <code>trips</code> array
+	 * @param tripCollection Trip collection where read trips are added
+	 * @throws IOException If file cannot be read
+	 */
+	public void parse(File file, TripCollection tripCollection) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if(channel.size() > Integer.MAX_VALUE) {
+				try (InputStream is = new BufferedInputStream(new FileInputStream(file));
+						JsonParser jsonParser = Json.createParser(is)) {
+					new Converter(tripCollection.getDestinationRegistry()).jsonParserToTrips(jsonParser, tripCollection);
+				}
+				return;
+			}
+			parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), tripCollection);
+		}
+	}
+
+	/**
+	 * Reads all trips from JSON content of a buffer and adds them into trip collection, in the order of input.
+	 * @param buffer Buffer with JSON object which has <code>trips</code> array
+	 * @param tripCollection Trip collection where read trips are added
+	 */
+	public void parse(ByteBuffer buffer, TripCollection tripCollection) {
+		List<int[]> tripArrays = findTrips(buffer);
+		int tripCount = 0;
+		for(int[] bounds : tripArrays) {
+			tripCount += bounds.length / 2;
+		}
+		int batchSize = Math.max(1, (tripCount + parallelism * BATCHES_PER_THREAD - 1) / (parallelism * BATCHES_PER_THREAD));
+		// every batch is a range of consecutive elements of one array
+		List<int[]> batches = new ArrayList<>();
+		for(int[] bounds : tripArrays) {
+			int elementCount = bounds.length / 2;
+			for(int first = 0; first < elementCount; first += batchSize) {
+				int last = Math.min(elementCount, first + batchSize) - 1;
+				batches.add(new int[] {bounds[2 * first], bounds[2 * last + 1]});
+			}
+		}
+		if(parallelism <= 1) {
+			for(int[] batch : batches) {
+				addTrips(tripCollection, parseBatch(buffer, batch[0], batch[1]));
+			}
+			return;
+		}
+		ForkJoinPool forkJoinPool = new ForkJoinPool(parallelism);
+		try {
+			List<ForkJoinTask<List<Trip>>> tasks = new ArrayList<>(batches.size());
+			for(int[] batch : batches) {
+				tasks.add(forkJoinPool.submit(() -> parseBatch(buffer, batch[0], batch[1])));
+			}
+			// batches are added in order while the next batches are still being parsed
+			for(int i = 0; i < tasks.size(); i++) {
+				addTrips(tripCollection, tasks.get(i).join());
+				tasks.set(i, null);
+			}
+		}
+		finally {
+			forkJoinPool.shutdownNow();
+		}
+	}
+
+	private static void addTrips(TripCollection tripCollection, List<Trip> trips) {
+		for(Trip trip : trips) {
+			tripCollection.addTrip(trip);
+		}
+	}
+
+	/**
+	 * Parses and converts consecutive elements of trips array, without registering their destinations.
+	 * @param buffer Buffer with JSON input
+	 * @param from Position of the first byte of the first element (inclusive)
+	 * @param to Position after the last byte of the last element (exclusive)
+	 * @return Converted trips
+	 */
+	private static List<Trip> parseBatch(ByteBuffer buffer, int from, int to) {
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(to);
+		slice.position(from);
+		InputStream is = new SequenceInputStream(Collections.enumeration(Arrays.asList(new ByteArrayInputStream(ARRAY_START),
+				new ByteBufferInputStream(slice.slice()), new ByteArrayInputStream(ARRAY_END))));
+		try (JsonParser jsonParser = PARSER_FACTORY.createParser(is)) {
+			return new Converter().jsonParserToTripArray(jsonParser);
+		}
+	}
+
+	/**
+	 * Finds boundaries of elements of <code>trips</code> arrays in the top-level JSON object.
+	 * @param buffer Buffer with JSON input
+	 * @return Boundaries of elements of each <code>trips</code> array, in the order of input.
+	 * 		Element <code>i</code> of an array starts at position <code>2 * i</code> and ends before position <code>2 * i + 1</code>.
+	 * @throws JsonException If input ends before the top-level object
+	 */
+	static List<int[]> findTrips(ByteBuffer buffer) {
+		List<int[]> tripArrays = new ArrayList<>();
+		int limit = buffer.limit();
+		try {
+			int position = skipWhitespace(buffer, buffer.position(), limit);
+			if(position >= limit || buffer.get(position) != '{') {
+				return tripArrays;
+			}
+			position++;
+			while(true) {
+				position = skipWhitespace(buffer, position, limit);
+				byte b = buffer.get(position);
+				if(b == '}') {
+					break;
+				}
+				if(b == ',') {
+					position++;
+					continue;
+				}
+				int keyStart = position;
+				position = skipValue(buffer, position, limit);
+				boolean trips = isTrips(buffer, keyStart, position);
+				position = skipWhitespace(buffer, position, limit);
+				if(buffer.get(position) == ':') {
+					position = skipWhitespace(buffer, position + 1, limit);
+				}
+				if(trips && buffer.get(position) == '[') {
+					int[] bounds = new int[64];
+					int size = 0;
+					position++;
+					while(true) {
+						position = skipWhitespace(buffer, position, limit);
+						b = buffer.get(position);
+						if(b == ']') {
+							position++;
+							break;
+						}
+						if(b == ',') {
+							position++;
+							continue;
+						}
+						if(size == bounds.length) {
+							bounds = Arrays.copyOf(bounds, size * 2);
+						}
+						bounds[size++] = position;
+						position = skipValue(buffer, position, limit);
+						bounds[size++] = position;
+					}
+					tripArrays.add(Arrays.copyOf(bounds, size));
+				}
+				else {
+					position = skipValue(buffer, position, limit);
+				}
+			}
+		}
+		catch (IndexOutOfBoundsException e) {
+			throw new JsonException("Unexpected end of JSON input", e);
+		}
+		return tripArrays;
+	}
+
+	/**
+	 * Checks if a string is the name of trips array.
+	 * @param buffer Buffer with JSON input
+	 * @param from Position of the opening quote
+	 * @param to Position after the closing quote
+	 * @return If string is <code>"trips"</code>
+	 */
+	private static boolean isTrips(ByteBuffer buffer, int from, int to) {
+		if(to - from != TRIPS.length + 2 || buffer.get(from) != '"') {
+			return false;
+		}
+		for(int i = 0; i < TRIPS.length; i++) {
+			if(buffer.get(from + 1 + i) != TRIPS[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int skipWhitespace(ByteBuffer buffer, int position, int limit) {
+		while(position < limit) {
+			byte b = buffer.get(position);
+			if(b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+				break;
+			}
+			position++;
+		}
+		return position;
+	}
+
+	/**
+	 * Skips JSON value, with all nested objects and arrays. Bytes of multi-byte UTF-8 characters are never
+	 * equal to quotes, backslashes or brackets, so the value is skipped byte by byte without decoding.
+	 * @param buffer Buffer with JSON input
+	 * @param position Position of the first byte of value
+	 * @param limit Position after the last byte of input
+	 * @return Position after the last byte of value
+	 */
+	private static int skipValue(ByteBuffer buffer, int position, int limit) {
+		byte b = buffer.get(position);
+		if(b == '"') {
+			return skipString(buffer, position);
+		}
+		if(b == '{' || b == '[') {
+			int depth = 0;
+			do {
+				b = buffer.get(position);
+				if(b == '"') {
+					position = skipString(buffer, position);
+					continue;
+				}
+				if(b == '{' || b == '[') {
+					depth++;
+				}
+				else if(b == '}' || b == ']') {
+					depth--;
+				}
+				position++;
+			} while(depth > 0);
+			return position;
+		}
+		while(position < limit) {
+			b = buffer.get(position);
+			if(b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') {
+				break;
+			}
+			position++;
+		}
+		return position;
+	}
+
+	/**
+	 * Skips JSON string, with escaped characters.
+	 * @param buffer Buffer with JSON input
+	 * @param position Position of the opening quote
+	 * @return Position after the closing quote
+	 */
+	private static int skipString(ByteBuffer buffer, int position) {
+		position++;
+		while(true) {
+			byte b = buffer.get(position++);
+			if(b == '\\') {
+				position++;
+			}
+			else if(b == '"') {
+				return position;
+			}
+		}
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Input stream which reads remaining bytes of a buffer.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+
+		/** Buffer with unread bytes */
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if(length == 0) {
+				return 0;
+			}
+			if(!buffer.hasRemaining()) {
+				return -1;
+			}
+			length = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, length);
+			return length;
+		}
+
+	}
+
+}
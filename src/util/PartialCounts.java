@@ -0,0 +1,201 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+
+import model.Destination;
+import model.DestinationRegistry;
+import model.RouteCounter;
+import model.RouteKey;
+import model.RouteQuery;
+import model.TripCollection;
+
+/**
+ * Portable file with popularity of routes counted in one shard of trips, which is merged with files of other shards. <br>
+ * Trips are split between shards by their index in input, trip with index <code>i</code> belongs to shard
+ * <code>i % shardCount</code>, so each trip is counted by exactly one worker process and merged popularity of every route
+ * is the same as if all trips are counted in one process. Partial file consists of:
+ * <ul>
+ * 	<li>header with magic number, version, index of the shard, number of shards and number of trips in the shard</li>
+ * 	<li>query for which routes are counted, as JSON text</li>
+ * 	<li>dictionary of destinations (name, latitude and longitude), in the order of their ids in the worker</li>
+ * 	<li>popularity of counted routes, with the index of the trip of their first appearance in input,
+ * 		position of the first appearance and destination ids</li>
+ * </ul>
+ * Numbers are written in big-endian order and destinations are identified by the dictionary of the file,
+ * so partial files can be merged on any machine, regardless of the ids given to destinations by each worker.
+ *
+ * @author Milan Sovic
+ */
+
+public class PartialCounts {
+
+	/** Magic number at the start of partial file */
+	private static final int MAGIC = 0x54505231;
+	/** Version of partial file format */
+	private static final int VERSION = 1;
+
+	/**
+	 * Writes routes counted in a shard of trips into partial file.
+	 * Trip indexes of trip collection are translated to trip indexes in input.
+	 * @param file Partial file
+	 * @param tripCollection Trip collection with trips of the shard and their counted routes
+	 * @param routeQuery Query for which routes are counted
+	 * @param shardIndex Index of the shard, from 0 to <code>shardCount - 1</code>
+	 * @param shardCount Number of shards
+	 * @throws IOException If file cannot be written
+	 */
+	public static void write(File file, TripCollection tripCollection, RouteQuery routeQuery, int shardIndex, int shardCount) throws IOException {
+		DestinationRegistry destinationRegistry = tripCollection.getDestinationRegistry();
+		RouteCounter routeCounter = tripCollection.getRouteCounter();
+		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(shardIndex);
+			dos.writeInt(shardCount);
+			dos.writeInt(tripCollection.getTrips().size());
+			writeString(dos, queryToJson(routeQuery));
+			dos.writeInt(destinationRegistry.size());
+			for(int id = 0; id < destinationRegistry.size(); id++) {
+				Destination destination = destinationRegistry.getDestination(id);
+				writeString(dos, destination.getName());
+				dos.writeDouble(destination.getLatitude());
+				dos.writeDouble(destination.getLongitude());
+			}
+			dos.writeInt(routeCounter.size());
+			for(RouteCounter.Entry entry : routeCounter) {
+				dos.writeInt(entry.getCount());
+				dos.writeInt(entry.getFirstTrip() * shardCount + shardIndex);
+				dos.writeInt(entry.getStart());
+				dos.writeInt(entry.getLength());
+				for(int id : entry.getKey().getDestinationIds()) {
+					dos.writeInt(id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges partial files of all shards into counted routes of trip collection.
+	 * Destinations of every file are registered in the dictionary of trip collection, popularity of equal routes is added,
+	 * and every route keeps its first appearance in input, so {@link TripCollection#findBestRoute()} gives
+	 * the same result as after counting all trips in one process. Trip collection does not get any trips.
+	 * @param files Partial files, one for each shard in any order
+	 * @param tripCollection Trip collection where merged routes are placed
+	 * @return Query for which routes are counted
+	 * @throws IOException If a file cannot be read or it is not a partial file,
+	 * 		or files are not counted for the same query or do not cover all shards
+	 */
+	public static RouteQuery merge(List<File> files, TripCollection tripCollection) throws IOException {
+		DestinationRegistry destinationRegistry = tripCollection.getDestinationRegistry();
+		RouteCounter routeCounter = new RouteCounter();
+		String query = null;
+		boolean[] shards = null;
+		for(File file : files) {
+			try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+				if(dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+					throw new IOException("File " + file.getPath() + " is not a partial count file!");
+				}
+				int shardIndex = dis.readInt();
+				int shardCount = dis.readInt();
+				dis.readInt();
+				String fileQuery = readString(dis);
+				if(shards == null) {
+					shards = new boolean[shardCount];
+					query = fileQuery;
+				}
+				if(shardCount != shards.length || shardIndex < 0 || shardIndex >= shardCount || !fileQuery.equals(query)) {
+					throw new IOException("File " + file.getPath() + " is not counted for the same query and number of shards!");
+				}
+				if(shards[shardIndex]) {
+					throw new IOException("Shard " + shardIndex + " is given more than once!");
+				}
+				shards[shardIndex] = true;
+
+				int[] ids = new int[dis.readInt()];
+				for(int id = 0; id < ids.length; id++) {
+					Destination destination = new Destination();
+					destination.setName(readString(dis));
+					destination.setLatitude(dis.readDouble());
+					destination.setLongitude(dis.readDouble());
+					ids[id] = destinationRegistry.register(destination);
+				}
+				int entryCount = dis.readInt();
+				for(int i = 0; i < entryCount; i++) {
+					int count = dis.readInt();
+					int firstTrip = dis.readInt();
+					int start = dis.readInt();
+					int length = dis.readInt();
+					int[] destinationIds = new int[length + 1];
+					for(int position = 0; position <= length; position++) {
+						destinationIds[position] = ids[dis.readInt()];
+					}
+					long hash = new RouteKey(destinationIds).rollingHash();
+					// route keeps its first appearance, so routes keep their order
+					routeCounter.add(firstTrip, start, destinationIds, 0, length, hash, count);
+				}
+			}
+		}
+		if(shards == null) {
+			throw new IOException("No partial count files are given!");
+		}
+		for(int shardIndex = 0; shardIndex < shards.length; shardIndex++) {
+			if(!shards[shardIndex]) {
+				throw new IOException("Partial count file of shard " + shardIndex + " is missing!");
+			}
+		}
+		tripCollection.setRouteCounter(routeCounter);
+		RouteMetrics.setDistinctRoutes(routeCounter.size());
+		try (JsonReader jsonReader = Json.createReader(new StringReader(query))) {
+			return new Converter(destinationRegistry).jsonObjectToRouteQuery(jsonReader.readObject().getJsonObject("query"));
+		}
+	}
+
+	/**
+	 * Converts route query to JSON text, the same as it is written in output file of query file.
+	 * @param routeQuery Route query
+	 * @return JSON text of an object with <code>query</code> object
+	 */
+	private static String queryToJson(RouteQuery routeQuery) {
+		StringWriter writer = new StringWriter();
+		try (JsonGenerator jsonGenerator = Json.createGenerator(writer)) {
+			jsonGenerator.writeStartObject();
+			new Converter().writeRouteQuery(jsonGenerator, routeQuery);
+			jsonGenerator.writeEnd();
+		}
+		return writer.toString();
+	}
+
+	private static String readString(DataInputStream dis) throws IOException {
+		int length = dis.readInt();
+		if(length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		dis.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream dos, String string) throws IOException {
+		byte[] bytes = string == null ? null : string.getBytes(StandardCharsets.UTF_8);
+		dos.writeInt(bytes == null ? -1 : bytes.length);
+		if(bytes != null) {
+			dos.write(bytes);
+		}
+	}
+
+}
@@ -0,0 +1,41 @@
+package util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event of one phase of finding most popular routes.
+ * Event is recorded only while flight recording with this event enabled is running, 
+ * otherwise creating, beginning and committing it costs almost nothing.
+ * Events are created and committed through {@link RouteMetrics}.
+ * 
+ * @author Milan Sovic
+ */
+
+@Name("tourism.RoutePhase")
+@Label("Route Phase")
+@Category({"Tourism Organization", "Routes"})
+@Description("Duration of one phase of finding most popular routes")
+@StackTrace(false)
+public class PhaseEvent extends jdk.jfr.Event {
+	
+	/** Phase name */
+	@Label("Phase")
+	String phase;
+	/** Number of processed items: trips, routes or destination windows, depending on phase */
+	@Label("Items")
+	long items;
+	/** Number of read or written bytes */
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+	/** Ordinal of the phase, not recorded */
+	transient int phaseIndex;
+	/** Start time used for metrics summary, not recorded */
+	transient long startNanos;
+
+}
@@ -0,0 +1,261 @@
+package util;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of the route pipeline: duration of every phase (parse, convert, enumerate, count, select best and write)
+ * and counters of processed trips, enumerated destination windows, distinct routes, counter resizes and read or written bytes. <br>
+ * Every phase is recorded as a {@link PhaseEvent} in flight recording. Counters and phase durations are collected
+ * only after metrics are enabled with {@link #enable()}, which also registers them as a management bean.
+ * Metrics are updated once per phase or per trip, never per route, so their cost is negligible even when enabled.
+ *
+ * @author Milan Sovic
+ */
+
+public class RouteMetrics implements RouteMetricsMXBean {
+
+	/** Phases of finding most popular routes */
+	public enum Phase {
+		/** Reading trips from input */
+		PARSE("parse"),
+		/** Converting found route keys into route objects */
+		CONVERT("convert"),
+		/** Enumerating routes of a trip into route objects */
+		ENUMERATE("enumerate"),
+		/** Enumerating and counting routes of all trips */
+		COUNT("count"),
+		/** Selecting most popular routes */
+		SELECT_BEST("select best"),
+		/** Writing found routes into output */
+		WRITE("write");
+
+		/** Phase name */
+		private final String label;
+
+		Phase(String label) {
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	/** Name of the management bean */
+	public static final String OBJECT_NAME = "tourism:type=RouteMetrics";
+
+	/** The only instance of metrics */
+	private static final RouteMetrics INSTANCE = new RouteMetrics();
+
+	/** If counters and phase durations are collected */
+	private static volatile boolean enabled;
+
+	/** Number of read trips */
+	private final LongAdder tripsProcessed = new LongAdder();
+	/** Number of enumerated destination windows (candidate routes) */
+	private final LongAdder windowsEnumerated = new LongAdder();
+	/** Number of distinct routes in the last counting */
+	private volatile long distinctRoutes;
+	/** Number of resizes of route counter tables */
+	private final LongAdder mapResizes = new LongAdder();
+	/** Number of read bytes */
+	private final LongAdder bytesRead = new LongAdder();
+	/** Number of written bytes */
+	private final LongAdder bytesWritten = new LongAdder();
+	/** Total duration of every phase in nanoseconds, indexed by phase ordinal */
+	private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+
+	private RouteMetrics() {
+		for(int i = 0; i < phaseNanos.length; i++) {
+			phaseNanos[i] = new LongAdder();
+		}
+	}
+
+	public static RouteMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Starts collecting counters and phase durations, and registers metrics as a management bean.
+	 * Metrics are collected even if the bean cannot be registered.
+	 */
+	public static synchronized void enable() {
+		if(enabled) {
+			return;
+		}
+		enabled = true;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+		}
+		catch (JMException e) {
+			System.out.println("Metrics cannot be registered as " + OBJECT_NAME + ": " + e.getMessage());
+		}
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Starts a phase.
+	 * @param phase Started phase
+	 * @return Event of the phase, which has to be passed to {@link #end(PhaseEvent, long, long)} when the phase ends
+	 */
+	public static PhaseEvent begin(Phase phase) {
+		PhaseEvent event = new PhaseEvent();
+		event.phase = phase.getLabel();
+		event.phaseIndex = phase.ordinal();
+		event.begin();
+		if(enabled) {
+			event.startNanos = System.nanoTime();
+		}
+		return event;
+	}
+
+	/**
+	 * Ends a phase, commits its event and adds its duration to the phase total.
+	 * @param event Event of the phase, returned by {@link #begin(Phase)}
+	 * @param items Number of processed items
+	 * @param bytes Number of read or written bytes
+	 */
+	public static void end(PhaseEvent event, long items, long bytes) {
+		event.end();
+		if(event.shouldCommit()) {
+			event.items = items;
+			event.bytes = bytes;
+			event.commit();
+		}
+		if(enabled && event.startNanos != 0) {
+			INSTANCE.phaseNanos[event.phaseIndex].add(System.nanoTime() - event.startNanos);
+		}
+	}
+
+	/**
+	 * Adds read trips.
+	 * @param trips Number of trips
+	 */
+	public static void addTrips(long trips) {
+		if(enabled) {
+			INSTANCE.tripsProcessed.add(trips);
+		}
+	}
+
+	/**
+	 * Adds enumerated destination windows.
+	 * @param windows Number of windows
+	 */
+	public static void addWindows(long windows) {
+		if(enabled) {
+			INSTANCE.windowsEnumerated.add(windows);
+		}
+	}
+
+	/**
+	 * Sets number of distinct routes found by the last counting.
+	 * @param routes Number of distinct routes
+	 */
+	public static void setDistinctRoutes(long routes) {
+		if(enabled) {
+			INSTANCE.distinctRoutes = routes;
+		}
+	}
+
+	/**
+	 * Records one resize of a route counter table.
+	 */
+	public static void mapResized() {
+		if(enabled) {
+			INSTANCE.mapResizes.increment();
+		}
+	}
+
+	/**
+	 * Adds read bytes.
+	 * @param bytes Number of bytes
+	 */
+	public static void addBytesRead(long bytes) {
+		if(enabled) {
+			INSTANCE.bytesRead.add(bytes);
+		}
+	}
+
+	/**
+	 * Adds written bytes.
+	 * @param bytes Number of bytes
+	 */
+	public static void addBytesWritten(long bytes) {
+		if(enabled) {
+			INSTANCE.bytesWritten.add(bytes);
+		}
+	}
+
+	/**
+	 * Creates summary of all metrics, one metric per line.
+	 * @return Summary of metrics
+	 */
+	public String summary() {
+		StringBuilder summary = new StringBuilder("Route metrics:");
+		for(Map.Entry<String, Long> phase : getPhaseMillis().entrySet()) {
+			summary.append(String.format("%n  %-20s %10d ms", phase.getKey(), phase.getValue()));
+		}
+		summary.append(String.format("%n  %-20s %10d", "trips processed", getTripsProcessed()));
+		summary.append(String.format("%n  %-20s %10d", "windows enumerated", getWindowsEnumerated()));
+		summary.append(String.format("%n  %-20s %10d", "distinct routes", getDistinctRoutes()));
+		summary.append(String.format("%n  %-20s %10d", "map resizes", getMapResizes()));
+		summary.append(String.format("%n  %-20s %10d", "bytes read", getBytesRead()));
+		summary.append(String.format("%n  %-20s %10d", "bytes written", getBytesWritten()));
+		return summary.toString();
+	}
+
+	@Override
+	public long getTripsProcessed() {
+		return tripsProcessed.sum();
+	}
+	@Override
+	public long getWindowsEnumerated() {
+		return windowsEnumerated.sum();
+	}
+	@Override
+	public long getDistinctRoutes() {
+		return distinctRoutes;
+	}
+	@Override
+	public long getMapResizes() {
+		return mapResizes.sum();
+	}
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+	@Override
+	public Map<String, Long> getPhaseMillis() {
+		Map<String, Long> phaseMillis = new LinkedHashMap<>();
+		for(Phase phase : Phase.values()) {
+			phaseMillis.put(phase.getLabel(), phaseNanos[phase.ordinal()].sum() / 1_000_000);
+		}
+		return phaseMillis;
+	}
+	@Override
+	public void reset() {
+		tripsProcessed.reset();
+		windowsEnumerated.reset();
+		distinctRoutes = 0;
+		mapResizes.reset();
+		bytesRead.reset();
+		bytesWritten.reset();
+		for(LongAdder nanos : phaseNanos) {
+			nanos.reset();
+		}
+	}
+
+}
@@ -0,0 +1,29 @@
+package util;
+
+import java.util.Map;
+
+/**
+ * Management interface of route pipeline metrics, registered as <code>tourism:type=RouteMetrics</code>.
+ * 
+ * @author Milan Sovic
+ */
+
+public interface RouteMetricsMXBean {
+	
+	long getTripsProcessed();
+	long getWindowsEnumerated();
+	long getDistinctRoutes();
+	long getMapResizes();
+	long getBytesRead();
+	long getBytesWritten();
+	/**
+	 * Returns total duration of every phase.
+	 * @return Map of phase names and their duration in milliseconds
+	 */
+	Map<String, Long> getPhaseMillis();
+	/**
+	 * Sets all counters to zero.
+	 */
+	void reset();
+
+}
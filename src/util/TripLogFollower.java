@@ -0,0 +1,267 @@
+package util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonReader;
+import javax.json.JsonReaderFactory;
+
+import model.TripCollection;
+
+/**
+ * Follows append-only trip logs in newline-delimited JSON format, where every line is one trip object,
+ * and adds newly appended trips into trip collection. <br>
+ * For each log, the byte offset after the last read line is kept. Every poll reads each log from its offset
+ * to the last complete line, so a line which is still being written is read by a later poll.
+ * If a log becomes shorter than its offset, it is considered replaced by a new log and is read from the start. <br>
+ * Offsets are saved in a state file together with a binary snapshot of read trips, so following can be resumed
+ * after restart without reading logs again. Snapshot of each checkpoint is written into a new file, and the state file,
+ * which names the snapshot and holds the offsets, is replaced atomically, so offsets and trips are always consistent.
+ *
+ * @author Milan Sovic
+ */
+
+public class TripLogFollower {
+
+	/** Factory of JSON readers, shared by all lines */
+	private static final JsonReaderFactory READER_FACTORY = Json.createReaderFactory(null);
+	/** Key of snapshot file name in state file */
+	private static final String SNAPSHOT_KEY = "snapshot";
+	/** Prefix of offset keys in state file, followed by absolute path of log */
+	private static final String OFFSET_PREFIX = "offset.";
+
+	/** Followed logs */
+	private final List<File> logs;
+	/** Offset after the last read line of each log */
+	private final long[] offsets;
+	/** Trip collection where read trips are added */
+	private final TripCollection tripCollection;
+	/** Converter which converts lines into trips */
+	private final Converter converter;
+	/** State file with offsets and name of snapshot, or <code>null</code> if state is not saved */
+	private final File stateFile;
+	/** Number of saved checkpoints, used in names of snapshot files */
+	private long checkpoints;
+	/** Snapshot file of the last checkpoint */
+	private File snapshotFile;
+
+	/**
+	 * Creates follower of trip logs.
+	 * @param logs Followed logs
+	 * @param tripCollection Trip collection where read trips are added
+	 * @param converter Converter which converts lines into trips
+	 * @param stateFile State file with offsets and name of snapshot, or <code>null</code> if state is not saved
+	 */
+	public TripLogFollower(List<File> logs, TripCollection tripCollection, Converter converter, File stateFile) {
+		this.logs = logs;
+		this.offsets = new long[logs.size()];
+		this.tripCollection = tripCollection;
+		this.converter = converter;
+		this.stateFile = stateFile;
+	}
+
+	/**
+	 * Resumes following from the saved state, if state file exists.
+	 * Trips from snapshot of the last checkpoint are added into trip collection, and logs found in state file
+	 * are read from their saved offsets. Other logs are read from the start.
+	 * @return If state is found
+	 * @throws IOException If state file or snapshot cannot be read
+	 */
+	public boolean resume() throws IOException {
+		if(stateFile == null || !stateFile.exists()) {
+			return false;
+		}
+		Properties state = new Properties();
+		try (InputStream is = new FileInputStream(stateFile)) {
+			state.load(is);
+		}
+		String snapshotName = state.getProperty(SNAPSHOT_KEY);
+		if(snapshotName != null) {
+			snapshotFile = new File(stateFile.getAbsoluteFile().getParentFile(), snapshotName);
+			new TripSnapshot(snapshotFile).load(tripCollection);
+			checkpoints = Long.parseLong(snapshotName.substring(snapshotName.lastIndexOf('-') + 1, snapshotName.lastIndexOf('.'))) + 1;
+		}
+		for(int i = 0; i < logs.size(); i++) {
+			String offset = state.getProperty(OFFSET_PREFIX + logs.get(i).getAbsolutePath());
+			offsets[i] = offset == null ? 0 : Long.parseLong(offset);
+		}
+		return true;
+	}
+
+	/**
+	 * Reads all complete lines appended to logs since the last poll, and adds their trips into trip collection.
+	 * Blank lines are skipped, and lines which are not valid trips are reported and skipped.
+	 * @return Number of added trips
+	 * @throws IOException If a log cannot be read
+	 */
+	public int poll() throws IOException {
+		int added = 0;
+		for(int i = 0; i < logs.size(); i++) {
+			File log = logs.get(i);
+			if(!log.exists()) {
+				continue;
+			}
+			try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+				long size = channel.size();
+				if(size < offsets[i]) {
+					System.out.println("Log " + log.getPath() + " is shorter than its offset " + offsets[i] + ", it is read from the start.");
+					offsets[i] = 0;
+				}
+				added += readLines(log, channel, i, size);
+			}
+		}
+		RouteMetrics.addTrips(added);
+		return added;
+	}
+
+	/**
+	 * Reads complete lines of a log from its offset.
+	 * @param log Log file
+	 * @param channel Channel of log
+	 * @param logIndex Index of log
+	 * @param size Size of log
+	 * @return Number of added trips
+	 */
+	private int readLines(File log, FileChannel channel, int logIndex, long size) throws IOException {
+		int added = 0;
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		byte[] line = new byte[1 << 12];
+		int lineLength = 0;
+		long position = offsets[logIndex];
+		channel.position(position);
+		while(position < size) {
+			buffer.clear();
+			int read = channel.read(buffer);
+			if(read < 0) {
+				break;
+			}
+			buffer.flip();
+			while(buffer.hasRemaining()) {
+				byte b = buffer.get();
+				position++;
+				if(b != '\n') {
+					if(lineLength == line.length) {
+						line = Arrays.copyOf(line, lineLength * 2);
+					}
+					line[lineLength++] = b;
+					continue;
+				}
+				if(addTrip(line, lineLength)) {
+					added++;
+				}
+				else if(!isBlank(line, lineLength)) {
+					System.out.println("Line ending at offset " + position + " of log " + log.getPath() + " is not a valid trip, it is skipped.");
+				}
+				lineLength = 0;
+				RouteMetrics.addBytesRead(position - offsets[logIndex]);
+				offsets[logIndex] = position;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Converts a line into trip and adds it into trip collection.
+	 * @param line Bytes of line, without line break
+	 * @param length Number of bytes in line
+	 * @return <code>false</code> if line is not a valid trip
+	 */
+	private boolean addTrip(byte[] line, int length) {
+		if(isBlank(line, length)) {
+			return false;
+		}
+		try (JsonReader jsonReader = READER_FACTORY.createReader(new ByteArrayInputStream(line, 0, length))) {
+			tripCollection.addTrip(converter.jsonObjectToTrip(jsonReader.readObject()));
+			return true;
+		}
+		catch (JsonException | ClassCastException | NullPointerException e) {
+			return false;
+		}
+	}
+
+	private static boolean isBlank(byte[] line, int length) {
+		for(int i = 0; i < length; i++) {
+			if(line[i] != ' ' && line[i] != '\t' && line[i] != '\r') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Saves snapshot of read trips and offsets of logs. Snapshot is written into a new file,
+	 * state file is replaced atomically, and snapshot of the previous checkpoint is deleted.
+	 * @throws IOException If snapshot or state file cannot be written
+	 */
+	public void checkpoint() throws IOException {
+		if(stateFile == null) {
+			return;
+		}
+		File directory = stateFile.getAbsoluteFile().getParentFile();
+		File checkpointSnapshot = new File(directory, stateFile.getName() + "-" + checkpoints++ + ".snap");
+		TripSnapshot.write(checkpointSnapshot, tripCollection, null);
+		Properties state = new Properties();
+		state.setProperty(SNAPSHOT_KEY, checkpointSnapshot.getName());
+		for(int i = 0; i < logs.size(); i++) {
+			state.setProperty(OFFSET_PREFIX + logs.get(i).getAbsolutePath(), Long.toString(offsets[i]));
+		}
+		File temporaryFile = new File(directory, stateFile.getName() + ".tmp");
+		try (OutputStream os = new FileOutputStream(temporaryFile)) {
+			state.store(os, "Offsets of followed trip logs");
+		}
+		replace(temporaryFile, stateFile);
+		if(snapshotFile != null) {
+			Files.deleteIfExists(snapshotFile.toPath());
+		}
+		snapshotFile = checkpointSnapshot;
+	}
+
+	/**
+	 * Replaces a file with another file in the same directory, atomically if file system supports it,
+	 * so readers of the target file always see either its old or its new content.
+	 * @param source New content of the file
+	 * @param target Replaced file
+	 * @throws IOException If file cannot be replaced
+	 */
+	public static void replace(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Returns offset after the last read line of a log.
+	 * @param logIndex Index of log
+	 * @return Byte offset
+	 */
+	public long getOffset(int logIndex) {
+		return offsets[logIndex];
+	}
+
+	public List<File> getLogs() {
+		return logs;
+	}
+	public File getStateFile() {
+		return stateFile;
+	}
+
+}
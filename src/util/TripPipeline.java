@@ -0,0 +1,584 @@
+package util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.json.Json;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+
+import model.Destination;
+import model.DestinationRegistry;
+import model.RouteCounter;
+import model.RouteQuery;
+import model.Trip;
+import model.TripCollection;
+
+/**
+ * Counts popularity of routes in JSON input with overlapping stages connected by bounded queues. <br>
+ * Stages are:
+ * <ul>
+ * 	<li>parse: scans input stream for the elements of the top-level <code>trips</code> array and groups
+ * 		their bytes into batches, without decoding any value</li>
+ * 	<li>convert: parses batches into trips with {@link Converter} and registers their destinations</li>
+ * 	<li>enumerate: visits routes of trips and keeps their position and rolling hash</li>
+ * 	<li>count: adds enumerated routes into a counter of each thread, and counters are merged at the end</li>
+ * </ul>
+ * Every stage runs on its own number of virtual threads (or ordinary threads, if virtual threads are not supported).
+ * Queues between stages hold a fixed number of batches, so a stage waits when the next stage falls behind,
+ * and only the batches in queues and in work are in memory, together with counted routes.
+ * Trips are not added into trip collection, only their counted routes are placed into it.
+ * Route popularity and first appearances are the same as when trips are counted in order,
+ * so {@link TripCollection#findBestRoute()} gives the same result.
+ *
+ * @author Milan Sovic
+ */
+
+public class TripPipeline {
+
+	/** Number of trips in a batch */
+	private static final int BATCH_SIZE = 256;
+	/** Factory of JSON parsers, shared by all threads */
+	private static final JsonParserFactory PARSER_FACTORY = Json.createParserFactory(null);
+	/** Name of the array of trips */
+	private static final byte[] TRIPS = {'t', 'r', 'i', 'p', 's'};
+
+	/** Number of threads which convert trips */
+	private final int convertThreads;
+	/** Number of threads which enumerate routes */
+	private final int enumerateThreads;
+	/** Number of threads which count routes */
+	private final int countThreads;
+	/** Number of batches each queue can hold */
+	private final int queueCapacity;
+
+	/** First failure of any stage */
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+	/** Executor of stage threads */
+	private ExecutorService executor;
+
+	/**
+	 * Creates pipeline.
+	 * @param convertThreads Number of threads which convert trips
+	 * @param enumerateThreads Number of threads which enumerate routes
+	 * @param countThreads Number of threads which count routes
+	 * @param queueCapacity Number of batches each queue between stages can hold
+	 */
+	public TripPipeline(int convertThreads, int enumerateThreads, int countThreads, int queueCapacity) {
+		this.convertThreads = Math.max(1, convertThreads);
+		this.enumerateThreads = Math.max(1, enumerateThreads);
+		this.countThreads = Math.max(1, countThreads);
+		this.queueCapacity = Math.max(1, queueCapacity);
+	}
+
+	/**
+	 * Counts routes described by a query in all trips from JSON input, and places them into trip collection.
+	 * Destinations of trips are registered in the dictionary of trip collection.
+	 * @param input JSON input with <code>trips</code> array
+	 * @param tripCollection Trip collection where counted routes are placed
+	 * @param routeQuery Query with minimum and maximum number of stages, optional required destinations and areas
+	 * 		and optional maximum travel distance
+	 * @throws IOException If input cannot be read
+	 */
+	public void countRoutes(InputStream input, TripCollection tripCollection, RouteQuery routeQuery) throws IOException {
+		BlockingQueue<RawBatch> rawBatches = new ArrayBlockingQueue<>(queueCapacity);
+		BlockingQueue<TripBatch> tripBatches = new ArrayBlockingQueue<>(queueCapacity);
+		BlockingQueue<RouteBatch> routeBatches = new ArrayBlockingQueue<>(queueCapacity);
+		Registration registration = new Registration(tripCollection.getDestinationRegistry(), routeQuery);
+		boolean oncePerTrip = registration.requiredDestinations.size() > 0;
+		List<RouteCounter> routeCounters = Collections.synchronizedList(new ArrayList<>());
+		failure.set(null);
+		executor = VirtualThreads.newThreadPerTaskExecutor();
+		try {
+			startStage(convertThreads, rawBatches, RawBatch.END, tripBatches, TripBatch.END, enumerateThreads,
+					rawBatch -> convert(rawBatch, registration));
+			startStage(enumerateThreads, tripBatches, TripBatch.END, routeBatches, RouteBatch.END, countThreads,
+					tripBatch -> enumerate(tripBatch, routeQuery));
+			for(int i = 0; i < countThreads; i++) {
+				executor.execute(() -> run(() -> routeCounters.add(count(routeBatches, oncePerTrip))));
+			}
+			executor.execute(() -> run(() -> {
+				split(input, rawBatches);
+				for(int i = 0; i < convertThreads; i++) {
+					rawBatches.put(RawBatch.END);
+				}
+			}));
+			executor.shutdown();
+			while(!executor.awaitTermination(1, TimeUnit.SECONDS));
+		}
+		catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new IOException("Counting of routes is interrupted", e);
+		}
+		Throwable cause = failure.get();
+		if(cause instanceof IOException) {
+			throw (IOException) cause;
+		}
+		if(cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		if(cause instanceof Error) {
+			throw (Error) cause;
+		}
+		if(cause != null) {
+			throw new IOException("Counting of routes is interrupted", cause);
+		}
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.COUNT);
+		RouteCounter routeCounter = routeCounters.get(0);
+		for(int i = 1; i < routeCounters.size(); i++) {
+			routeCounter.addAll(routeCounters.get(i));
+		}
+		RouteMetrics.end(event, routeCounters.size(), 0);
+		RouteMetrics.setDistinctRoutes(routeCounter.size());
+		tripCollection.setRouteCounter(routeCounter);
+	}
+
+	/**
+	 * Starts threads of a stage. Every thread takes batches from input queue until it takes the end of input,
+	 * and puts processed batches into output queue. The last thread to finish puts the end of output
+	 * for each thread of the next stage.
+	 * @param threads Number of threads of the stage
+	 * @param input Input queue
+	 * @param inputEnd Batch which marks the end of input
+	 * @param output Output queue
+	 * @param outputEnd Batch which marks the end of output
+	 * @param consumers Number of threads of the next stage
+	 * @param function Processing of a batch
+	 */
+	private <I, O> void startStage(int threads, BlockingQueue<I> input, I inputEnd, BlockingQueue<O> output, O outputEnd,
+			int consumers, BatchFunction<I, O> function) {
+		AtomicInteger running = new AtomicInteger(threads);
+		for(int i = 0; i < threads; i++) {
+			executor.execute(() -> run(() -> {
+				for(I batch = input.take(); batch != inputEnd; batch = input.take()) {
+					output.put(function.apply(batch));
+				}
+				if(running.decrementAndGet() == 0) {
+					for(int consumer = 0; consumer < consumers; consumer++) {
+						output.put(outputEnd);
+					}
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Runs work of a stage thread. If work fails, the failure is kept and all other threads are stopped.
+	 * @param work Work of the thread
+	 */
+	private void run(StageWork work) {
+		try {
+			work.run();
+		}
+		catch (Throwable e) {
+			if(failure.compareAndSet(null, e)) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Scans input for the elements of <code>trips</code> arrays in the top-level object and puts them into batches.
+	 * Elements that are not objects are skipped, the same as when trips are read with {@link Converter}.
+	 * Bytes of multi-byte UTF-8 characters are never equal to quotes, backslashes or brackets,
+	 * so input is scanned byte by byte without decoding.
+	 * @param input JSON input
+	 * @param output Queue of batches
+	 */
+	private static void split(InputStream input, BlockingQueue<RawBatch> output) throws IOException, InterruptedException {
+		byte[] buffer = new byte[1 << 16];
+		int depth = 0;
+		boolean inString = false;
+		boolean escape = false;
+		// number of matched characters of the name of trips array in the current string, or -1 if it does not match
+		int matched = -1;
+		boolean tripsKey = false;
+		boolean tripsValue = false;
+		// depth of elements of the current trips array, or -1 outside of trips array
+		int elementDepth = -1;
+		boolean inTrip = false;
+		RawBatch batch = new RawBatch(0);
+		int tripIndex = 0;
+		long bytesRead = 0;
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.PARSE);
+		int read;
+		while((read = input.read(buffer)) > 0) {
+			bytesRead += read;
+			for(int i = 0; i < read; i++) {
+				byte b = buffer[i];
+				if(inTrip) {
+					batch.append(b);
+				}
+				if(inString) {
+					if(escape) {
+						escape = false;
+						matched = -1;
+					}
+					else if(b == '\\') {
+						escape = true;
+					}
+					else if(b == '"') {
+						inString = false;
+						tripsKey = depth == 1 && matched == TRIPS.length;
+					}
+					else if(matched >= 0) {
+						matched = matched < TRIPS.length && b == TRIPS[matched] ? matched + 1 : -1;
+					}
+					continue;
+				}
+				switch(b) {
+				case '"':
+					inString = true;
+					matched = depth == 1 ? 0 : -1;
+					tripsValue = false;
+					break;
+				case ':':
+					tripsValue = tripsKey;
+					tripsKey = false;
+					break;
+				case '{':
+				case '[':
+					if(depth == 1 && tripsValue && b == '[') {
+						elementDepth = 2;
+					}
+					else if(depth == elementDepth && b == '{') {
+						inTrip = true;
+						batch.startTrip();
+					}
+					tripsKey = false;
+					tripsValue = false;
+					depth++;
+					break;
+				case '}':
+				case ']':
+					depth--;
+					if(inTrip && depth == elementDepth) {
+						inTrip = false;
+						tripIndex++;
+						if(batch.tripCount == BATCH_SIZE) {
+							RouteMetrics.end(event, batch.tripCount, batch.length);
+							output.put(batch.finish());
+							batch = new RawBatch(tripIndex);
+							event = RouteMetrics.begin(RouteMetrics.Phase.PARSE);
+						}
+					}
+					if(depth < elementDepth) {
+						elementDepth = -1;
+					}
+					tripsKey = false;
+					tripsValue = false;
+					break;
+				case ' ':
+				case '\n':
+				case '\r':
+				case '\t':
+					break;
+				default:
+					tripsKey = false;
+					tripsValue = false;
+					break;
+				}
+			}
+		}
+		RouteMetrics.end(event, batch.tripCount, batch.length);
+		RouteMetrics.addBytesRead(bytesRead);
+		if(batch.tripCount > 0) {
+			output.put(batch.finish());
+		}
+	}
+
+	/**
+	 * Parses batch of trips and registers their destinations.
+	 * @param rawBatch Bytes of trips
+	 * @param registration Registration of destinations
+	 * @return Converted trips
+	 */
+	private static TripBatch convert(RawBatch rawBatch, Registration registration) {
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.PARSE);
+		List<Trip> trips;
+		try (JsonParser jsonParser = PARSER_FACTORY.createParser(new ByteArrayInputStream(rawBatch.bytes, 0, rawBatch.length))) {
+			trips = new Converter().jsonParserToTripArray(jsonParser);
+		}
+		TripBatch tripBatch = new TripBatch(rawBatch.firstTrip, trips);
+		registration.register(tripBatch);
+		RouteMetrics.addTrips(trips.size());
+		RouteMetrics.end(event, trips.size(), rawBatch.length);
+		return tripBatch;
+	}
+
+	/**
+	 * Visits routes of a batch of trips which match a query.
+	 * @param tripBatch Converted trips
+	 * @param routeQuery Query of counted routes
+	 * @return Enumerated routes
+	 */
+	private static RouteBatch enumerate(TripBatch tripBatch, RouteQuery routeQuery) {
+		PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.ENUMERATE);
+		RouteBatch routeBatch = new RouteBatch(tripBatch);
+		double maxDistance = routeQuery.getMaxDistance();
+		long windows = 0;
+		for(int i = 0; i < tripBatch.trips.size(); i++) {
+			Trip trip = tripBatch.trips.get(i);
+			int[] requiredEnd = tripBatch.requiredEnds == null ? null : tripBatch.requiredEnds[i];
+			windows += trip.visitRoutes(routeQuery.getMinLength(), routeQuery.getMaxLength(), (start, length, hash) -> {
+				if(requiredEnd != null && start + length < requiredEnd[start]) {
+					return;
+				}
+				if(maxDistance != Double.POSITIVE_INFINITY && trip.getDistance(start, length) > maxDistance) {
+					return;
+				}
+				routeBatch.add(start, length, hash);
+			});
+			routeBatch.tripEnds[i] = routeBatch.size;
+		}
+		RouteMetrics.addWindows(windows);
+		RouteMetrics.end(event, routeBatch.size, 0);
+		return routeBatch;
+	}
+
+	/**
+	 * Counts routes of batches into a new counter, until the end of input.
+	 * @param input Queue of enumerated routes
+	 * @param oncePerTrip If routes are counted only once for each trip
+	 * @return Counter with popularity of counted routes
+	 */
+	private static RouteCounter count(BlockingQueue<RouteBatch> input, boolean oncePerTrip) throws InterruptedException {
+		RouteCounter routeCounter = new RouteCounter();
+		for(RouteBatch routeBatch = input.take(); routeBatch != RouteBatch.END; routeBatch = input.take()) {
+			PhaseEvent event = RouteMetrics.begin(RouteMetrics.Phase.COUNT);
+			int route = 0;
+			for(int i = 0; i < routeBatch.itineraries.length; i++) {
+				int tripIndex = routeBatch.firstTrip + i;
+				int[] itinerary = routeBatch.itineraries[i];
+				for(; route < routeBatch.tripEnds[i]; route++) {
+					routeCounter.add(tripIndex, itinerary, routeBatch.starts[route], routeBatch.lengths[route], routeBatch.hashes[route], oncePerTrip);
+				}
+			}
+			RouteMetrics.end(event, routeBatch.size, 0);
+		}
+		return routeCounter;
+	}
+
+	public int getConvertThreads() {
+		return convertThreads;
+	}
+	public int getEnumerateThreads() {
+		return enumerateThreads;
+	}
+	public int getCountThreads() {
+		return countThreads;
+	}
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * Processing of a batch in a stage.
+	 */
+	@FunctionalInterface
+	private interface BatchFunction<I, O> {
+		O apply(I batch) throws Exception;
+	}
+
+	/**
+	 * Work of a stage thread.
+	 */
+	@FunctionalInterface
+	private interface StageWork {
+		void run() throws Exception;
+	}
+
+	/**
+	 * Registration of converted trips in the dictionary of destinations, which is not thread-safe,
+	 * so trips of one batch are registered at a time.
+	 * Required destinations of the query are checked once for each newly registered destination.
+	 */
+	private static class Registration {
+
+		/** Dictionary of destinations */
+		private final DestinationRegistry destinationRegistry;
+		/** Query of counted routes */
+		private final RouteQuery routeQuery;
+		/** Ids of required destinations, one set for each required destination name and area */
+		private final List<BitSet> requiredDestinations = new ArrayList<>();
+		/** Number of registered destinations already checked for required destinations */
+		private int checkedDestinations;
+
+		Registration(DestinationRegistry destinationRegistry, RouteQuery routeQuery) {
+			this.destinationRegistry = destinationRegistry;
+			this.routeQuery = routeQuery;
+			for(int i = 0; i < routeQuery.getDestinationNames().size() + routeQuery.getAreas().size(); i++) {
+				requiredDestinations.add(new BitSet());
+			}
+		}
+
+		/**
+		 * Registers trips of a batch, and finds their required destinations and distances of their stages,
+		 * which use the dictionary of destinations.
+		 * @param tripBatch Converted trips
+		 */
+		synchronized void register(TripBatch tripBatch) {
+			for(Trip trip : tripBatch.trips) {
+				destinationRegistry.register(trip);
+			}
+			int nameCount = routeQuery.getDestinationNames().size();
+			for(; checkedDestinations < destinationRegistry.size(); checkedDestinations++) {
+				Destination destination = destinationRegistry.getDestination(checkedDestinations);
+				for(int i = 0; i < nameCount; i++) {
+					if(destination.getName().contains(routeQuery.getDestinationNames().get(i))) {
+						requiredDestinations.get(i).set(checkedDestinations);
+					}
+				}
+				for(int i = 0; i < routeQuery.getAreas().size(); i++) {
+					if(routeQuery.getAreas().get(i).contains(destination)) {
+						requiredDestinations.get(nameCount + i).set(checkedDestinations);
+					}
+				}
+			}
+			if(!requiredDestinations.isEmpty()) {
+				tripBatch.requiredEnds = new int[tripBatch.trips.size()][];
+				for(int i = 0; i < tripBatch.trips.size(); i++) {
+					tripBatch.requiredEnds[i] = tripBatch.trips.get(i).findRequiredEnd(requiredDestinations);
+				}
+			}
+			if(routeQuery.hasMaxDistance()) {
+				for(Trip trip : tripBatch.trips) {
+					trip.getPrefixDistances();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Bytes of consecutive trips, as a JSON array.
+	 */
+	private static class RawBatch {
+
+		/** Batch which marks the end of input */
+		static final RawBatch END = new RawBatch(-1);
+
+		/** Index of the first trip in input */
+		final int firstTrip;
+		/** Bytes of JSON array of trips, followed by unused bytes */
+		byte[] bytes = new byte[1 << 14];
+		/** Number of used bytes */
+		int length;
+		/** Number of trips */
+		int tripCount;
+
+		RawBatch(int firstTrip) {
+			this.firstTrip = firstTrip;
+			append((byte) '[');
+		}
+
+		/**
+		 * Starts the next trip, with its opening brace.
+		 */
+		void startTrip() {
+			if(tripCount++ > 0) {
+				append((byte) ',');
+			}
+			append((byte) '{');
+		}
+
+		void append(byte b) {
+			if(length == bytes.length) {
+				bytes = Arrays.copyOf(bytes, length * 2);
+			}
+			bytes[length++] = b;
+		}
+
+		/**
+		 * Ends JSON array of trips.
+		 * @return This batch
+		 */
+		RawBatch finish() {
+			append((byte) ']');
+			return this;
+		}
+
+	}
+
+	/**
+	 * Converted and registered consecutive trips.
+	 */
+	private static class TripBatch {
+
+		/** Batch which marks the end of input */
+		static final TripBatch END = new TripBatch(-1, Collections.emptyList());
+
+		/** Index of the first trip in input */
+		final int firstTrip;
+		/** Trips in input order */
+		final List<Trip> trips;
+		/** Minimum end position of a route starting at each position of each trip, or <code>null</code> without required destinations */
+		int[][] requiredEnds;
+
+		TripBatch(int firstTrip, List<Trip> trips) {
+			this.firstTrip = firstTrip;
+			this.trips = trips;
+		}
+
+	}
+
+	/**
+	 * Enumerated routes of consecutive trips, given by their position in itinerary and rolling hash.
+	 */
+	private static class RouteBatch {
+
+		/** Batch which marks the end of input */
+		static final RouteBatch END = new RouteBatch(TripBatch.END);
+
+		/** Index of the first trip in input */
+		final int firstTrip;
+		/** Destination ids of trips */
+		final int[][] itineraries;
+		/** Index after the last route of each trip */
+		final int[] tripEnds;
+		/** Positions of the first route destination in itinerary */
+		int[] starts = new int[256];
+		/** Numbers of stages in routes */
+		int[] lengths = new int[256];
+		/** Rolling hashes of route destination ids */
+		long[] hashes = new long[256];
+		/** Number of routes */
+		int size;
+
+		RouteBatch(TripBatch tripBatch) {
+			firstTrip = tripBatch.firstTrip;
+			itineraries = new int[tripBatch.trips.size()][];
+			for(int i = 0; i < itineraries.length; i++) {
+				itineraries[i] = tripBatch.trips.get(i).getItinerary();
+			}
+			tripEnds = new int[itineraries.length];
+		}
+
+		void add(int start, int length, long hash) {
+			if(size == starts.length) {
+				starts = Arrays.copyOf(starts, size * 2);
+				lengths = Arrays.copyOf(lengths, size * 2);
+				hashes = Arrays.copyOf(hashes, size * 2);
+			}
+			starts[size] = start;
+			lengths[size] = length;
+			hashes[size] = hash;
+			size++;
+		}
+
+	}
+
+}
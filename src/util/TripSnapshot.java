@@ -0,0 +1,441 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import model.Destination;
+import model.DestinationRegistry;
+import model.RouteCounter;
+import model.RouteKey;
+import model.RouteQuery;
+import model.Tourist;
+import model.Trip;
+import model.TripCollection;
+
+/**
+ * Compact binary snapshot of a trip collection, which is read through a memory-mapped file.
+ * Snapshot consists of:
+ * <ul>
+ * 	<li>header with magic number, version, number of destinations and trips, and a flag of routes section</li>
+ * 	<li>dictionary of destinations (name, latitude and longitude), in the order of their ids</li>
+ * 	<li>tourists and timestamps of trips, with a table of their offsets</li>
+ * 	<li>itineraries of trips as destination ids, with a table of their offsets</li>
+ * 	<li>optionally, popularity of counted routes together with the query they are counted for</li>
+ * </ul>
+ * Itineraries are accessed directly in the mapped file, without parsing or copying. 
+ * Snapshot file can be up to 2 GB large.
+ * 
+ * @author Milan Sovic
+ */
+
+public class TripSnapshot {
+	
+	/** Magic number at the start of snapshot file */
+	private static final int MAGIC = 0x544F5331;
+	/** Version of snapshot format, version 1 has no timestamps of trips */
+	private static final int VERSION = 2;
+	/** Flag of trip record with tourist */
+	private static final int TOURIST_FLAG = 1;
+	/** Flag of trip record with timestamp */
+	private static final int TIMESTAMP_FLAG = 2;
+	
+	/** Mapped snapshot file */
+	private final MappedByteBuffer buffer;
+	/** Dictionary of destinations, in the order of their ids in snapshot */
+	private final List<Destination> destinations;
+	/** Number of trips */
+	private final int tripCount;
+	/** Position of the table of tourist offsets */
+	private final int touristOffsetsPosition;
+	/** Offsets of itineraries in <code>itineraries</code> buffer, one more than number of trips */
+	private final IntBuffer itineraryOffsets;
+	/** Itineraries of all trips, one after another */
+	private final IntBuffer itineraries;
+	/** Position of routes section, or -1 if snapshot has no routes */
+	private final int routesPosition;
+	
+	/**
+	 * Opens snapshot file and reads its dictionary of destinations.
+	 * @param file Snapshot file
+	 * @throws IOException If file cannot be read or it is not a snapshot
+	 */
+	public TripSnapshot(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if(buffer.getInt() != MAGIC) {
+			throw new IOException("File " + file.getPath() + " is not a trip snapshot!");
+		}
+		int version = buffer.getInt();
+		if(version < 1 || version > VERSION) {
+			throw new IOException("Version " + version + " of trip snapshot " + file.getPath() + " is not supported!");
+		}
+		int destinationCount = buffer.getInt();
+		tripCount = buffer.getInt();
+		boolean hasRoutes = buffer.getInt() != 0;
+		destinations = new ArrayList<>(destinationCount);
+		for(int i = 0; i < destinationCount; i++) {
+			Destination destination = new Destination();
+			destination.setName(readString(buffer));
+			destination.setLatitude(buffer.getDouble());
+			destination.setLongitude(buffer.getDouble());
+			destinations.add(destination);
+		}
+		int touristsLength = buffer.getInt();
+		touristOffsetsPosition = buffer.position();
+		buffer.position(touristOffsetsPosition + 4 * tripCount + touristsLength);
+		align(buffer);
+		itineraryOffsets = slice(buffer, tripCount + 1).asIntBuffer();
+		buffer.position(buffer.position() + 4 * (tripCount + 1));
+		int itinerariesLength = itineraryOffsets.get(tripCount);
+		itineraries = slice(buffer, itinerariesLength).asIntBuffer();
+		buffer.position(buffer.position() + 4 * itinerariesLength);
+		routesPosition = hasRoutes ? buffer.position() : -1;
+	}
+	
+	/**
+	 * Tells if a file is a trip snapshot, by its magic number.
+	 * @param file File to check
+	 * @return If file is a trip snapshot
+	 * @throws IOException If file cannot be read
+	 */
+	public static boolean isSnapshot(File file) throws IOException {
+		try (InputStream is = new FileInputStream(file)) {
+			byte[] magic = new byte[4];
+			return is.read(magic) == 4 && ByteBuffer.wrap(magic).getInt() == MAGIC;
+		}
+	}
+	
+	/**
+	 * Writes snapshot of trip collection into file.
+	 * @param file Snapshot file
+	 * @param tripCollection Trip collection to write
+	 * @param routeQuery Query for which routes of trip collection are counted, 
+	 * 		or <code>null</code> if counted routes are not written. Routes counted for a query with required areas
+	 * 		or maximum travel distance are not written.
+	 * @throws IOException If file cannot be written
+	 */
+	public static void write(File file, TripCollection tripCollection, RouteQuery routeQuery) throws IOException {
+		if(routeQuery != null && (!routeQuery.getAreas().isEmpty() || routeQuery.hasMaxDistance())) {
+			routeQuery = null;
+		}
+		List<Trip> trips = tripCollection.getTrips();
+		DestinationRegistry destinationRegistry = tripCollection.getDestinationRegistry();
+		int[][] itineraries = new int[trips.size()][];
+		for(int i = 0; i < trips.size(); i++) {
+			itineraries[i] = tripCollection.getItinerary(i);
+		}
+		try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeInt(destinationRegistry.size());
+			dos.writeInt(trips.size());
+			dos.writeInt(routeQuery == null ? 0 : 1);
+			for(int id = 0; id < destinationRegistry.size(); id++) {
+				Destination destination = destinationRegistry.getDestination(id);
+				writeString(dos, destination.getName());
+				dos.writeDouble(destination.getLatitude());
+				dos.writeDouble(destination.getLongitude());
+			}
+			
+			List<byte[]> tourists = new ArrayList<>(trips.size());
+			int touristsLength = 0;
+			for(Trip trip : trips) {
+				Tourist tourist = trip.getTourist();
+				byte[] name = tourist == null ? null : bytes(tourist.getName());
+				byte[] countryOfOrigin = tourist == null ? null : bytes(tourist.getCountryOfOrigin());
+				ByteBuffer touristBuffer = ByteBuffer.allocate(1 + (trip.hasTimestamp() ? 8 : 0) + 8 + length(name) + length(countryOfOrigin));
+				touristBuffer.put((byte) ((tourist == null ? 0 : TOURIST_FLAG) | (trip.hasTimestamp() ? TIMESTAMP_FLAG : 0)));
+				if(trip.hasTimestamp()) {
+					touristBuffer.putLong(trip.getTimestamp());
+				}
+				putBytes(touristBuffer, name);
+				putBytes(touristBuffer, countryOfOrigin);
+				tourists.add(touristBuffer.array());
+				touristsLength += touristBuffer.capacity();
+			}
+			dos.writeInt(touristsLength);
+			int touristOffset = 0;
+			for(byte[] tourist : tourists) {
+				dos.writeInt(touristOffset);
+				touristOffset += tourist.length;
+			}
+			for(byte[] tourist : tourists) {
+				dos.write(tourist);
+			}
+			while(dos.size() % 4 != 0) {
+				dos.writeByte(0);
+			}
+			
+			int itineraryOffset = 0;
+			for(int[] itinerary : itineraries) {
+				dos.writeInt(itineraryOffset);
+				itineraryOffset += itinerary.length;
+			}
+			dos.writeInt(itineraryOffset);
+			for(int[] itinerary : itineraries) {
+				for(int id : itinerary) {
+					dos.writeInt(id);
+				}
+			}
+			
+			if(routeQuery != null) {
+				dos.writeInt(routeQuery.getMinLength());
+				dos.writeInt(routeQuery.getMaxLength());
+				dos.writeInt(routeQuery.getDestinationNames().size());
+				for(String destinationName : routeQuery.getDestinationNames()) {
+					writeString(dos, destinationName);
+				}
+				RouteCounter routeCounter = tripCollection.getRouteCounter();
+				dos.writeInt(routeCounter.size());
+				for(RouteCounter.Entry entry : routeCounter) {
+					dos.writeInt(entry.getCount());
+					dos.writeInt(entry.getFirstTrip());
+					dos.writeInt(entry.getStart());
+					dos.writeInt(entry.getLength());
+					for(int id : entry.getKey().getDestinationIds()) {
+						dos.writeInt(id);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds all trips from snapshot into trip collection. Destinations are registered in the dictionary of trip collection
+	 * and trips get their itineraries directly from snapshot, without looking up their destinations.
+	 * @param tripCollection Trip collection where trips are added
+	 */
+	public void load(TripCollection tripCollection) {
+		load(tripCollection, 0, 1);
+	}
+	
+	/**
+	 * Adds one shard of trips from snapshot into trip collection. 
+	 * Trip with index <code>i</code> belongs to shard <code>i % shardCount</code>, the same as when trips are read from JSON.
+	 * @param tripCollection Trip collection where trips are added
+	 * @param shardIndex Index of the shard, from 0 to <code>shardCount - 1</code>
+	 * @param shardCount Number of shards
+	 */
+	public void load(TripCollection tripCollection, int shardIndex, int shardCount) {
+		int[] ids = registerDestinations(tripCollection.getDestinationRegistry());
+		for(int i = shardIndex; i < tripCount; i += shardCount) {
+			Trip trip = new Trip();
+			trip.setTourist(getTourist(i));
+			trip.setTimestamp(getTimestamp(i));
+			IntBuffer snapshotItinerary = getItinerary(i);
+			int[] itinerary = new int[snapshotItinerary.remaining()];
+			snapshotItinerary.get(itinerary);
+			LinkedList<Destination> tripDestinations = new LinkedList<>();
+			for(int position = 0; position < itinerary.length; position++) {
+				itinerary[position] = ids[itinerary[position]];
+				tripDestinations.add(tripCollection.getDestinationRegistry().getDestination(itinerary[position]));
+			}
+			trip.setDestinations(tripDestinations);
+			trip.setItinerary(itinerary);
+			trip.setDestinationRegistry(tripCollection.getDestinationRegistry());
+			tripCollection.addTrip(trip);
+		}
+	}
+	
+	/**
+	 * Reads popularity of routes from snapshot. 
+	 * Trips of snapshot have to be loaded into trip collection first, and they have to be its first trips.
+	 * @param tripCollection Trip collection where trips of snapshot are loaded
+	 * @return Counter with popularity of routes, or <code>null</code> if snapshot has no routes.
+	 */
+	public RouteCounter loadRoutes(TripCollection tripCollection) {
+		if(routesPosition < 0) {
+			return null;
+		}
+		int[] ids = registerDestinations(tripCollection.getDestinationRegistry());
+		ByteBuffer routesBuffer = buffer.duplicate();
+		routesBuffer.position(routesPosition);
+		readRouteQuery(routesBuffer);
+		RouteCounter routeCounter = new RouteCounter();
+		int entryCount = routesBuffer.getInt();
+		for(int i = 0; i < entryCount; i++) {
+			int count = routesBuffer.getInt();
+			int firstTrip = routesBuffer.getInt();
+			int start = routesBuffer.getInt();
+			int length = routesBuffer.getInt();
+			int[] destinationIds = new int[length + 1];
+			for(int position = 0; position <= length; position++) {
+				destinationIds[position] = ids[routesBuffer.getInt()];
+			}
+			long hash = new RouteKey(destinationIds).rollingHash();
+			if(firstTrip < tripCount) {
+				// route refers to the itinerary of the trip where it first appears
+				routeCounter.add(firstTrip, tripCollection.getItinerary(firstTrip), start, length, hash, count);
+			}
+			else {
+				routeCounter.add(firstTrip, start, destinationIds, 0, length, hash, count);
+			}
+		}
+		return routeCounter;
+	}
+	
+	/**
+	 * Returns the query for which routes in snapshot are counted.
+	 * @return Route query, or <code>null</code> if snapshot has no routes.
+	 */
+	public RouteQuery getRouteQuery() {
+		if(routesPosition < 0) {
+			return null;
+		}
+		ByteBuffer routesBuffer = buffer.duplicate();
+		routesBuffer.position(routesPosition);
+		return readRouteQuery(routesBuffer);
+	}
+	
+	/**
+	 * Returns itinerary of a trip, as a view of the mapped snapshot file.
+	 * @param trip Index of the trip
+	 * @return Destination ids of the trip
+	 */
+	public IntBuffer getItinerary(int trip) {
+		IntBuffer itinerary = itineraries.duplicate();
+		itinerary.limit(itineraryOffsets.get(trip + 1));
+		itinerary.position(itineraryOffsets.get(trip));
+		return itinerary.slice();
+	}
+	
+	/**
+	 * Reads tourist of a trip.
+	 * @param trip Index of the trip
+	 * @return Tourist who takes the trip
+	 */
+	public Tourist getTourist(int trip) {
+		ByteBuffer touristBuffer = tripRecord(trip);
+		int flags = touristBuffer.get();
+		if((flags & TOURIST_FLAG) == 0) {
+			return null;
+		}
+		if((flags & TIMESTAMP_FLAG) != 0) {
+			touristBuffer.getLong();
+		}
+		Tourist tourist = new Tourist();
+		tourist.setName(readString(touristBuffer));
+		tourist.setCountryOfOrigin(readString(touristBuffer));
+		return tourist;
+	}
+	
+	/**
+	 * Reads timestamp of a trip.
+	 * @param trip Index of the trip
+	 * @return Time of the trip in milliseconds since the epoch, or {@link Trip#NO_TIMESTAMP} if trip has no timestamp
+	 */
+	public long getTimestamp(int trip) {
+		ByteBuffer touristBuffer = tripRecord(trip);
+		return (touristBuffer.get() & TIMESTAMP_FLAG) == 0 ? Trip.NO_TIMESTAMP : touristBuffer.getLong();
+	}
+	
+	/**
+	 * Returns buffer positioned at the record of a trip, which has flags, optional timestamp and optional tourist.
+	 * @param trip Index of the trip
+	 * @return Buffer with trip record
+	 */
+	private ByteBuffer tripRecord(int trip) {
+		ByteBuffer touristBuffer = buffer.duplicate();
+		touristBuffer.position(touristOffsetsPosition + 4 * tripCount + buffer.getInt(touristOffsetsPosition + 4 * trip));
+		return touristBuffer;
+	}
+	
+	/**
+	 * Returns destination with an id from snapshot.
+	 * @param id Destination id in snapshot
+	 * @return Destination
+	 */
+	public Destination getDestination(int id) {
+		return destinations.get(id);
+	}
+	
+	public int getDestinationCount() {
+		return destinations.size();
+	}
+	public int getTripCount() {
+		return tripCount;
+	}
+	
+	/**
+	 * Registers destinations of snapshot in a dictionary of destinations.
+	 * @param destinationRegistry Dictionary of destinations
+	 * @return Ids of destinations in the dictionary, indexed by their ids in snapshot
+	 */
+	private int[] registerDestinations(DestinationRegistry destinationRegistry) {
+		int[] ids = new int[destinations.size()];
+		for(int id = 0; id < ids.length; id++) {
+			ids[id] = destinationRegistry.register(destinations.get(id));
+		}
+		return ids;
+	}
+	
+	private static RouteQuery readRouteQuery(ByteBuffer routesBuffer) {
+		int minLength = routesBuffer.getInt();
+		int maxLength = routesBuffer.getInt();
+		int nameCount = routesBuffer.getInt();
+		List<String> destinationNames = new ArrayList<>(nameCount);
+		for(int i = 0; i < nameCount; i++) {
+			destinationNames.add(readString(routesBuffer));
+		}
+		return new RouteQuery(minLength, maxLength, destinationNames);
+	}
+	
+	private static ByteBuffer slice(ByteBuffer buffer, int ints) {
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit(buffer.position() + 4 * ints);
+		return slice.slice();
+	}
+	
+	private static void align(ByteBuffer buffer) {
+		buffer.position((buffer.position() + 3) & ~3);
+	}
+	
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if(length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static void writeString(DataOutputStream dos, String string) throws IOException {
+		byte[] bytes = bytes(string);
+		dos.writeInt(bytes == null ? -1 : bytes.length);
+		if(bytes != null) {
+			dos.write(bytes);
+		}
+	}
+	
+	private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+		buffer.putInt(bytes == null ? -1 : bytes.length);
+		if(bytes != null) {
+			buffer.put(bytes);
+		}
+	}
+	
+	private static byte[] bytes(String string) {
+		return string == null ? null : string.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private static int length(byte[] bytes) {
+		return bytes == null ? 0 : bytes.length;
+	}
+
+}
@@ -0,0 +1,46 @@
+package util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Helper class for creating executors on virtual threads.
+ * Virtual threads are used when the running JVM supports them, otherwise ordinary threads are used,
+ * so the application still runs on older JVMs.
+ * 
+ * @author Milan Sovic
+ */
+
+public class VirtualThreads {
+	
+	private VirtualThreads() {}
+	
+	/**
+	 * Creates executor which starts a new virtual thread for each task,
+	 * or a cached pool of ordinary threads if virtual threads are not supported.
+	 * @return Executor of tasks
+	 */
+	public static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+	
+	/**
+	 * Tells if the running JVM supports virtual threads.
+	 * @return If virtual threads are supported
+	 */
+	public static boolean isSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+}